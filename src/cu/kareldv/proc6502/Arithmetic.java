@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Arithmetic unit of ADC, SBC and the comparisons. Every result holds the 8
+ * bit result, the carry in bit 8 and the overflow in bit 9, the caller sets N
+ * and Z from the result.
+ * Decimal mode uses tables indexed by carry, A and operand (256KB each), built
+ * the first time the D flag is used. In binary mode computing the result
+ * without branches is faster than a table, see ArithmeticBenchmark.
+ * In decimal mode C and V behave as in the NMOS 6502 and N and Z reflect the
+ * BCD result, like in the 65C02
+ * @author Karel
+ */
+final class Arithmetic {
+    static final int C = 0x100, V = 0x200;
+
+    private Arithmetic() {
+    }
+
+    /**
+     * A + B + C
+     */
+    static int adc(int a, int b, int c) {
+        final int sum = a + b + c;
+        //Carry out and overflow, (A and B have the same sign but not the sum)
+        return sum | (~(a^b) & (a^sum) & 0x80) << 2;
+    }
+
+    /**
+     * A - B - (1-C)
+     */
+    static int sbc(int a, int b, int c) {
+        return adc(a, ~b&0xff, c);
+    }
+
+    /**
+     * A - B, the carry is set when A >= B, ignore the overflow
+     */
+    static int cmp(int a, int b) {
+        return a + (~b&0xff) + 1;
+    }
+
+    /**
+     * A + B + C in BCD
+     */
+    static int adcDecimal(int a, int b, int c) {
+        return Decimal.adc[c<<16 | a<<8 | b];
+    }
+
+    /**
+     * A - B - (1-C) in BCD
+     */
+    static int sbcDecimal(int a, int b, int c) {
+        return Decimal.sbc[c<<16 | a<<8 | b];
+    }
+
+    //Used to fill the tables
+
+    static int computeAdcDecimal(int a, int b, int c) {
+        int low = (a&0xf) + (b&0xf) + c;
+        if (low>=0x0a){
+            low = ((low+0x06)&0xf) + 0x10;
+        }
+        int sum = (a&0xf0) + (b&0xf0) + low;
+        //The overflow is taken before adjusting the high digit
+        final int signed = (byte) (a&0xf0) + (byte) (b&0xf0) + low;
+        if (sum>=0xa0){
+            sum += 0x60;
+        }
+        int r = sum&0xff;
+        if (sum>=0x100){
+            r |= C;
+        }
+        if (signed<-128 || signed>127){
+            r |= V;
+        }
+        return r;
+    }
+
+    static int computeSbcDecimal(int a, int b, int c) {
+        //C and V are the binary ones
+        final int flags = sbc(a, b, c) & (C | V);
+        int low = (a&0xf) - (b&0xf) + c - 1;
+        if (low<0){
+            low = ((low-0x06)&0xf) - 0x10;
+        }
+        int diff = (a&0xf0) - (b&0xf0) + low;
+        if (diff<0){
+            diff -= 0x60;
+        }
+        return (diff&0xff) | flags;
+    }
+
+    static char[] table(Operation op) {
+        final char[] t = new char[0x20000];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = (char) op.apply(i>>>8&0xff, i&0xff, i>>>16);
+        }
+        return t;
+    }
+
+    private static final class Decimal {
+        static final char[] adc = table(Arithmetic::computeAdcDecimal);
+        static final char[] sbc = table(Arithmetic::computeSbcDecimal);
+    }
+
+    static interface Operation{
+        int apply(int a, int b, int c);
+    }
+}
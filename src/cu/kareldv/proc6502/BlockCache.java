@@ -0,0 +1,221 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Cache of predecoded basic blocks, keyed by the address of their first
+ * instruction. A block is straight-line code: it ends after a branch, jump,
+ * return or BRK, before an unknown opcode or an I/O page, or after
+ * {@link #MAX_LENGTH} instructions.
+ * The pages the blocks were decoded from are marked as code in the
+ * {@link Memory}, a write into them drops the blocks that read that page
+ * @author Karel
+ */
+final class BlockCache {
+    /**
+     * Maximum number of instructions of a block. A block never reads more
+     * than two pages
+     */
+    static final int MAX_LENGTH = 32;
+    private final Memory memory;
+    //Blocks by page, then by the low byte of the start address
+    private final Block[][] pages = new Block[Memory.PAGES][];
+    //Pages with blocks that read the next page
+    private final boolean[] spills = new boolean[Memory.PAGES];
+    //Changes every time a block is dropped
+    private int version;
+    private CompiledProgram program;
+    private boolean elideFlags;
+
+    BlockCache(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Gets the block that starts at PC, decoding it if needed
+     * @param pc    Start address
+     * @return      The block, null if the opcode at PC is unknown or PC is
+     *              in an I/O page
+     */
+    Block get(int pc) {
+        final Block[] page = pages[pc>>>8];
+        if (page!=null){
+            final Block b = page[pc&0xff];
+            if (b!=null){
+                return b;
+            }
+        }
+        return decode(pc);
+    }
+
+    int version() {
+        return version;
+    }
+
+    /**
+     * Runs the flag-liveness analysis on the new blocks, see
+     * {@link FlagLiveness}
+     */
+    void elideFlags(boolean elide) {
+        if (elide!=elideFlags){
+            elideFlags = elide;
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Uses the blocks of PROGRAM, compiled ahead of time, for the code that
+     * matches the bytes they were compiled from
+     */
+    void program(CompiledProgram program) {
+        this.program = program;
+        invalidateAll();
+    }
+
+    CompiledProgram program() {
+        return program;
+    }
+
+    /**
+     * Uses the program and the flag analysis of OTHER, for a forked memory
+     */
+    void copySettings(BlockCache other) {
+        program = other.program;
+        elideFlags = other.elideFlags;
+    }
+
+    /**
+     * Drops the blocks that read PAGE, called after a write into it
+     */
+    void invalidate(int page) {
+        drop(page);
+        final int prev = (page-1)&0xff;
+        if (spills[prev]){
+            drop(prev);
+        }
+        memory.unmarkCode(page);
+        version++;
+    }
+
+    /**
+     * Drops all the blocks
+     */
+    void invalidateAll() {
+        for (int i = 0; i < Memory.PAGES; i++) {
+            drop(i);
+            memory.unmarkCode(i);
+        }
+        version++;
+    }
+
+    /**
+     * Internal use
+     * Drops the blocks that start in PAGE, deoptimizing the compiled ones
+     */
+    private void drop(int page) {
+        final Block[] blocks = pages[page];
+        if (blocks!=null){
+            for (Block b : blocks) {
+                if (b!=null && b.compiled!=null){
+                    b.compiled.deoptimized=true;
+                }
+            }
+        }
+        pages[page]=null;
+        spills[page]=false;
+    }
+
+    /**
+     * Internal use
+     * Decodes the block that starts at PC
+     */
+    private Block decode(int pc) {
+        final Block b = new Block();
+        final int startPage = pc>>>8;
+        int pos = pc;
+        int n = 0;
+        while(n<MAX_LENGTH){
+            final int opcode = memory.peek(pos)&0xff;
+            final InstructionMap.Instruction inst = InstructionMap.handler(opcode);
+            final int len = InstructionMap.length(opcode);
+            final int last = (pos+len-1)&0xffff;
+            if (inst==null || memory.isIo(pos>>>8) || memory.isIo(last>>>8)){
+                break;
+            }
+            switch(len){
+                case 2:
+                    b.operands[n]=memory.peek(pos+1)&0xff;
+                    break;
+                case 3:
+                    //Big-endian, like Memory.getWord
+                    b.operands[n]=((memory.peek(pos+1)<<8)
+                            + (memory.peek(last)&0xff))&0xffff;
+                    break;
+                default:
+                    b.operands[n]=0;
+            }
+            b.handlers[n]=inst;
+            b.opcodes[n]=(byte) opcode;
+            pos=(pos+len)&0xffff;
+            b.nextPC[n]=pos;
+            memory.markCode(last>>>8);
+            if (last>>>8 != startPage){
+                spills[startPage]=true;
+            }
+            n++;
+            if (InstructionMap.isFlowControl(opcode)){
+                break;
+            }
+        }
+        if (n==0){
+            return null;
+        }
+        memory.markCode(startPage);
+        b.start=pc;
+        b.length=n;
+        b.optimized=b.handlers;
+        if (elideFlags){
+            FlagLiveness.optimize(b);
+        }
+        if (program!=null){
+            b.compiled=program.lookup(pc, memory, (pos-pc)&0xffff);
+        }
+        if (pages[startPage]==null){
+            pages[startPage]=new Block[Memory.PAGE_SIZE];
+        }
+        pages[startPage][pc&0xff]=b;
+        return b;
+    }
+
+    /**
+     * A decoded block, the instruction I runs with the program counter set
+     * to nextPC[I]. The optimized handlers skip the dead flags, the bit I of
+     * flagFree is set if the instruction I uses a flag-free variant. Hot
+     * blocks get a compiled version, see {@link BlockCompiler}
+     */
+    static final class Block {
+        final InstructionMap.Instruction[] handlers = new InstructionMap.Instruction[MAX_LENGTH];
+        final int[] operands = new int[MAX_LENGTH];
+        final int[] nextPC = new int[MAX_LENGTH];
+        final byte[] opcodes = new byte[MAX_LENGTH];
+        InstructionMap.Instruction[] optimized;
+        int flagFree;
+        int start;
+        int length;
+        int hits;
+        CompiledBlock compiled;
+    }
+}
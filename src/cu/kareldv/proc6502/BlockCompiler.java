@@ -0,0 +1,666 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates hot blocks to JVM bytecode. Loads, stores, transfers, INC/DEC
+ * and branches are emitted as field accesses on the {@link State} and calls
+ * to {@link Memory#get(int)} and {@link Memory#put(int, byte)}, with the
+ * operands, addresses and branch targets as constants. The other
+ * instructions become a call to their handler through a static final field
+ * of the generated class, so the JVM can inline it instead of dispatching
+ * through the handler table.
+ * Every class is defined in its own class loader, so the classes of the
+ * dropped blocks can be unloaded
+ * @author Karel
+ */
+final class BlockCompiler {
+    /**
+     * Times a block is dispatched before it's compiled
+     */
+    static final int HOT_THRESHOLD = 1000;
+    private static final AtomicInteger counter = new AtomicInteger();
+    private static final String SUPER = "cu/kareldv/proc6502/CompiledBlock";
+    private static final String CPU_TYPE = "Lcu/kareldv/proc6502/CPU;";
+    private static final String INSTRUCTION = "cu/kareldv/proc6502/InstructionMap$Instruction";
+    private static final String STATE = "cu/kareldv/proc6502/State";
+    private static final String MEMORY = "cu/kareldv/proc6502/Memory";
+    private static final String CLOCK = "cu/kareldv/proc6502/Clock";
+    //Locals of execute(CPU)
+    private static final int L_CPU = 1, L_STATE = 2, L_MEMORY = 3, L_CLOCK = 4,
+            L_VALUE = 5, L_ADDRESS = 6;
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * Compiles the block
+     * @param block     The block
+     * @param optimized Use the flag-free variants of the block
+     * @return          The compiled block, null if it cannot be compiled
+     */
+    static CompiledBlock compile(BlockCache.Block block, boolean optimized) {
+        final String name = String.format("cu/kareldv/proc6502/gen/Block_%04X_%d",
+                block.start, counter.incrementAndGet());
+        try {
+            final byte[] bytes = classFile(name, block, optimized);
+            final Class<?> cls = new Loader(CompiledBlock.class.getClassLoader())
+                    .define(name.replace('/', '.'), bytes);
+            return (CompiledBlock) cls.getDeclaredConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException | LinkageError | SecurityException ex) {
+            //Keep interpreting it
+            return null;
+        }
+    }
+
+    /**
+     * Writes the class file of the block, a public subclass of
+     * {@link CompiledBlock}
+     * @param name      Internal name of the class, eg: a/b/Block
+     * @param block     The block
+     * @param optimized Use the flag-free variants of the block
+     */
+    static byte[] classFile(String name, BlockCache.Block block, boolean optimized) throws IOException {
+        final ClassFile cf = new ClassFile(name, SUPER);
+        final Emitter direct = new Emitter(cf);
+        final int consume = cf.interfaceMethod(INSTRUCTION, "consume", "(" + CPU_TYPE + "I)V");
+        final int deoptimized = cf.field(SUPER, "deoptimized", "Z");
+        final int handler = cf.method(SUPER, "handler", "(I)L" + INSTRUCTION + ";");
+        final int pc = cf.field(STATE, "pc", "I");
+        final boolean[] emitted = new boolean[block.length];
+        final int[] fields = new int[block.length];
+        
+        //protected int execute(CPU cpu)
+        final Code exec = new Code();
+        exec.op(0x2b);                      //aload_1
+        exec.op(0xb8).u2(cf.method(SUPER, "state", "(" + CPU_TYPE + ")L" + STATE + ";"));
+        exec.op(0x3a).u1(L_STATE);          //astore
+        exec.op(0x2b);
+        exec.op(0xb6).u2(cf.method("cu/kareldv/proc6502/CPU", "memory", "()L" + MEMORY + ";"));
+        exec.op(0x3a).u1(L_MEMORY);
+        exec.op(0x2b);
+        exec.op(0xb6).u2(cf.method("cu/kareldv/proc6502/CPU", "clock", "()L" + CLOCK + ";"));
+        exec.op(0x3a).u1(L_CLOCK);
+        for (int i = 0; i < block.length; i++) {
+            final int opcode = block.opcodes[i]&0xff;
+            final boolean flagFree = optimized && (block.flagFree & (1<<i))!=0;
+            //state.pc = next
+            exec.op(0x19).u1(L_STATE);      //aload
+            exec.pushInt(cf, block.nextPC[i]);
+            exec.op(0xb5).u2(pc);           //putfield
+            emitted[i] = direct.emit(exec, opcode, block.operands[i], !flagFree, block.nextPC[i]);
+            if (!emitted[i]){
+                //h.consume(cpu, operand)
+                fields[i] = cf.staticField("h" + i, "L" + INSTRUCTION + ";");
+                exec.op(0xb2).u2(fields[i]);    //getstatic
+                exec.op(0x2b);
+                exec.pushInt(cf, block.operands[i]);
+                exec.op(0xb9).u2(consume).u1(3).u1(0); //invokeinterface
+            }
+            if (i < block.length-1 && !Emitter.registersOnly(opcode, emitted[i])){
+                //if (deoptimized) return i+1;
+                exec.op(0x2a);
+                exec.op(0xb4).u2(deoptimized); //getfield
+                final int branch = exec.size();
+                exec.op(0x99).u2(0);        //ifeq, patched below
+                exec.pushInt(cf, i+1);
+                exec.op(0xac);              //ireturn
+                exec.patch(branch+1, exec.size()-branch);
+            }
+        }
+        exec.pushInt(cf, block.length);
+        exec.op(0xac);
+        cf.addMethod(0x0004, "execute", "(" + CPU_TYPE + ")I", 6, L_ADDRESS+1, exec);
+
+        //static { h0 = handler(op0); ... }, only the called handlers
+        final Code clinit = new Code();
+        for (int i = 0; i < block.length; i++) {
+            if (emitted[i]){
+                continue;
+            }
+            final boolean flagFree = optimized && (block.flagFree & (1<<i))!=0;
+            clinit.pushInt(cf, (block.opcodes[i]&0xff) | (flagFree ? InstructionMap.FLAG_FREE : 0));
+            clinit.op(0xb8).u2(handler);    //invokestatic
+            clinit.op(0xb3).u2(fields[i]);  //putstatic
+        }
+        clinit.op(0xb1);                    //return
+        cf.addMethod(0x0008, "<clinit>", "()V", 1, 0, clinit);
+
+        //public Block() { super(); }
+        final Code init = new Code();
+        init.op(0x2a);                      //aload_0
+        init.op(0xb7).u2(cf.method(SUPER, "<init>", "()V")); //invokespecial
+        init.op(0xb1);
+        cf.addMethod(0x0001, "<init>", "()V", 1, 1, init);
+        return cf.toBytes();
+    }
+
+    /**
+     * Writes the class file of a {@link CompiledProgram}, its constructor
+     * adds every block with the bytes it was compiled from
+     * @param name          Internal name of the class
+     * @param starts        Start address of the blocks
+     * @param codes         Bytes of the blocks, as ISO-8859-1 strings
+     * @param blockNames    Internal names of the block classes
+     */
+    static byte[] programClassFile(String name, int[] starts, String[] codes,
+            String[] blockNames) throws IOException {
+        final String program = "cu/kareldv/proc6502/CompiledProgram";
+        final ClassFile cf = new ClassFile(name, program);
+        final int add = cf.method(program, "add",
+                "(ILjava/lang/String;L" + SUPER + ";)V");
+        final Code init = new Code();
+        init.op(0x2a);
+        init.op(0xb7).u2(cf.method(program, "<init>", "()V"));
+        for (int i = 0; i < starts.length; i++) {
+            //add(start, code, new Block())
+            init.op(0x2a);
+            init.pushInt(cf, starts[i]);
+            init.op(0x13).u2(cf.string(codes[i])); //ldc_w
+            init.op(0xbb).u2(cf.type(blockNames[i])); //new
+            init.op(0x59);                  //dup
+            init.op(0xb7).u2(cf.method(blockNames[i], "<init>", "()V"));
+            init.op(0xb6).u2(add);
+        }
+        init.op(0xb1);
+        if (init.size() > 0xffff){
+            throw new IllegalArgumentException("Too many blocks!");
+        }
+        cf.addMethod(0x0001, "<init>", "()V", 5, 1, init);
+        return cf.toBytes();
+    }
+
+    /**
+     * Emits the instructions that only move data between the state and the
+     * memory, the cycles are the ones of their handlers
+     */
+    private static final class Emitter {
+        private final ClassFile cf;
+        private final int get, put, consumeTicks;
+
+        Emitter(ClassFile cf) throws IOException {
+            this.cf = cf;
+            get = cf.method(MEMORY, "get", "(I)B");
+            put = cf.method(MEMORY, "put", "(IB)L" + MEMORY + ";");
+            consumeTicks = cf.method(CLOCK, "consumeTicks", "(I)L" + CLOCK + ";");
+        }
+
+        /**
+         * Checks if the emitted instruction only changes the state, the
+         * block cannot be deoptimized by it
+         */
+        static boolean registersOnly(int opcode, boolean emitted) {
+            return emitted && InstructionMap.mode(opcode)==InstructionMap.Mode.IMPLIED;
+        }
+
+        /**
+         * Emits the instruction
+         * @param flags Set N and Z, false for the flag-free variants
+         * @return      false if it must call its handler
+         */
+        boolean emit(Code c, int opcode, int operand, boolean flags, int next) throws IOException {
+            final String m = InstructionMap.mnemonic(opcode);
+            final InstructionMap.Mode mode = InstructionMap.mode(opcode);
+            if (m==null || mode==InstructionMap.Mode.INDIRECT_X || mode==InstructionMap.Mode.INDIRECT_Y){
+                return false;
+            }
+            switch(m){
+                case "LDA": return load(c, "a", mode, operand, flags);
+                case "LDX": return load(c, "x", mode, operand, flags);
+                case "LDY": return load(c, "y", mode, operand, flags);
+                case "STA": return store(c, "a", mode, operand);
+                case "STX": return store(c, "x", mode, operand);
+                case "STY": return store(c, "y", mode, operand);
+                case "TAX": return transfer(c, "a", "x", flags);
+                case "TXA": return transfer(c, "x", "a", flags);
+                case "TAY": return transfer(c, "a", "y", flags);
+                case "TYA": return transfer(c, "y", "a", flags);
+                case "TSX": return transfer(c, "sp", "x", flags);
+                case "TXS": return transfer(c, "x", "sp", false);
+                case "INX": return step(c, "x", 1, flags);
+                case "INY": return step(c, "y", 1, flags);
+                case "DEX": return step(c, "x", -1, flags);
+                case "DEY": return step(c, "y", -1, flags);
+                case "INC": return modify(c, mode, operand, 1, flags);
+                case "DEC": return modify(c, mode, operand, -1, flags);
+                //The if opcode jumps over the taken path
+                case "BNE": return branch(c, "zResult", 0x99, operand, next);
+                case "BEQ": return branch(c, "zResult", 0x9a, operand, next);
+                case "BPL": return branch(c, "nResult", 0x9b, operand, next);
+                case "BMI": return branch(c, "nResult", 0x9c, operand, next);
+                case "BCC": return branch(c, "carry", 0x9a, operand, next);
+                case "BCS": return branch(c, "carry", 0x99, operand, next);
+                case "BVC": return branch(c, "overflow", 0x9a, operand, next);
+                case "BVS": return branch(c, "overflow", 0x99, operand, next);
+                default:
+                    return false;
+            }
+        }
+
+        private boolean load(Code c, String reg, InstructionMap.Mode mode, int operand,
+                boolean flags) throws IOException {
+            final int ticks;
+            if (mode==InstructionMap.Mode.IMMEDIATE){
+                c.pushInt(cf, (byte) operand);
+                ticks = 2;
+            }else{
+                c.op(0x19).u1(L_MEMORY);
+                address(c, mode, operand);
+                c.op(0xb6).u2(get);         //invokevirtual
+                ticks = mode==InstructionMap.Mode.ZERO_PAGE ? 3 : 4;
+            }
+            c.op(0x36).u1(L_VALUE);         //istore
+            setRegister(c, reg, flags);
+            ticks(c, ticks);
+            return true;
+        }
+
+        private boolean store(Code c, String reg, InstructionMap.Mode mode, int operand)
+                throws IOException {
+            c.op(0x19).u1(L_MEMORY);
+            address(c, mode, operand);
+            getRegister(c, reg);
+            c.op(0xb6).u2(put);
+            c.op(0x57);                     //pop
+            switch(mode){
+                case ZERO_PAGE: ticks(c, 3); break;
+                case ABSOLUTE_X: case ABSOLUTE_Y: ticks(c, 5); break;
+                default: ticks(c, 4);
+            }
+            return true;
+        }
+
+        private boolean transfer(Code c, String from, String to, boolean flags) throws IOException {
+            getRegister(c, from);
+            c.op(0x36).u1(L_VALUE);
+            setRegister(c, to, flags);
+            ticks(c, 2);
+            return true;
+        }
+
+        private boolean step(Code c, String reg, int delta, boolean flags) throws IOException {
+            getRegister(c, reg);
+            c.pushInt(cf, delta);
+            c.op(0x60);                     //iadd
+            c.op(0x91);                     //i2b
+            c.op(0x36).u1(L_VALUE);
+            setRegister(c, reg, flags);
+            ticks(c, 2);
+            return true;
+        }
+
+        private boolean modify(Code c, InstructionMap.Mode mode, int operand, int delta,
+                boolean flags) throws IOException {
+            address(c, mode, operand);
+            c.op(0x36).u1(L_ADDRESS);
+            //value = (byte) (memory.get(address) + delta)
+            c.op(0x19).u1(L_MEMORY);
+            c.op(0x15).u1(L_ADDRESS);       //iload
+            c.op(0xb6).u2(get);
+            c.pushInt(cf, delta);
+            c.op(0x60);
+            c.op(0x91);
+            c.op(0x36).u1(L_VALUE);
+            if (flags){
+                setResult(c);
+            }
+            c.op(0x19).u1(L_MEMORY);
+            c.op(0x15).u1(L_ADDRESS);
+            c.op(0x15).u1(L_VALUE);
+            c.op(0xb6).u2(put);
+            c.op(0x57);
+            switch(mode){
+                case ZERO_PAGE: ticks(c, 5); break;
+                case ABSOLUTE_X: ticks(c, 7); break;
+                default: ticks(c, 6);
+            }
+            return true;
+        }
+
+        /**
+         * The branch is taken unless SKIP (an if on FIELD) jumps
+         */
+        private boolean branch(Code c, String field, int skip, int offset, int next)
+                throws IOException {
+            c.op(0x19).u1(L_STATE);
+            c.op(0xb4).u2(cf.field(STATE, field, "B")); //getfield
+            final int notTaken = c.size();
+            c.op(skip).u2(0);
+            c.op(0x19).u1(L_STATE);
+            c.pushInt(cf, (next + (byte) offset)&0xffff);
+            c.op(0xb5).u2(cf.field(STATE, "pc", "I"));
+            ticks(c, 3);
+            final int taken = c.size();
+            c.op(0xa7).u2(0);               //goto
+            c.patch(notTaken+1, c.size()-notTaken);
+            ticks(c, 2);
+            c.patch(taken+1, c.size()-taken);
+            return true;
+        }
+
+        /**
+         * Pushes the effective address of the direct modes
+         */
+        private void address(Code c, InstructionMap.Mode mode, int operand) throws IOException {
+            switch(mode){
+                case ZERO_PAGE:
+                case ABSOLUTE:
+                    c.pushInt(cf, operand);
+                    return;
+                case ZERO_PAGE_X:
+                case ZERO_PAGE_Y:
+                    //(operand + index)&0xff
+                    c.pushInt(cf, operand);
+                    getRegister(c, mode==InstructionMap.Mode.ZERO_PAGE_X ? "x" : "y");
+                    c.op(0x60);
+                    c.pushInt(cf, 0xff);
+                    c.op(0x7e);             //iand
+                    return;
+                case ABSOLUTE_X:
+                case ABSOLUTE_Y:
+                    //(operand + (index&0xff))&0xffff
+                    c.pushInt(cf, operand);
+                    getRegister(c, mode==InstructionMap.Mode.ABSOLUTE_X ? "x" : "y");
+                    c.pushInt(cf, 0xff);
+                    c.op(0x7e);
+                    c.op(0x60);
+                    c.pushInt(cf, 0xffff);
+                    c.op(0x7e);
+                    return;
+                default:
+                    throw new IllegalArgumentException("Unexpected addressing mode!");
+            }
+        }
+
+        private void getRegister(Code c, String reg) throws IOException {
+            c.op(0x19).u1(L_STATE);
+            c.op(0xb4).u2(cf.field(STATE, reg, "B"));
+        }
+
+        /**
+         * Stores the value in REG, and in N and Z if FLAGS
+         */
+        private void setRegister(Code c, String reg, boolean flags) throws IOException {
+            c.op(0x19).u1(L_STATE);
+            c.op(0x15).u1(L_VALUE);
+            c.op(0xb5).u2(cf.field(STATE, reg, "B"));
+            if (flags){
+                setResult(c);
+            }
+        }
+
+        private void setResult(Code c) throws IOException {
+            c.op(0x19).u1(L_STATE);
+            c.op(0x15).u1(L_VALUE);
+            c.op(0xb5).u2(cf.field(STATE, "zResult", "B"));
+            c.op(0x19).u1(L_STATE);
+            c.op(0x15).u1(L_VALUE);
+            c.op(0xb5).u2(cf.field(STATE, "nResult", "B"));
+        }
+
+        private void ticks(Code c, int ticks) throws IOException {
+            c.op(0x19).u1(L_CLOCK);
+            c.pushInt(cf, ticks);
+            c.op(0xb6).u2(consumeTicks);
+            c.op(0x57);
+        }
+    }
+
+    /**
+     * Defines a single generated class
+     */
+    private static final class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Bytecode of a method
+     */
+    private static final class Code {
+        private byte[] code = new byte[256];
+        private int size;
+
+        Code op(int op) {
+            return u1(op);
+        }
+
+        Code u1(int val) {
+            if (size==code.length){
+                code = Arrays.copyOf(code, size*2);
+            }
+            code[size++] = (byte) val;
+            return this;
+        }
+
+        Code u2(int val) {
+            return u1(val>>>8).u1(val);
+        }
+
+        /**
+         * Pushes an int constant with the shortest instruction
+         */
+        Code pushInt(ClassFile cf, int val) {
+            if (val>=-1 && val<=5){
+                return op(0x03+val);        //iconst_<n>
+            }
+            if (val>=Byte.MIN_VALUE && val<=Byte.MAX_VALUE){
+                return op(0x10).u1(val);    //bipush
+            }
+            if (val>=Short.MIN_VALUE && val<=Short.MAX_VALUE){
+                return op(0x11).u2(val);    //sipush
+            }
+            return op(0x13).u2(cf.integer(val)); //ldc_w
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Overwrites the u2 at POS
+         */
+        void patch(int pos, int val) {
+            code[pos] = (byte) (val>>>8);
+            code[pos+1] = (byte) val;
+        }
+
+        byte[] bytes() {
+            return Arrays.copyOf(code, size);
+        }
+    }
+
+    /**
+     * Minimal class file writer, version 49 so the methods do not need
+     * stack map frames
+     */
+    private static final class ClassFile {
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+        private final DataOutputStream membersOut = new DataOutputStream(members);
+        private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        private final DataOutputStream methodsOut = new DataOutputStream(methods);
+        private int poolSize = 1;
+        private int fieldCount, methodCount;
+        private final String name;
+        private final int thisClass, superClass;
+
+        ClassFile(String name, String superName) throws IOException {
+            this.name = name;
+            thisClass = type(name);
+            superClass = type(superName);
+        }
+
+        int utf8(String s) throws IOException {
+            final Integer idx = entries.get("U" + s);
+            if (idx!=null){
+                return idx;
+            }
+            poolOut.writeByte(1);
+            poolOut.writeUTF(s);
+            return add("U" + s);
+        }
+
+        int integer(int val) {
+            final Integer idx = entries.get("I" + val);
+            if (idx!=null){
+                return idx;
+            }
+            try {
+                poolOut.writeByte(3);
+                poolOut.writeInt(val);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return add("I" + val);
+        }
+
+        int string(String s) throws IOException {
+            final Integer idx = entries.get("S" + s);
+            if (idx!=null){
+                return idx;
+            }
+            final int utf = utf8(s);
+            poolOut.writeByte(8);
+            poolOut.writeShort(utf);
+            return add("S" + s);
+        }
+
+        int type(String name) throws IOException {
+            final Integer idx = entries.get("C" + name);
+            if (idx!=null){
+                return idx;
+            }
+            final int nameIdx = utf8(name);
+            poolOut.writeByte(7);
+            poolOut.writeShort(nameIdx);
+            return add("C" + name);
+        }
+
+        int field(String owner, String name, String desc) throws IOException {
+            return ref(9, owner, name, desc);
+        }
+
+        int method(String owner, String name, String desc) throws IOException {
+            return ref(10, owner, name, desc);
+        }
+
+        int interfaceMethod(String owner, String name, String desc) throws IOException {
+            return ref(11, owner, name, desc);
+        }
+
+        /**
+         * Declares a private static final field of this class
+         */
+        int staticField(String name, String desc) throws IOException {
+            membersOut.writeShort(0x001a);
+            membersOut.writeShort(utf8(name));
+            membersOut.writeShort(utf8(desc));
+            membersOut.writeShort(0);
+            fieldCount++;
+            return field(name(), name, desc);
+        }
+
+        void addMethod(int access, String name, String desc, int maxStack,
+                int maxLocals, Code code) throws IOException {
+            final byte[] bytes = code.bytes();
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(desc));
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(12 + bytes.length);
+            methodsOut.writeShort(maxStack);
+            methodsOut.writeShort(maxLocals);
+            methodsOut.writeInt(bytes.length);
+            methodsOut.write(bytes);
+            methodsOut.writeShort(0);       //Exceptions
+            methodsOut.writeShort(0);       //Attributes
+            methodCount++;
+        }
+
+        byte[] toBytes() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            pool.writeTo(out);
+            out.writeShort(0x0031);         //public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);              //Interfaces
+            out.writeShort(fieldCount);
+            members.writeTo(out);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0);              //Attributes
+            return bytes.toByteArray();
+        }
+
+        String name() {
+            return name;
+        }
+
+        private int ref(int tag, String owner, String name, String desc) throws IOException {
+            final String key = "R" + tag + owner + "." + name + desc;
+            final Integer idx = entries.get(key);
+            if (idx!=null){
+                return idx;
+            }
+            final int ownerIdx = type(owner);
+            final int nat = nameAndType(name, desc);
+            poolOut.writeByte(tag);
+            poolOut.writeShort(ownerIdx);
+            poolOut.writeShort(nat);
+            return add(key);
+        }
+
+        private int nameAndType(String name, String desc) throws IOException {
+            final String key = "N" + name + desc;
+            final Integer idx = entries.get(key);
+            if (idx!=null){
+                return idx;
+            }
+            final int nameIdx = utf8(name), descIdx = utf8(desc);
+            poolOut.writeByte(12);
+            poolOut.writeShort(nameIdx);
+            poolOut.writeShort(descIdx);
+            return add(key);
+        }
+
+        private int add(String key) {
+            entries.put(key, poolSize);
+            return poolSize++;
+        }
+    }
+}
@@ -16,7 +16,9 @@
 package cu.kareldv.proc6502;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -26,12 +28,45 @@ import java.util.concurrent.locks.ReentrantLock;
 public final class CPU {
     private Memory memory;
     private InstructionMap instMap;
-    private Flags flags;
-    private Registers registers;
-    private Clock clock;
-    private final List<PreInstruction> preInstr = new ArrayList<>();
-    private final List<PostInstruction> postInstr = new ArrayList<>();
+    //Registers, flags and cycles, the instructions use it directly
+    final State state = new State();
+    private final Flags flags = new Flags(state);
+    private final Registers registers = new Registers(state);
+    private final Clock clock = new Clock(state);
+    //Registered hooks, guarded by itself
+    private final List<HookEntry> hookEntries = new ArrayList<>();
+    //Dispatch built from hookEntries, null without hooks
+    private volatile HookTable hooks;
+    //Address of the instruction seen by the hooks
+    private int hookPC;
+    private Debugger debugger;
+    private Scheduler scheduler;
+    /**
+     * Address of the word with the IRQ handler address
+     */
+    public static final int IRQ_VECTOR = 0xfffe;
+    /**
+     * Address of the word with the NMI handler address
+     */
+    public static final int NMI_VECTOR = 0xfffa;
+    //Number of IRQ assertions << 1 | pending NMI, changed atomically
+    private volatile int interruptLines;
+    private static final AtomicIntegerFieldUpdater<CPU> LINES =
+            AtomicIntegerFieldUpdater.newUpdater(CPU.class, "interruptLines");
     private final ReentrantLock instructionLock = new ReentrantLock();
+    private ExecutionMode executionMode = ExecutionMode.INTERPRETER;
+    private FlagAnalysis flagAnalysis = FlagAnalysis.OFF;
+    private FlagDivergence onFlagDivergence;
+    //Runs the optimized blocks in FlagAnalysis.VERIFY
+    private CPU reference;
+    private PairProfile pairProfile;
+    //Enabled superinstructions, by first and second opcode
+    private InstructionMap.Fused[][] superinstructions;
+    /**
+     * Cycles executed by {@link #executeAsync(Runnable)} each time it takes
+     * the lock
+     */
+    private static final long ASYNC_BATCH = 10_000;
     
     public static final CPU newInstance() {
         CPU cpu = new CPU();
@@ -39,15 +74,49 @@ public final class CPU {
         
         cpu.memory=new Memory();
         cpu.instMap=new InstructionMap();
-        cpu.flags=new Flags();
-        cpu.registers=new Registers();
-        cpu.clock=new Clock(10);
         return cpu;
     }
     
     CPU(){
     }
     
+    /**
+     * Gets an independent processor with the same memory data, ROM pages,
+     * registers, flags, cycles, clock settings, execution settings and
+     * {@link CompiledProgram}, without devices, hooks, breakpoints nor
+     * events. Both share the memory pages until they
+     * write them, so forking costs the pages written afterwards instead of
+     * the whole memory
+     * @return  The new processor
+     */
+    public CPU fork(){
+        instructionLock.lock();
+        try {
+            return forkIdle();
+        } finally {
+            instructionLock.unlock();
+        }
+    }
+    
+    /**
+     * Internal use
+     * Like {@link #fork()} without taking the lock, for processors that are
+     * never run. Once every page is shared, many threads can fork them at
+     * the same time
+     */
+    CPU forkIdle(){
+        final CPU cpu = new CPU();
+        cpu.memory=memory.fork();
+        cpu.instMap=instMap;
+        cpu.state.copyFrom(state);
+        cpu.state.cycles=state.cycles;
+        cpu.clock.copySettings(clock);
+        cpu.executionMode=executionMode;
+        cpu.flagAnalysis=flagAnalysis;
+        cpu.superinstructions=superinstructions;
+        return cpu;
+    }
+    
     public Memory memory() {
         return memory;
     }
@@ -68,6 +137,215 @@ public final class CPU {
         return clock;
     }
     
+    /**
+     * Returns how {@link #run(long)} executes the instructions
+     * @return  The execution mode
+     */
+    public ExecutionMode executionMode() {
+        return executionMode;
+    }
+    
+    /**
+     * Specifies how {@link #run(long)} executes the instructions
+     * @param mode  The execution mode
+     * @return      This
+     */
+    public CPU executionMode(ExecutionMode mode) {
+        assert(mode!=null);
+        instructionLock.lock();
+        try {
+            executionMode=mode;
+            memory.blocks().invalidateAll();
+        } finally {
+            instructionLock.unlock();
+        }
+        return this;
+    }
+    
+    /**
+     * Returns how the blocks handle the dead flags
+     * @return  The flag analysis
+     */
+    public FlagAnalysis flagAnalysis() {
+        return flagAnalysis;
+    }
+    
+    /**
+     * Specifies how the blocks handle the dead flags, only used in
+     * {@link ExecutionMode#BLOCKS} and {@link ExecutionMode#TIERED}
+     * @param analysis  The flag analysis
+     * @return          This
+     */
+    public CPU flagAnalysis(FlagAnalysis analysis) {
+        assert(analysis!=null);
+        instructionLock.lock();
+        try {
+            flagAnalysis=analysis;
+            memory.blocks().elideFlags(analysis!=FlagAnalysis.OFF);
+        } finally {
+            instructionLock.unlock();
+        }
+        return this;
+    }
+    
+    /**
+     * Specifies who gets the divergences found by
+     * {@link FlagAnalysis#VERIFY}, without a listener the run throws an
+     * IllegalStateException
+     * @param listener  The listener, can be null
+     * @return          This
+     */
+    public CPU onFlagDivergence(FlagDivergence listener) {
+        onFlagDivergence=listener;
+        return this;
+    }
+    
+    /**
+     * Asserts the IRQ line, it can be called from any thread. The line is
+     * shared, it stays asserted until every assertion is released with
+     * {@link #releaseIrq()}. While it's asserted and the I flag is clear the
+     * processor enters the handler at {@link #IRQ_VECTOR} before the next
+     * instruction
+     * @return  This
+     */
+    public CPU assertIrq() {
+        LINES.addAndGet(this, 2);
+        return this;
+    }
+    
+    /**
+     * Releases one assertion of the IRQ line, it can be called from any
+     * thread
+     * @return  This
+     */
+    public CPU releaseIrq() {
+        LINES.getAndUpdate(this, (v) -> v>=2 ? v-2 : v);
+        return this;
+    }
+    
+    /**
+     * Checks if some device asserts the IRQ line
+     * @return  True if it's asserted
+     */
+    public boolean irqAsserted() {
+        return interruptLines>=2;
+    }
+    
+    /**
+     * Signals a non-maskable interrupt, it can be called from any thread.
+     * The processor enters the handler at {@link #NMI_VECTOR} before the
+     * next instruction, whatever the I flag. Several signals before that
+     * count as one
+     * @return  This
+     */
+    public CPU nmi() {
+        LINES.getAndUpdate(this, (v) -> v | 1);
+        return this;
+    }
+    
+    /**
+     * Internal use
+     * Enters the handler of the pending interrupt, if any. NMI wins over IRQ
+     */
+    private void serviceInterrupts(int lines) {
+        if ((lines&1)!=0){
+            LINES.getAndUpdate(this, (v) -> v & ~1);
+            InstructionMap.interrupt(this, NMI_VECTOR);
+        }else if ((state.status&State.I)==0){
+            InstructionMap.interrupt(this, IRQ_VECTOR);
+        }
+    }
+    
+    /**
+     * Returns the breakpoints of this processor
+     * @return  The debugger
+     */
+    public Debugger debugger() {
+        instructionLock.lock();
+        try {
+            if (debugger==null){
+                debugger=new Debugger(this);
+            }
+            return debugger;
+        } finally {
+            instructionLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the device events of this processor, they are dispatched by
+     * {@link #step()} and {@link #runUntil(StopCondition, long)}
+     * @return  The scheduler
+     */
+    public Scheduler scheduler() {
+        instructionLock.lock();
+        try {
+            if (scheduler==null){
+                scheduler=new Scheduler();
+            }
+            return scheduler;
+        } finally {
+            instructionLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the profile filled by the interpreter
+     * @return  The profile, can be null
+     */
+    public PairProfile pairProfile() {
+        return pairProfile;
+    }
+    
+    /**
+     * Specifies where the interpreter counts the opcode pairs it executes,
+     * the pairs executed by superinstructions are not counted
+     * @param profile   The profile, null to stop profiling
+     * @return          This
+     */
+    public CPU pairProfile(PairProfile profile) {
+        instructionLock.lock();
+        try {
+            pairProfile=profile;
+        } finally {
+            instructionLock.unlock();
+        }
+        return this;
+    }
+    
+    /**
+     * Specifies the opcode pairs the interpreter executes in one dispatch,
+     * see {@link PairProfile#select(int)}. The cycles and the instruction
+     * count are the same, superinstructions are not used by
+     * {@link #step()}, with hooks nor with a {@link StopCondition}
+     * @param pairs The pairs as first opcode << 8 | second opcode, none to
+     *              disable them
+     * @return      This
+     */
+    public CPU superinstructions(int... pairs) {
+        InstructionMap.Fused[][] table = null;
+        for (int pair : pairs) {
+            final InstructionMap.Fused inst = InstructionMap.fused(pair>>>8, pair);
+            if (pair>>>16!=0 || inst==null){
+                throw new IllegalArgumentException(String.format("There is no superinstruction for %04X!", pair));
+            }
+            if (table==null){
+                table = new InstructionMap.Fused[InstructionMap.OPCODES][];
+            }
+            if (table[pair>>>8]==null){
+                table[pair>>>8] = new InstructionMap.Fused[InstructionMap.OPCODES];
+            }
+            table[pair>>>8][pair&0xff] = inst;
+        }
+        instructionLock.lock();
+        try {
+            superinstructions=table;
+        } finally {
+            instructionLock.unlock();
+        }
+        return this;
+    }
+    
     /**
      * Setups this Processor quickly
      * @return This
@@ -77,10 +355,10 @@ public final class CPU {
             memory.reset();
         }
         if (clearFlags){
-            flags=new Flags();
+            state.resetFlags();
         }
         if(clearRegisters){
-            registers=new Registers();
+            state.resetRegisters();
         }
         registers.regPC(newPC);
         return this;
@@ -95,10 +373,10 @@ public final class CPU {
             memory.reset();
         }
         if (clearFlags){
-            flags=new Flags();
+            state.resetFlags();
         }
         if(clearRegisters){
-            registers=new Registers();
+            state.resetRegisters();
         }
         return this;
     }
@@ -107,13 +385,13 @@ public final class CPU {
      * Executes the code until que processor notifies a Stop (BRK or error)
      * I do not recommend to use this, you should make your own way to execute
      * the code and get a better control of when to stop the execution, obtain
-     * debug info, etc
+     * debug info, etc. To run many processors use a {@link CPUExecutor}
      * @param onFinished    Runnable to execute when finished
      * @return  This
      */
     public CPU executeAsync(Runnable onFinished){
         new Thread(() -> {
-            while(step()){
+            while(!run(ASYNC_BATCH).halted()){
                 //Nothing
             }
             if (onFinished!=null){
@@ -130,10 +408,24 @@ public final class CPU {
     public boolean step(){
         instructionLock.lock();
         try {
+            final int lines = interruptLines;
+            if (lines!=0){
+                serviceInterrupts(lines);
+            }
+            final HookTable h = hooks;
             final byte instr = popByte();
-            callPreInstr(instr);
+            if (h!=null){
+                hookPC=(state.pc-1)&0xffff;
+                callPreInstr(h, instr);
+            }
             final boolean result = instMap.eval(instr, this);
-            callPostInstr(instr);
+            if (h!=null){
+                callPostInstr(h, instr);
+            }
+            final Scheduler events = scheduler;
+            if (events!=null && events.due(state.cycles)){
+                events.dispatch(this, state.cycles);
+            }
             return result;
         } finally {
             instructionLock.unlock();
@@ -141,100 +433,320 @@ public final class CPU {
     }
     
     /**
-     * Gets a byte from zero page
-     * @return  The byte at pos: pop
+     * Executes instructions until at least CYCLEBUDGET clock cycles are
+     * consumed or the processor stops (BRK or error). The lock is taken
+     * once for the whole batch, so this is much cheaper than calling
+     * {@link #step()} in a loop
+     * @param cycleBudget   Cycles to execute, the last instruction may
+     *                      overshoot it
+     * @return  The cycles, instructions and why it stopped
      */
-    protected byte popZeroPage() {
-        return memory.get(popByte());
+    public RunResult run(long cycleBudget){
+        return runUntil(null, cycleBudget);
     }
     
     /**
-     * Gets a byte from zeropage + X
-     * @return  The byte at pos: pop+X
+     * Executes instructions until COND is met, CYCLEBUDGET clock cycles are
+     * consumed, a breakpoint is hit or the processor stops (BRK or error). In
+     * {@link ExecutionMode#BLOCKS} and {@link ExecutionMode#TIERED}, without
+     * hooks nor COND, whole blocks are executed and the budget may be
+     * overshot by one block. Hooks added by other threads are called from
+     * the next instruction, or from the next block, after which the
+     * instructions are interpreted. With {@link #scheduler()} events, the
+     * code runs uninterrupted until the earliest deadline and the due events
+     * are dispatched after the instruction or block that reaches it
+     * @param cond          Checked before every instruction, can be null
+     * @param cycleBudget   Cycles to execute, the last instruction may
+     *                      overshoot it
+     * @return  The cycles, instructions and why it stopped
      */
-    protected byte popZeroPageX(){
-        return memory.get( (popByte() + registers.regX()) &0xff);
+    public RunResult runUntil(StopCondition cond, long cycleBudget){
+        if (cycleBudget<0){
+            throw new IllegalArgumentException("Cycle budget cannot be negative!");
+        }
+        instructionLock.lock();
+        try {
+            final Scheduler events = scheduler;
+            if (events==null || events.isEmpty()){
+                return runSlice(cond, cycleBudget);
+            }
+            //Run until the next deadline, then dispatch the due events
+            final long start = clock.cycles();
+            long instructions = 0;
+            while(true){
+                final long now = clock.cycles();
+                final long slice = Math.max(0, Math.min(cycleBudget-(now-start),
+                        events.next()-now));
+                final RunResult result = runSlice(cond, slice);
+                instructions+=result.instructions();
+                events.dispatch(this, clock.cycles());
+                if (result.haltReason()!=RunResult.HaltReason.BUDGET_EXHAUSTED
+                        || clock.cycles()-start >= cycleBudget){
+                    return new RunResult(clock.cycles()-start, instructions,
+                            result.haltReason());
+                }
+            }
+        } finally {
+            instructionLock.unlock();
+        }
     }
     
     /**
-     * Gets a byte from zeropage + Y
-     * @return  The byte at pos: pop+Y
+     * Internal use
+     * Executes instructions until COND is met, CYCLEBUDGET clock cycles are
+     * consumed, a breakpoint is hit or the processor stops, the lock is
+     * already taken
      */
-    protected byte popZeroPageY(){
-        return memory.get( (popByte() + registers.regY()) &0xff);
-    }
-    
-    protected byte popAbsolute(){
-        return memory.get( popWord() );
-    }
-    
-    protected byte popAbsoluteY(){
-        return memory.get( popWord() + registers.regY());
-    }
-    
-    protected byte popAbsoluteX(){
-        return memory.get( popWord() + registers.regY());
+    private RunResult runSlice(StopCondition cond, long cycleBudget){
+        final long start = clock.cycles();
+        long instructions = 0;
+        final Debugger debug = debugger!=null && debugger.count()>0 ? debugger : null;
+        int resume = debug!=null ? debug.resume(state.pc) : -1;
+        if (executionMode!=ExecutionMode.INTERPRETER && cond==null && hooks==null
+                && debug==null){
+            final RunResult result = runBlocks(cycleBudget);
+            if (result.haltReason()!=RunResult.HaltReason.BUDGET_EXHAUSTED
+                    || hooks==null){
+                return result;
+            }
+            //Hooks were added, interpret the rest of the budget
+            instructions=result.instructions();
+        }
+        final InstructionMap.Fused[][] fused = cond==null && debug==null ? superinstructions : null;
+        final PairProfile profile = pairProfile;
+        int previous = -1;
+        RunResult.HaltReason reason;
+        while(true){
+            if (clock.cycles()-start >= cycleBudget){
+                reason=RunResult.HaltReason.BUDGET_EXHAUSTED;
+                break;
+            }
+            final int lines = interruptLines;
+            if (lines!=0){
+                serviceInterrupts(lines);
+            }
+            if (cond!=null && cond.stop(this)){
+                reason=RunResult.HaltReason.CONDITION;
+                break;
+            }
+            if (debug!=null){
+                if (state.pc!=resume && debug.breaks(state.pc)){
+                    reason=RunResult.HaltReason.BREAKPOINT;
+                    break;
+                }
+                resume=-1;
+            }
+            //Hook changes take effect here
+            final HookTable h = hooks;
+            final byte instr = popByte();
+            if (h==null && fused!=null && fused[instr&0xff]!=null){
+                final int pc = (state.pc-1)&0xffff;
+                final int second = InstructionMap.opcodeAt(this, pc+InstructionMap.length(instr));
+                if (second>=0 && fused[instr&0xff][second]!=null){
+                    instructions+=fused[instr&0xff][second].consume(this, pc);
+                    previous=-1;
+                    continue;
+                }
+            }
+            if (profile!=null){
+                if (previous>=0){
+                    profile.record(previous, instr);
+                }
+                previous=instr&0xff;
+            }
+            if (h!=null){
+                hookPC=(state.pc-1)&0xffff;
+                callPreInstr(h, instr);
+            }
+            final boolean result = instMap.eval(instr, this);
+            if (h!=null){
+                callPostInstr(h, instr);
+            }
+            if (!result){
+                if (instr==0){
+                    instructions++;
+                    reason=RunResult.HaltReason.BRK;
+                }else{
+                    reason=RunResult.HaltReason.UNKNOWN_OPCODE;
+                }
+                break;
+            }
+            instructions++;
+            if (debug!=null && debug.triggered()){
+                reason=RunResult.HaltReason.WATCHPOINT;
+                break;
+            }
+        }
+        return new RunResult(clock.cycles()-start, instructions, reason);
     }
     
     /**
-     * Pops the immediate byte
-     * @return The immediate byte
+     * Internal use
+     * Executes predecoded blocks, the lock is already taken
      */
-    protected byte popImmediate() {
-        return popByte();
+    private RunResult runBlocks(long cycleBudget){
+        final BlockCache cache = memory.blocks();
+        final boolean elide = flagAnalysis==FlagAnalysis.ELIDE;
+        final boolean verify = flagAnalysis==FlagAnalysis.VERIFY;
+        final boolean tiered = executionMode==ExecutionMode.TIERED && !verify;
+        final long start = clock.cycles();
+        long instructions = 0;
+        while(clock.cycles()-start < cycleBudget && hooks==null){
+            //Interrupts are taken between blocks
+            final int lines = interruptLines;
+            if (lines!=0){
+                serviceInterrupts(lines);
+            }
+            final BlockCache.Block block = cache.get(state.pc);
+            if (block==null){
+                //Unknown opcode or I/O page, interpret it
+                final byte instr = popByte();
+                if (!instMap.eval(instr, this)){
+                    if (instr==0){
+                        return new RunResult(clock.cycles()-start, instructions+1,
+                                RunResult.HaltReason.BRK);
+                    }
+                    return new RunResult(clock.cycles()-start, instructions,
+                            RunResult.HaltReason.UNKNOWN_OPCODE);
+                }
+                instructions++;
+                continue;
+            }
+            if (tiered && block.compiled==null && ++block.hits==BlockCompiler.HOT_THRESHOLD){
+                block.compiled=BlockCompiler.compile(block, elide);
+            }
+            final int n;
+            if (block.compiled!=null){
+                n = block.compiled.execute(this);
+            }else if (verify && block.flagFree!=0){
+                n = verifyBlock(cache, block);
+            }else{
+                n = executeBlock(cache, block, elide ? block.optimized : block.handlers);
+            }
+            instructions+=n;
+            if (block.opcodes[n-1]==0){
+                return new RunResult(clock.cycles()-start, instructions,
+                        RunResult.HaltReason.BRK);
+            }
+        }
+        return new RunResult(clock.cycles()-start, instructions,
+                RunResult.HaltReason.BUDGET_EXHAUSTED);
     }
     
-    protected byte popIndirectX(){
-        int zp = ( popZeroPage() + registers.regX()) &0xff;
-        int pos = memory.getWord(zp);
-        return memory.get(pos);
+    /**
+     * Internal use
+     * Executes the block with the given handlers, stops after BRK or if the
+     * block modifies code
+     * @return  The number of instructions executed
+     */
+    private int executeBlock(BlockCache cache, BlockCache.Block block,
+            InstructionMap.Instruction[] handlers){
+        final int version = cache.version();
+        for (int i = 0; i < block.length; i++) {
+            state.pc=block.nextPC[i];
+            handlers[i].consume(this, block.operands[i]);
+            if (block.opcodes[i]==0 || cache.version()!=version){
+                //Self-modifying code, the rest of the block may be stale
+                return i+1;
+            }
+        }
+        return block.length;
     }
     
-    protected byte popIndirectY(){
-        int zp = popZeroPage() ;
-        int pos = memory.getWord(zp);
-        return memory.get(pos + registers.regY());
+    /**
+     * Internal use
+     * Executes the block without the flag-free variants, then runs the
+     * optimized block on a copy of the processor and compares the flags.
+     * The blocks that access I/O pages are not checked, the devices cannot
+     * be read twice
+     * @return  The number of instructions executed
+     */
+    private int verifyBlock(BlockCache cache, BlockCache.Block block){
+        if (reference==null){
+            reference=CPU.newInstance();
+        }
+        reference.memory.copyFrom(memory);
+        reference.state.copyFrom(state);
+        final int io = memory.ioAccesses();
+        
+        final int n = executeBlock(cache, block, block.handlers);
+        if (memory.ioAccesses()!=io){
+            return n;
+        }
+        for (int i = 0; i < n; i++) {
+            reference.state.pc=block.nextPC[i];
+            block.optimized[i].consume(reference, block.operands[i]);
+        }
+        if (reference.state.flags()!=state.flags()){
+            if (onFlagDivergence!=null){
+                onFlagDivergence.diverged(this, block.start, flags.value(),
+                        reference.flags.value());
+            }else{
+                throw new IllegalStateException(String.format(
+                        "Flags diverged in block $%04X: expected %02X, was %02X!",
+                        block.start, flags.value(), reference.flags.value()));
+            }
+        }
+        return n;
     }
     
     /**
-     * Pops a byte from memory
+     * Pops a byte from memory, the program counter is left pointing to the
+     * next byte
      */
     protected byte popByte() {
-        return memory.get(registers.incRegPC());
+        final int pc = state.pc;
+        state.pc=(pc+1)&0xffff;
+        return memory.get(pc);
     }
     
     /**
-     * Pops a word from memory
+     * Pops a word from memory, the program counter is left pointing to the
+     * next byte
      */
     protected int popWord() {
-        try{
-            return memory.getWord(registers.incRegPC());
-        }finally{
-            registers.incRegPC();
-        }
+        final int pc = state.pc;
+        state.pc=(pc+2)&0xffff;
+        return memory.getWord(pc);
     }
 
-    private void callPreInstr(byte instr) {
-        preInstr.forEach((preInstruction) -> {
-            preInstruction.execute(this, instr);
-        });
+    private void callPreInstr(HookTable h, byte instr) {
+        final PreInstruction pre = h.pre[instr&0xff];
+        if (pre!=null){
+            pre.execute(this, instr);
+        }
     }
 
-    private void callPostInstr(byte instr) {
-        postInstr.forEach((postInstruction) -> {
-            postInstruction.execute(this, instr);
-        });
+    private void callPostInstr(HookTable h, byte instr) {
+        final PostInstruction post = h.post[instr&0xff];
+        if (post!=null){
+            post.execute(this, instr);
+        }
     }
-
+    
     /**
-     * Add a given preInstruction handler
+     * Add a given preInstruction handler, called before every instruction
      * @param pre   Interface that gets called before an instruction is executed
      * @return  This
      * @throws AssertionError When PRE==null
      */
     public CPU addPreInstruction(PreInstruction pre){
+        return addPreInstruction(pre, null);
+    }
+    
+    /**
+     * Add a given preInstruction handler, called before the instructions
+     * accepted by FILTER. It can be called from any thread, the processor
+     * uses it from the next instruction
+     * @param pre       Interface that gets called before an instruction is executed
+     * @param filter    The opcodes and addresses, null for every instruction.
+     *                  It's copied
+     * @return  This
+     * @throws AssertionError When PRE==null
+     */
+    public CPU addPreInstruction(PreInstruction pre, HookFilter filter){
         assert(pre!=null);
-        preInstr.add(pre);
+        addHook(new HookEntry(pre, null, filter));
         return this;
     }
     
@@ -246,19 +758,33 @@ public final class CPU {
      */
     public CPU removePreInstruction(PreInstruction pre){
         assert(pre!=null);
-        preInstr.remove(pre);
+        removeHook(pre);
         return this;
     }
     
     /**
-     * Add a given postInstruction handler
+     * Add a given postInstruction handler, called after every instruction
      * @param post   Interface that gets called after an instruction is executed
      * @return  This
-     * @throws AssertionError   When PRE==null
+     * @throws AssertionError   When POST==null
      */
     public CPU addPostInstruction(PostInstruction post){
+        return addPostInstruction(post, null);
+    }
+    
+    /**
+     * Add a given postInstruction handler, called after the instructions
+     * accepted by FILTER. It can be called from any thread, the processor
+     * uses it from the next instruction
+     * @param post      Interface that gets called after an instruction is executed
+     * @param filter    The opcodes and addresses, null for every instruction.
+     *                  It's copied
+     * @return  This
+     * @throws AssertionError   When POST==null
+     */
+    public CPU addPostInstruction(PostInstruction post, HookFilter filter){
         assert(post!=null);
-        postInstr.add(post);
+        addHook(new HookEntry(null, post, filter));
         return this;
     }
     
@@ -266,14 +792,183 @@ public final class CPU {
      * Remove a given postInstruction handler
      * @param post   Interface that gets called after an instruction is executed
      * @return  This
-     * @throws AssertionError   When PRE==null
+     * @throws AssertionError   When POST==null
      */
     public CPU removePostInstruction(PostInstruction post){
         assert(post!=null);
-        postInstr.add(post);
+        removeHook(post);
         return this;
     }
     
+    private void addHook(HookEntry entry) {
+        synchronized(hookEntries){
+            hookEntries.add(entry);
+            hooks=HookTable.build(hookEntries);
+        }
+    }
+    
+    /**
+     * Removes the first registration of HOOK
+     */
+    private void removeHook(Object hook) {
+        synchronized(hookEntries){
+            for (int i = 0; i < hookEntries.size(); i++) {
+                final HookEntry e = hookEntries.get(i);
+                if (e.pre==hook || e.post==hook){
+                    hookEntries.remove(i);
+                    hooks=HookTable.build(hookEntries);
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Internal use
+     * A registered hook and a copy of its filter
+     */
+    private static final class HookEntry {
+        final PreInstruction pre;
+        final PostInstruction post;
+        //null accepts every opcode or address
+        final boolean[] opcodes;
+        final int[] ranges;
+        
+        HookEntry(PreInstruction pre, PostInstruction post, HookFilter filter) {
+            this.pre = pre;
+            this.post = post;
+            this.opcodes = filter==null || filter.opcodes==null ? null : filter.opcodes.clone();
+            this.ranges = filter==null || filter.ranges.length==0 ? null : filter.ranges.clone();
+        }
+        
+        boolean accepts(int opcode) {
+            return opcodes==null || opcodes[opcode];
+        }
+    }
+    
+    /**
+     * Internal use
+     * The hooks of every opcode composed in one call, the opcodes without
+     * hooks are null. It's immutable, rebuilt when the hooks change
+     */
+    private static final class HookTable {
+        final PreInstruction[] pre = new PreInstruction[InstructionMap.OPCODES];
+        final PostInstruction[] post = new PostInstruction[InstructionMap.OPCODES];
+        
+        static HookTable build(List<HookEntry> entries) {
+            if (entries.isEmpty()){
+                return null;
+            }
+            final HookTable t = new HookTable();
+            for (int op = 0; op < InstructionMap.OPCODES; op++) {
+                for (HookEntry e : entries) {
+                    if (!e.accepts(op)){
+                        continue;
+                    }
+                    if (e.pre!=null){
+                        t.pre[op] = chainPre(t.pre[op], rangedPre(e.pre, e.ranges));
+                    }else{
+                        t.post[op] = chainPost(t.post[op], rangedPost(e.post, e.ranges));
+                    }
+                }
+            }
+            return t;
+        }
+        
+        private static PreInstruction chainPre(PreInstruction first, PreInstruction second) {
+            if (first==null){
+                return second;
+            }
+            return (cpu, instr) -> {
+                first.execute(cpu, instr);
+                second.execute(cpu, instr);
+            };
+        }
+        
+        private static PostInstruction chainPost(PostInstruction first, PostInstruction second) {
+            if (first==null){
+                return second;
+            }
+            return (cpu, instr) -> {
+                first.execute(cpu, instr);
+                second.execute(cpu, instr);
+            };
+        }
+        
+        private static PreInstruction rangedPre(PreInstruction pre, int[] ranges) {
+            if (ranges==null){
+                return pre;
+            }
+            return (cpu, instr) -> {
+                if (inRanges(ranges, cpu.hookPC)){
+                    pre.execute(cpu, instr);
+                }
+            };
+        }
+        
+        private static PostInstruction rangedPost(PostInstruction post, int[] ranges) {
+            if (ranges==null){
+                return post;
+            }
+            return (cpu, instr) -> {
+                if (inRanges(ranges, cpu.hookPC)){
+                    post.execute(cpu, instr);
+                }
+            };
+        }
+        
+        private static boolean inRanges(int[] ranges, int pc) {
+            for (int i = 0; i < ranges.length; i+=2) {
+                if (pc>=ranges[i] && pc<=ranges[i+1]){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * The instructions a hook is called for: the given opcodes (every opcode
+     * by default) at the given addresses (every address by default)
+     */
+    public static final class HookFilter {
+        private boolean[] opcodes;
+        //Pairs of first and last address
+        private int[] ranges = new int[0];
+        
+        /**
+         * Accepts the given opcodes too
+         * @param opcodes   The opcodes
+         * @return          This
+         */
+        public HookFilter opcodes(int... opcodes) {
+            if (this.opcodes==null){
+                this.opcodes = new boolean[InstructionMap.OPCODES];
+            }
+            for (int op : opcodes) {
+                this.opcodes[op&0xff] = true;
+            }
+            return this;
+        }
+        
+        /**
+         * Accepts the instructions that start between START and END too,
+         * both included
+         * @param start First address
+         * @param end   Last address
+         * @return      This
+         */
+        public HookFilter pcRange(int start, int end) {
+            if (start<0 || end>0xffff || start>end){
+                throw new IllegalArgumentException("Invalid address range!");
+            }
+            ranges = Arrays.copyOf(ranges, ranges.length+2);
+            ranges[ranges.length-2] = start;
+            ranges[ranges.length-1] = end;
+            return this;
+        }
+    }
+    
     /**
      * Interface that gets called before an instruction is executed
      */
@@ -287,4 +982,70 @@ public final class CPU {
     public static interface PostInstruction{
         public void execute(CPU cpu, byte instr);
     }
+    
+    /**
+     * Interface that decides when {@link #runUntil(StopCondition, long)}
+     * must stop, it's checked before every instruction
+     */
+    public static interface StopCondition{
+        public boolean stop(CPU cpu);
+    }
+    
+    /**
+     * Interface that gets the divergences found by
+     * {@link FlagAnalysis#VERIFY}
+     */
+    public static interface FlagDivergence{
+        /**
+         * @param cpu       The processor
+         * @param pc        Start address of the block
+         * @param expected  Flags without the optimization
+         * @param actual    Flags with the optimization
+         */
+        public void diverged(CPU cpu, int pc, byte expected, byte actual);
+    }
+    
+    /**
+     * How the blocks handle the flags that are overwritten before they are
+     * read, see {@link FlagLiveness}
+     */
+    public static enum FlagAnalysis {
+        /**
+         * Every instruction updates its flags
+         */
+        OFF,
+        /**
+         * Instructions whose N and Z are dead do not update them
+         */
+        ELIDE,
+        /**
+         * Executes the blocks without the optimization, then the optimized
+         * blocks on a copy of the processor, reporting the blocks that end
+         * with different {@link Flags#value()} to
+         * {@link CPU#onFlagDivergence(FlagDivergence)}. Blocks are not
+         * compiled
+         */
+        VERIFY
+    }
+    
+    /**
+     * How the instructions are executed
+     */
+    public static enum ExecutionMode {
+        /**
+         * Fetches and decodes every instruction before executing it
+         */
+        INTERPRETER,
+        /**
+         * Decodes straight-line code into cached blocks and executes a whole
+         * block per dispatch. Used by {@link #run(long)} when there are no
+         * hooks, {@link #step()} always interprets
+         */
+        BLOCKS,
+        /**
+         * Like {@link #BLOCKS}, but the blocks executed a thousand times are
+         * compiled to JVM bytecode. Writes into their code deoptimize them
+         */
+        TIERED
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many processors on a bounded pool of threads. Every program runs a
+ * slice of cycles and goes back to the end of the queue, so a program that
+ * never stops cannot starve the rest. The futures complete with the
+ * accumulated {@link RunResult} when the program stops, and can be cancelled,
+ * the program stops at the end of the current slice.
+ * A processor must be submitted only once at a time
+ * @author Karel
+ */
+public final class CPUExecutor implements AutoCloseable {
+    /**
+     * Default cycles executed before yielding to the other programs
+     */
+    public static final long DEFAULT_SLICE = 10_000;
+    private static final AtomicInteger pools = new AtomicInteger();
+    private final ExecutorService pool;
+    private final long slice;
+
+    /**
+     * Creates an executor with one thread per available processor
+     */
+    public CPUExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE);
+    }
+
+    /**
+     * Creates an executor
+     * @param threads   Number of threads
+     * @param slice     Cycles executed before yielding to the other programs
+     */
+    public CPUExecutor(int threads, long slice) {
+        if (threads<=0){
+            throw new IllegalArgumentException("At least one thread is needed!");
+        }
+        if (slice<=0){
+            throw new IllegalArgumentException("The slice must be positive!");
+        }
+        this.slice = slice;
+        final String name = "CPUExecutor-"+pools.incrementAndGet()+"-";
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, (r) -> {
+            final Thread t = new Thread(r, name+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Runs CPU until it stops (BRK, unknown opcode, breakpoint...)
+     * @param cpu   The processor
+     * @return      The result of the whole run
+     */
+    public CompletableFuture<RunResult> submit(CPU cpu) {
+        return submit(cpu, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs CPU until COND is met, CYCLEBUDGET clock cycles are consumed or it
+     * stops, like {@link CPU#runUntil(CPU.StopCondition, long)}
+     * @param cpu           The processor
+     * @param cond          Checked before every instruction, can be null
+     * @param cycleBudget   Cycles to execute
+     * @return              The result of the whole run
+     */
+    public CompletableFuture<RunResult> submit(CPU cpu, CPU.StopCondition cond, long cycleBudget) {
+        assert cpu!=null;
+        if (cycleBudget<0){
+            throw new IllegalArgumentException("Cycle budget cannot be negative!");
+        }
+        final Execution e = new Execution(cpu, cond, cycleBudget);
+        pool.execute(e);
+        return e.future;
+    }
+
+    /**
+     * Stops accepting programs, the running ones are cancelled at the end of
+     * their current slice
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Waits until the threads finish after {@link #shutdown()}
+     * @param timeout   The maximum time to wait
+     * @param unit      The unit of TIMEOUT
+     * @return          true if they finished
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    /**
+     * Internal use
+     * A program, runs one slice every time it's executed
+     */
+    private final class Execution implements Runnable {
+        final CompletableFuture<RunResult> future = new CompletableFuture<>();
+        final CPU cpu;
+        final CPU.StopCondition cond;
+        final long budget;
+        long cycles;
+        long instructions;
+
+        Execution(CPU cpu, CPU.StopCondition cond, long budget) {
+            this.cpu = cpu;
+            this.cond = cond;
+            this.budget = budget;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()){
+                //Cancelled
+                return;
+            }
+            try {
+                final RunResult r = cpu.runUntil(cond, Math.min(slice, budget-cycles));
+                cycles+=r.cycles();
+                instructions+=r.instructions();
+                if (r.haltReason()!=RunResult.HaltReason.BUDGET_EXHAUSTED || cycles>=budget){
+                    future.complete(new RunResult(cycles, instructions, r.haltReason()));
+                }else{
+                    //Yield to the other programs
+                    pool.execute(this);
+                }
+            } catch (RejectedExecutionException ex) {
+                future.cancel(false);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+}
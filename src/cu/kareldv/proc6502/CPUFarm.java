@@ -0,0 +1,274 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs the same program against many inputs in parallel. Every work item
+ * gets its own {@link CPU#fork()} of the template processor, taken when the
+ * farm is created. The items are split on a {@link ForkJoinPool}, idle threads steal
+ * the pending halves from the busy ones, and the results are given to the
+ * sink as they finish
+ * @author Karel
+ * @param <T>   The type of the work items
+ * @param <R>   The type of the values extracted from the processors
+ */
+public final class CPUFarm<T, R> {
+    //Never run, forked by the pool threads without locking
+    private final CPU template;
+    private final ForkJoinPool pool;
+    private Input<T> input = (cpu, item) -> {};
+    private Output<T, R> output = (cpu, item, result) -> null;
+    private CPU.StopCondition cond;
+    private long cycleBudget = Long.MAX_VALUE;
+
+    /**
+     * Creates a farm on the common pool
+     * @param template  The processor every item starts from, it's copied
+     */
+    public CPUFarm(CPU template) {
+        this(template, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a farm
+     * @param template  The processor every item starts from, it's copied
+     * @param pool      The threads
+     */
+    public CPUFarm(CPU template, ForkJoinPool pool) {
+        assert template!=null && pool!=null;
+        this.template = template.fork();
+        this.pool = pool;
+    }
+
+    /**
+     * Specifies how an item is written into its processor, eg: into memory
+     * @param input The input setup
+     * @return      This
+     */
+    public CPUFarm<T, R> input(Input<T> input) {
+        assert input!=null;
+        this.input = input;
+        return this;
+    }
+
+    /**
+     * Specifies what is read from a processor after it stops, eg: a memory
+     * region or the registers
+     * @param output    The output extraction
+     * @return          This
+     */
+    public CPUFarm<T, R> output(Output<T, R> output) {
+        assert output!=null;
+        this.output = output;
+        return this;
+    }
+
+    /**
+     * Specifies when every item stops, like
+     * {@link CPU#runUntil(CPU.StopCondition, long)}
+     * @param cond          Checked before every instruction, can be null
+     * @param cycleBudget   Cycles each item can execute
+     * @return              This
+     */
+    public CPUFarm<T, R> stopWhen(CPU.StopCondition cond, long cycleBudget) {
+        if (cycleBudget<0){
+            throw new IllegalArgumentException("Cycle budget cannot be negative!");
+        }
+        this.cond = cond;
+        this.cycleBudget = cycleBudget;
+        return this;
+    }
+
+    /**
+     * Runs every item and waits until they finish
+     * @param items The work items
+     * @param sink  Receives the results as they finish, from the pool threads
+     * @return      The totals of the batch
+     */
+    public Report run(List<T> items, Consumer<Result<T, R>> sink) {
+        assert items!=null && sink!=null;
+        final Report report = new Report();
+        final long start = System.nanoTime();
+        pool.invoke(new Split(items, 0, items.size(), sink, report));
+        report.nanos = System.nanoTime()-start;
+        return report;
+    }
+
+    /**
+     * Internal use
+     * Runs one item on its own copy of the template
+     */
+    private void runItem(List<T> items, int index, Consumer<Result<T, R>> sink, Report report) {
+        final T item = items.get(index);
+        final CPU cpu = template.forkIdle();
+        input.setup(cpu, item);
+        final RunResult result = cpu.runUntil(cond, cycleBudget);
+        report.items.increment();
+        report.cycles.add(result.cycles());
+        report.instructions.add(result.instructions());
+        sink.accept(new Result<>(index, item, result, output.extract(cpu, item, result)));
+    }
+
+    /**
+     * Internal use
+     * Splits the items in halves down to one item
+     */
+    private final class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<T> items;
+        private final int from, to;
+        private final Consumer<Result<T, R>> sink;
+        private final Report report;
+
+        Split(List<T> items, int from, int to, Consumer<Result<T, R>> sink, Report report) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.sink = sink;
+            this.report = report;
+        }
+
+        @Override
+        protected void compute() {
+            if (to-from<=1){
+                if (to>from){
+                    runItem(items, from, sink, report);
+                }
+                return;
+            }
+            final int mid = (from+to)>>>1;
+            invokeAll(new Split(items, from, mid, sink, report),
+                    new Split(items, mid, to, sink, report));
+        }
+    }
+
+    /**
+     * Writes a work item into its processor
+     * @param <T>   The type of the work items
+     */
+    public static interface Input<T>{
+        void setup(CPU cpu, T item);
+    }
+
+    /**
+     * Reads the value of a work item from its processor after it stops
+     * @param <T>   The type of the work items
+     * @param <R>   The type of the values
+     */
+    public static interface Output<T, R>{
+        R extract(CPU cpu, T item, RunResult result);
+    }
+
+    /**
+     * The result of a work item
+     * @param <T>   The type of the work items
+     * @param <R>   The type of the values
+     */
+    public static final class Result<T, R> {
+        private final int index;
+        private final T item;
+        private final RunResult run;
+        private final R value;
+
+        Result(int index, T item, RunResult run, R value) {
+            this.index = index;
+            this.item = item;
+            this.run = run;
+            this.value = value;
+        }
+
+        /**
+         * Position of the item in the list
+         * @return  The index
+         */
+        public int index() {
+            return index;
+        }
+
+        public T item() {
+            return item;
+        }
+
+        /**
+         * Cycles, instructions and why the item stopped
+         * @return  The run result
+         */
+        public RunResult run() {
+            return run;
+        }
+
+        /**
+         * The value read by the {@link Output}
+         * @return  The value
+         */
+        public R value() {
+            return value;
+        }
+    }
+
+    /**
+     * Totals of a batch
+     */
+    public static final class Report {
+        private final LongAdder items = new LongAdder();
+        private final LongAdder cycles = new LongAdder();
+        private final LongAdder instructions = new LongAdder();
+        private long nanos;
+
+        Report() {
+        }
+
+        public long items() {
+            return items.sum();
+        }
+
+        public long cycles() {
+            return cycles.sum();
+        }
+
+        public long instructions() {
+            return instructions.sum();
+        }
+
+        /**
+         * Wall-clock time of the batch
+         * @return  The nanoseconds
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * Instructions executed per second by all the threads together
+         * @return  The instructions per second
+         */
+        public double instructionsPerSecond() {
+            return nanos>0 ? instructions()*1e9/nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName()+"[items="+items()+", cycles="+cycles()
+                    +", instructions="+instructions()+", nanos="+nanos+"]";
+        }
+    }
+}
@@ -15,48 +15,87 @@
  */
 package cu.kareldv.proc6502;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
- *
+ * Counts the clock cycles consumed by the processor. In {@link Mode#VIRTUAL}
+ * the clock never sleeps, the emulated time is derived from the cycle
+ * counter and the {@link #frequency()}, so it's deterministic and does not
+ * depend on the host. In {@link Mode#PACED} the clock follows the host time
+ * at the given frequency, sleeping once every slice of cycles. In
+ * {@link Mode#SLEEP} every tick waits sleepTime milliseconds
  * @author Karel
  */
 public final class Clock {
-    private boolean noSleep;
+    /**
+     * Default frequency used to compute the virtual time, 1 MHz
+     */
+    public static final long DEFAULT_FREQUENCY = 1_000_000;
+    /**
+     * Default number of cycles between two synchronizations with the host
+     * time in {@link Mode#PACED}
+     */
+    public static final long DEFAULT_SLICE = 4096;
+    /**
+     * Default maximum delay, in nanoseconds, that {@link Mode#PACED} catches
+     * up after a host stall, 100 ms
+     */
+    public static final long DEFAULT_MAX_LAG = 100_000_000;
+    private static final long NANOS_PER_SECOND = 1_000_000_000;
+
+    private Mode mode;
     private long sleepTime;
+    //The cycle counter lives in the execution state of the processor
+    private final State state;
+    private long frequency = DEFAULT_FREQUENCY;
+    //Ticks take the slow path once cycles reaches nextSync
+    private long nextSync;
+    private long sliceCycles = DEFAULT_SLICE;
+    private long maxLag = DEFAULT_MAX_LAG;
+    private long baseNanos, baseCycles;
+    private boolean resync;
+    private volatile boolean woken;
+    private volatile Thread pacing;
     private final Object sync = new Object();
 
     /**
-     * Default constructor, initializes with sleepTime=0
+     * Default constructor, initializes a virtual clock (sleepTime=0)
      */
     public Clock() {
+        this(new State());
+    }
+
+    /**
+     * Internal use
+     * Creates a virtual clock that counts the cycles of STATE
+     */
+    Clock(State state) {
+        this.state=state;
         //No Sleep
-        noSleep=true;
+        mode(Mode.VIRTUAL);
         sleepTime=0;
     }
 
     /**
      * Second constructor, initialices with the given sleepTime
-     * @param sleepTime 
+     * @param sleepTime Milliseconds per tick, 0 for a virtual clock
      */
     public Clock(long sleepTime) {
-        if (sleepTime<0){
-            throw new IllegalArgumentException("Sleep time cannot be negative!");
-        }
-        if (sleepTime==0){
-            noSleep=true;
-            this.sleepTime=sleepTime;
-        }else{
-            noSleep=false;
-            this.sleepTime=sleepTime;
-        }
+        this.state=new State();
+        sleepTime(sleepTime);
     }
-    
+
     /**
      * Consumes one clock tick
      * @return  This
      */
     public Clock consumeTick() {
-        if(noSleep)return this;
-        
+        if(++state.cycles<nextSync)return this;
+
+        if (mode==Mode.PACED){
+            pace();
+            return this;
+        }
         synchronized(sync){
             try {
                 sync.wait(sleepTime);
@@ -66,15 +105,19 @@ public final class Clock {
         }
         return this;
     }
-    
+
     /**
      * Consumes some clock ticks
      * @param tickNum   The number of ticks
      * @return          This
      */
     public Clock consumeTicks(int tickNum) {
-        if(noSleep)return this;
-        
+        if((state.cycles+=tickNum)<nextSync)return this;
+
+        if (mode==Mode.PACED){
+            pace();
+            return this;
+        }
         synchronized(sync) {
             try {
                 sync.wait(sleepTime*tickNum);
@@ -84,7 +127,131 @@ public final class Clock {
         }
         return this;
     }
-    
+
+    /**
+     * Returns the number of clock cycles consumed since this clock was
+     * created. The counter is updated by the thread executing the processor
+     * @return  The cycles
+     */
+    public long cycles() {
+        return state.cycles;
+    }
+
+    /**
+     * Returns the emulated time, in nanoseconds, that corresponds to the
+     * consumed cycles at the current {@link #frequency()}
+     * @return  The virtual time in nanoseconds
+     */
+    public long virtualNanos() {
+        return toNanos(state.cycles);
+    }
+
+    /**
+     * Returns the frequency of the emulated processor, in Hz
+     * @return  The frequency
+     */
+    public long frequency() {
+        return frequency;
+    }
+
+    /**
+     * Specifies the frequency of the emulated processor, in Hz. It's used
+     * to convert cycles to time and as the speed of {@link Mode#PACED}
+     * @param hz    The frequency
+     * @return      This
+     */
+    public Clock frequency(long hz) {
+        if (hz<=0) {
+            throw new IllegalArgumentException("Frequency must be positive!");
+        }
+        frequency=hz;
+        resync=true;
+        return this;
+    }
+
+    /**
+     * Runs this clock in real time at the given frequency, see
+     * {@link Mode#PACED}
+     * @param hz    The frequency, in Hz, eg: 1_023_000 for 1.023 MHz
+     * @return      This
+     */
+    public Clock paced(long hz) {
+        frequency(hz);
+        sleepTime=0;
+        mode(Mode.PACED);
+        return this;
+    }
+
+    /**
+     * Returns the number of cycles executed between two synchronizations
+     * with the host time in {@link Mode#PACED}
+     * @return  The slice size, in cycles
+     */
+    public long sliceCycles() {
+        return sliceCycles;
+    }
+
+    /**
+     * Specifies the number of cycles executed between two synchronizations
+     * with the host time in {@link Mode#PACED}. Bigger slices sleep less
+     * often but with a coarser granularity
+     * @param cycles    The slice size, in cycles
+     * @return          This
+     */
+    public Clock sliceCycles(long cycles) {
+        if (cycles<=0) {
+            throw new IllegalArgumentException("Slice must be positive!");
+        }
+        sliceCycles=cycles;
+        if (mode==Mode.PACED){
+            nextSync=Math.min(nextSync, state.cycles+cycles);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the maximum delay, in nanoseconds, that {@link Mode#PACED}
+     * catches up running at full speed
+     * @return  The delay, in nanoseconds
+     */
+    public long maxLag() {
+        return maxLag;
+    }
+
+    /**
+     * Specifies the maximum delay, in nanoseconds, that {@link Mode#PACED}
+     * catches up running at full speed after a host stall (GC, debugger,
+     * slow device...), if the delay is bigger the lost time is dropped
+     * @param nanos The delay, in nanoseconds
+     * @return      This
+     */
+    public Clock maxLag(long nanos) {
+        if (nanos<0) {
+            throw new IllegalArgumentException("Max lag cannot be negative!");
+        }
+        maxLag=nanos;
+        return this;
+    }
+
+    /**
+     * Takes the current host time as the reference of {@link Mode#PACED},
+     * useful after the processor was paused so it does not run at full
+     * speed to catch up
+     * @return  This
+     */
+    public Clock resync() {
+        resync=true;
+        return this;
+    }
+
+    /**
+     * Returns how this clock consumes the ticks
+     * @return  The mode
+     */
+    public Mode mode() {
+        return mode;
+    }
+
     /**
      * Returns the sleep time, in milliseconds
      * @return The sleep time
@@ -92,9 +259,10 @@ public final class Clock {
     public long sleepTime() {
         return sleepTime;
     }
-    
+
     /**
-     * Specifies the sleep time, in milliseconds
+     * Specifies the sleep time, in milliseconds. Zero makes this clock
+     * virtual
      * @param sleep The sleep time in milliseconds
      * @return      This
      */
@@ -102,17 +270,17 @@ public final class Clock {
         if (sleep<0) {
             throw new IllegalArgumentException("Sleep time cannot be negative!");
         }
-        
+
         if (sleep==0){
-            noSleep=true;
+            mode(Mode.VIRTUAL);
             sleepTime=sleep; //0
         }else{
-            noSleep=false;
+            mode(Mode.SLEEP);
             sleepTime=sleep;
         }
         return this;
     }
-    
+
     /**
      * Kills the current Clock sleep
      * @return This
@@ -121,9 +289,95 @@ public final class Clock {
         synchronized(sync) {
             sync.notifyAll();
         }
+        final Thread t = pacing;
+        if (t!=null){
+            woken=true;
+            LockSupport.unpark(t);
+        }
         return this;
     }
 
+    /**
+     * Internal use
+     * Uses the mode, sleep time, frequency, slice and max lag of OTHER, the
+     * cycles must be copied first
+     */
+    void copySettings(Clock other) {
+        sleepTime=other.sleepTime;
+        frequency=other.frequency;
+        sliceCycles=other.sliceCycles;
+        maxLag=other.maxLag;
+        mode(other.mode);
+    }
+
+    /**
+     * Internal use
+     * Changes the mode and the point where ticks take the slow path
+     */
+    private void mode(Mode m) {
+        mode=m;
+        switch(m){
+            case VIRTUAL:
+                nextSync=Long.MAX_VALUE;
+                break;
+            case PACED:
+                resync=true;
+                nextSync=state.cycles;
+                break;
+            case SLEEP:
+                nextSync=Long.MIN_VALUE;
+                break;
+        }
+    }
+
+    /**
+     * Internal use
+     * Sleeps until the host time reaches the time of the consumed cycles,
+     * called once per slice
+     */
+    private void pace() {
+        nextSync=state.cycles+sliceCycles;
+        long now = System.nanoTime();
+        if (resync){
+            resync=false;
+            baseNanos=now;
+            baseCycles=state.cycles;
+            return;
+        }
+
+        final long target = baseNanos+toNanos(state.cycles-baseCycles);
+        if (now-target > maxLag){
+            //Too late, drop the lost time instead of running at full speed
+            baseNanos=now;
+            baseCycles=state.cycles;
+            return;
+        }
+
+        pacing=Thread.currentThread();
+        try {
+            while(target-now > 0 && !woken){
+                LockSupport.parkNanos(sync, target-now);
+                now=System.nanoTime();
+            }
+        } finally {
+            pacing=null;
+        }
+        if (woken){
+            woken=false;
+            resync=true;
+        }
+    }
+
+    /**
+     * Internal use
+     * Converts cycles to nanoseconds at the current frequency
+     */
+    private long toNanos(long cycles) {
+        //Split to avoid overflowing cycles*NANOS_PER_SECOND
+        return (cycles/frequency)*NANOS_PER_SECOND
+                + (cycles%frequency)*NANOS_PER_SECOND/frequency;
+    }
+
     /**
      * Check wheter this object is equals OBJ
      * @param obj   Another object
@@ -136,6 +390,28 @@ public final class Clock {
 
     @Override
     public String toString() {
-        return getClass().getSimpleName()+"[sleepTime="+sleepTime+"]@"+hashCode();
+        return getClass().getSimpleName()+"[mode="+mode+", sleepTime="+sleepTime
+                +", cycles="+state.cycles+"]@"+hashCode();
+    }
+
+    /**
+     * How the clock consumes the ticks
+     */
+    public static enum Mode {
+        /**
+         * Never sleeps, only counts the cycles
+         */
+        VIRTUAL,
+        /**
+         * Follows the host time at the given frequency. Execution runs in
+         * slices of {@link #sliceCycles()} cycles, after every slice the
+         * clock sleeps until the host time catches up with the emulated
+         * time, delays smaller than {@link #maxLag()} are recovered
+         */
+        PACED,
+        /**
+         * Sleeps sleepTime milliseconds per tick
+         */
+        SLEEP
     }
 }
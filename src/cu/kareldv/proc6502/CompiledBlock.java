@@ -0,0 +1,58 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Internal use
+ * Base of the classes generated for the hot blocks in
+ * {@link CPU.ExecutionMode#TIERED}, see {@link BlockCompiler}. It's public
+ * only because the generated classes live in their own class loader
+ * @author Karel
+ */
+public abstract class CompiledBlock {
+    /**
+     * Set when the code this block was compiled from is written, the block
+     * returns after the current instruction
+     */
+    protected boolean deoptimized;
+
+    protected CompiledBlock() {
+    }
+
+    /**
+     * Executes the block
+     * @param cpu   The processor
+     * @return      The number of instructions executed
+     */
+    protected abstract int execute(CPU cpu);
+
+    /**
+     * Gets the handler of the opcode (plus 0x100 for the flag-free
+     * variant), read once by the generated classes into static final fields
+     * so the JVM can inline it
+     */
+    protected static InstructionMap.Instruction handler(int opcode) {
+        return InstructionMap.handler(opcode);
+    }
+
+    /**
+     * Gets the registers and flags of CPU, read once by the generated
+     * classes at the start of the block
+     */
+    protected static State state(CPU cpu) {
+        return cpu.state;
+    }
+}
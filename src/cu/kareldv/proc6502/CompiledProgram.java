@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Blocks of a program compiled ahead of time by {@link StaticRecompiler}.
+ * Once installed, a block is used from its first execution when the memory
+ * holds the same bytes it was compiled from, any other code (reached through
+ * an indirect jump, modified by the program...) is interpreted.
+ * The generated subclasses add their blocks in the constructor
+ * @author Karel
+ */
+public abstract class CompiledProgram {
+    private final Map<Integer, Entry> blocks = new HashMap<>();
+
+    protected CompiledProgram() {
+    }
+
+    /**
+     * Internal use
+     * Adds a block
+     * @param start Start address
+     * @param code  Bytes the block was compiled from, as an ISO-8859-1 string
+     * @param block The compiled block
+     */
+    protected final void add(int start, String code, CompiledBlock block) {
+        blocks.put(start, new Entry(code, block));
+    }
+
+    /**
+     * Number of compiled blocks
+     * @return  The number of blocks
+     */
+    public int size() {
+        return blocks.size();
+    }
+
+    /**
+     * Uses this program in CPU, in {@link CPU.ExecutionMode#BLOCKS} and
+     * {@link CPU.ExecutionMode#TIERED}
+     * @param cpu   The processor
+     * @return      This
+     */
+    public CompiledProgram install(CPU cpu) {
+        cpu.memory().blocks().program(this);
+        return this;
+    }
+
+    /**
+     * Stops using this program in CPU
+     * @param cpu   The processor
+     * @return      This
+     */
+    public CompiledProgram uninstall(CPU cpu) {
+        cpu.memory().blocks().program(null);
+        return this;
+    }
+
+    /**
+     * Internal use
+     * Gets a new instance of the block that starts at START, if it was
+     * compiled from the LENGTH bytes of MEMORY at START
+     */
+    CompiledBlock lookup(int start, Memory memory, int length) {
+        final Entry e = blocks.get(start);
+        if (e==null || e.code.length()!=length){
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (e.code.charAt(i) != (memory.peek(start+i)&0xff)){
+                return null;
+            }
+        }
+        try {
+            //Every decoded block gets its own instance, it can be deoptimized
+            return e.block.getClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        final String code;
+        final CompiledBlock block;
+
+        Entry(String code, CompiledBlock block) {
+            this.code = code;
+            this.block = block;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execute, read and write breakpoints of a processor, get it with
+ * {@link CPU#debugger()}. Every kind is a bitmap of the 64K addresses, the
+ * run loop and the memory test a single bit and the conditions are only
+ * evaluated when the bit is set. Without breakpoints nothing is checked.
+ * {@link CPU#run(long)} stops before executing an instruction with an
+ * execute breakpoint ({@link RunResult.HaltReason#BREAKPOINT}), running
+ * again continues from it. Watchpoints stop it right after the instruction
+ * that read or wrote the address ({@link RunResult.HaltReason#WATCHPOINT}),
+ * instruction fetches are reads too. While there are breakpoints the
+ * instructions are interpreted one by one
+ * @author Karel
+ */
+public final class Debugger {
+    private static final int WORDS = Memory.MEMORY/64;
+    private final CPU cpu;
+    private final long[][] bitmaps = new long[Kind.values().length][WORDS];
+    private final Map<Kind, Map<Integer, CPU.StopCondition>> conditions = new EnumMap<>(Kind.class);
+    private int count;
+    private Memory watched;
+    //Last hit
+    private Kind kind;
+    private int address = -1;
+    private boolean triggered;
+    //Execute breakpoint the last run stopped at, skipped by the next run
+    private int stoppedAt = -1;
+
+    Debugger(CPU cpu) {
+        this.cpu = cpu;
+        for (Kind k : Kind.values()) {
+            conditions.put(k, new HashMap<>());
+        }
+    }
+
+    /**
+     * Stops before executing the instruction at ADDRESS
+     * @param address   The address
+     * @return          This
+     */
+    public Debugger breakpoint(int address) {
+        return add(Kind.EXECUTE, address, null);
+    }
+
+    /**
+     * Stops before executing the instruction at ADDRESS if CONDITION is met
+     * @param address   The address
+     * @param condition Evaluated when the instruction is reached
+     * @return          This
+     */
+    public Debugger breakpoint(int address, CPU.StopCondition condition) {
+        return add(Kind.EXECUTE, address, condition);
+    }
+
+    /**
+     * Stops after the instruction that reads ADDRESS
+     * @param address   The address
+     * @return          This
+     */
+    public Debugger readWatchpoint(int address) {
+        return add(Kind.READ, address, null);
+    }
+
+    /**
+     * Stops after the instruction that reads ADDRESS if CONDITION is met
+     * @param address   The address
+     * @param condition Evaluated during the read
+     * @return          This
+     */
+    public Debugger readWatchpoint(int address, CPU.StopCondition condition) {
+        return add(Kind.READ, address, condition);
+    }
+
+    /**
+     * Stops after the instruction that writes ADDRESS
+     * @param address   The address
+     * @return          This
+     */
+    public Debugger writeWatchpoint(int address) {
+        return add(Kind.WRITE, address, null);
+    }
+
+    /**
+     * Stops after the instruction that writes ADDRESS if CONDITION is met
+     * @param address   The address
+     * @param condition Evaluated after the write
+     * @return          This
+     */
+    public Debugger writeWatchpoint(int address, CPU.StopCondition condition) {
+        return add(Kind.WRITE, address, condition);
+    }
+
+    /**
+     * Removes the breakpoint of the given kind at ADDRESS
+     * @param kind      The kind
+     * @param address   The address
+     * @return          This
+     */
+    public Debugger remove(Kind kind, int address) {
+        assert(kind!=null);
+        address&=0xffff;
+        final long[] bits = bitmaps[kind.ordinal()];
+        if ((bits[address>>>6] & 1L<<address)!=0){
+            bits[address>>>6] &= ~(1L<<address);
+            conditions.get(kind).remove(address);
+            count--;
+            updatePage(kind, address>>>8);
+        }
+        return this;
+    }
+
+    /**
+     * Removes every breakpoint
+     * @return  This
+     */
+    public Debugger clear() {
+        for (Kind k : Kind.values()) {
+            for (int pos = 0; pos < Memory.MEMORY; pos++) {
+                remove(k, pos);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Checks if there is a breakpoint of the given kind at ADDRESS
+     * @param kind      The kind
+     * @param address   The address
+     * @return          True if it's set
+     */
+    public boolean isSet(Kind kind, int address) {
+        address&=0xffff;
+        return (bitmaps[kind.ordinal()][address>>>6] & 1L<<address)!=0;
+    }
+
+    /**
+     * Number of breakpoints and watchpoints
+     * @return  The count
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Kind of the breakpoint that stopped the last run
+     * @return  The kind, null if none did
+     */
+    public Kind lastKind() {
+        return kind;
+    }
+
+    /**
+     * Address of the breakpoint that stopped the last run
+     * @return  The address, -1 if none did
+     */
+    public int lastAddress() {
+        return address;
+    }
+
+    private Debugger add(Kind kind, int address, CPU.StopCondition condition) {
+        assert(kind!=null);
+        address&=0xffff;
+        final long[] bits = bitmaps[kind.ordinal()];
+        if ((bits[address>>>6] & 1L<<address)==0){
+            bits[address>>>6] |= 1L<<address;
+            count++;
+        }
+        if (condition!=null){
+            conditions.get(kind).put(address, condition);
+        }else{
+            conditions.get(kind).remove(address);
+        }
+        updatePage(kind, address>>>8);
+        return this;
+    }
+
+    /**
+     * Internal use
+     * Tells the memory which pages have watchpoints
+     */
+    private void updatePage(Kind kind, int page) {
+        if (kind==Kind.EXECUTE){
+            return;
+        }
+        final Memory mem = watch();
+        final long[] r = bitmaps[Kind.READ.ordinal()];
+        final long[] w = bitmaps[Kind.WRITE.ordinal()];
+        final int word = page<<2;
+        final boolean reads = (r[word] | r[word+1] | r[word+2] | r[word+3])!=0;
+        final boolean writes = (w[word] | w[word+1] | w[word+2] | w[word+3])!=0;
+        mem.watch(page, reads, writes);
+    }
+
+    /**
+     * Internal use
+     * Attaches to the memory of the processor
+     */
+    private Memory watch() {
+        final Memory mem = cpu.memory();
+        if (watched!=mem){
+            if (watched!=null){
+                watched.debugger(null);
+            }
+            mem.debugger(this);
+            watched=mem;
+            for (int page = 0; page < Memory.PAGES; page++) {
+                updatePage(Kind.READ, page);
+            }
+        }
+        return mem;
+    }
+
+    //Used by the processor and the memory
+
+    /**
+     * Starts a run at PC, gets the address whose breakpoint is skipped
+     */
+    int resume(int pc) {
+        triggered=false;
+        kind=null;
+        address=-1;
+        final int skip = stoppedAt==pc ? pc : -1;
+        stoppedAt=-1;
+        return skip;
+    }
+
+    /**
+     * Checks the execute breakpoint at PC, records the hit
+     */
+    boolean breaks(int pc) {
+        if ((bitmaps[0][pc>>>6] & 1L<<pc)==0 || !check(Kind.EXECUTE, pc)){
+            return false;
+        }
+        stoppedAt=pc;
+        return true;
+    }
+
+    /**
+     * Called by the memory when a watched page is accessed
+     */
+    void accessed(Kind kind, int pos) {
+        if ((bitmaps[kind.ordinal()][pos>>>6] & 1L<<pos)!=0 && check(kind, pos)){
+            triggered=true;
+        }
+    }
+
+    /**
+     * Checks if a watchpoint was hit since the run started
+     */
+    boolean triggered() {
+        return triggered;
+    }
+
+    private boolean check(Kind kind, int pos) {
+        final CPU.StopCondition cond = conditions.get(kind).get(pos);
+        if (cond!=null && !cond.stop(cpu)){
+            return false;
+        }
+        this.kind=kind;
+        this.address=pos;
+        return true;
+    }
+
+    /**
+     * Kinds of breakpoints
+     */
+    public static enum Kind {
+        /**
+         * The instruction at the address is going to be executed
+         */
+        EXECUTE,
+        /**
+         * The address is read
+         */
+        READ,
+        /**
+         * The address is written
+         */
+        WRITE
+    }
+}
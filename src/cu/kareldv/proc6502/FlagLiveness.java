@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Flag-liveness analysis of straight-line code. Walking the block backwards,
+ * a flag is live after an instruction if a later instruction reads it before
+ * another one writes it. All the flags are live at the end of the block and
+ * after the instructions that write memory, because the block may stop
+ * there (self-modifying code).
+ * Instructions whose N and Z outputs are dead use the flag-free variants of
+ * {@link InstructionMap}
+ * @author Karel
+ */
+final class FlagLiveness {
+    //Same bits as Flags.value()
+    static final int C = 0x01, Z = 0x02, V = 0x20, N = 0x40;
+    static final int ALL = C | Z | V | N;
+    private static final int[] uses = new int[InstructionMap.OPCODES];
+    private static final int[] defs = new int[InstructionMap.OPCODES];
+    private static final boolean[] writesMemory = new boolean[InstructionMap.OPCODES];
+
+    private FlagLiveness() {
+    }
+
+    static {
+        for (int op = 0; op < InstructionMap.OPCODES; op++) {
+            final String m = InstructionMap.mnemonic(op);
+            if (m==null){
+                continue;
+            }
+            final boolean memoryOperand = InstructionMap.mode(op)!=InstructionMap.Mode.IMPLIED;
+            switch(m){
+                case "LDA": case "LDX": case "LDY": case "TAX": case "TXA":
+                case "TAY": case "TYA": case "TSX": case "INX": case "INY":
+                case "DEX": case "DEY": case "AND": case "ORA": case "EOR":
+                case "PLA":
+                    defs[op] = N | Z;
+                    break;
+                case "INC": case "DEC":
+                    defs[op] = N | Z;
+                    writesMemory[op] = true;
+                    break;
+                case "ASL": case "LSR":
+                    defs[op] = N | Z | C;
+                    writesMemory[op] = memoryOperand;
+                    break;
+                case "ROL": case "ROR":
+                    uses[op] = C;
+                    defs[op] = N | Z | C;
+                    writesMemory[op] = memoryOperand;
+                    break;
+                case "CMP": case "CPX": case "CPY":
+                    defs[op] = N | Z | C;
+                    break;
+                case "ADC": case "SBC":
+                    uses[op] = C;
+                    defs[op] = ALL;
+                    break;
+                case "BIT":
+                    defs[op] = N | Z | V;
+                    break;
+                case "CLC": case "SEC":
+                    defs[op] = C;
+                    break;
+                case "CLV":
+                    defs[op] = V;
+                    break;
+                case "PLP": case "RTI":
+                    defs[op] = ALL;
+                    break;
+                case "BPL": case "BMI":
+                    uses[op] = N;
+                    break;
+                case "BVC": case "BVS":
+                    uses[op] = V;
+                    break;
+                case "BCC": case "BCS":
+                    uses[op] = C;
+                    break;
+                case "BNE": case "BEQ":
+                    uses[op] = Z;
+                    break;
+                case "PHP": case "BRK":
+                    uses[op] = ALL;
+                    writesMemory[op] = true;
+                    break;
+                case "STA": case "STX": case "STY": case "PHA": case "JSR":
+                    writesMemory[op] = true;
+                    break;
+                default:
+                    //No flags
+            }
+        }
+    }
+
+    /**
+     * Flags read by the opcode
+     */
+    static int uses(int opcode) {
+        return uses[opcode&0xff];
+    }
+
+    /**
+     * Flags written by the opcode
+     */
+    static int defs(int opcode) {
+        return defs[opcode&0xff];
+    }
+
+    /**
+     * Computes the flags live after every instruction
+     * @param opcodes   The opcodes of the block
+     * @param length    Number of instructions
+     * @return          The live flags, by instruction
+     */
+    static int[] liveOut(byte[] opcodes, int length) {
+        final int[] live = new int[length];
+        int next = ALL;
+        for (int i = length-1; i >= 0; i--) {
+            final int op = opcodes[i]&0xff;
+            live[i] = writesMemory[op] ? ALL : next;
+            next = uses[op] | (live[i] & ~defs[op]);
+        }
+        return live;
+    }
+
+    /**
+     * Uses the flag-free variants in the instructions of the block whose N
+     * and Z are dead, they are stored in {@code optimized}
+     * @param b The block
+     */
+    static void optimize(BlockCache.Block b) {
+        final int[] live = liveOut(b.opcodes, b.length);
+        for (int i = 0; i < b.length; i++) {
+            final int op = b.opcodes[i]&0xff;
+            if (InstructionMap.hasFlagFree(op) && (live[i] & (N | Z))==0){
+                if (b.optimized==b.handlers){
+                    b.optimized = b.handlers.clone();
+                }
+                b.optimized[i] = InstructionMap.handler(op | InstructionMap.FLAG_FREE);
+                b.flagFree |= 1<<i;
+            }
+        }
+    }
+}
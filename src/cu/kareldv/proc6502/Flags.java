@@ -17,18 +17,29 @@ package cu.kareldv.proc6502;
 
 /**
  * The flag register, also called processor status, is one of the six registers on the 6502
- * family. Composed by six one-bit registers, some instructions change it or leave it unchanged
+ * family. Composed by six one-bit registers, some instructions change it or leave it unchanged.
+ * N and Z are evaluated lazily: the instructions only record their result with
+ * {@link #result(byte)}, the flags are derived from it when they are read. C and V are kept
+ * unpacked, so no instruction has to modify single bits of the register.
+ * It's a view of the execution state of the processor
  * @author Karel
  */
 public final class Flags {
-    
-    private byte value;
+    private final State state;
     
     /**
      * Default constructor, all flags set to zero
      */
     public Flags() {
-        value=0;
+        this(new State());
+    }
+    
+    /**
+     * Internal use
+     * Creates a view of STATE
+     */
+    Flags(State state) {
+        this.state=state;
     }
     
     /**
@@ -36,7 +47,8 @@ public final class Flags {
      * @param other 
      */
     public Flags(Flags other){
-        this.value=other.value;
+        this();
+        state.flags(other.state.flags());
     }
     
     /**
@@ -44,7 +56,7 @@ public final class Flags {
      * @return the flags as a byte
      */
     public byte value(){
-        return value;
+        return state.flags();
     }
     
     /**
@@ -52,7 +64,18 @@ public final class Flags {
      * 
      */
     public Flags value(byte val){
-        this.value=val;
+        state.flags(val);
+        return this;
+    }
+    
+    /**
+     * Records the result of an instruction, N and Z are derived from it when
+     * they are read
+     * @param val   The result
+     * @return      this
+     */
+    public Flags result(byte val) {
+        state.result(val);
         return this;
     }
     
@@ -66,7 +89,7 @@ public final class Flags {
      * @return 1 or 0
      */
     public byte c() {
-        return get(0);
+        return state.carry;
     }
     
     /**
@@ -76,7 +99,7 @@ public final class Flags {
      * @return      this
      */
     public Flags c(byte val) {
-        set(0, val);
+        state.carry=val;
         return this;
     }
     
@@ -87,7 +110,7 @@ public final class Flags {
      * @return 1 or 0
      */
     public byte z() {
-        return get(1);
+        return state.z();
     }
     
     /**
@@ -97,7 +120,7 @@ public final class Flags {
      * @return      this
      */
     public Flags z(byte val) {
-        set(1, val);
+        state.zResult=(byte) (val==0 ? 1 : 0);
         return this;
     }
     
@@ -174,7 +197,7 @@ public final class Flags {
      * @return 1 or 0
      */
     public byte v() {
-        return get(5);
+        return state.overflow;
     }
     
     /**
@@ -184,7 +207,7 @@ public final class Flags {
      * @return      this
      */
     public Flags v(byte val){
-        set(5, val);
+        state.overflow=val;
         return this;
     }
     
@@ -195,7 +218,7 @@ public final class Flags {
      * @return 1 or 0
      */
     public byte n() {
-        return get(6);
+        return state.n();
     }
 
     /**
@@ -205,7 +228,7 @@ public final class Flags {
      * @return      this
      */
     public Flags n(byte val){
-        set(6, val);
+        state.nResult=(byte) (val<<7);
         return this;
     }
     
@@ -216,7 +239,7 @@ public final class Flags {
      * @return  1 or 0
      */
     private byte get(int i) {
-        return (byte) ((value>>i) & 0x01);
+        return (byte) ((state.status>>i) & 0x01);
     }
     
     /**
@@ -233,10 +256,10 @@ public final class Flags {
         
         int lpos = 0xff<<(pos+1);
         int rpos = 0xff>>(8-pos);
-        value=(byte)(
-                (value&lpos) +
+        state.status=(byte)(
+                (state.status&lpos) +
                 (val<<pos) +
-                (value&rpos)
+                (state.status&rpos)
         );
     }
 }
@@ -15,1362 +15,1697 @@
  */
 package cu.kareldv.proc6502;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
+ * Decodes and executes the instructions. Every opcode has its own handler
+ * stored in a table indexed by the opcode itself, so decoding an instruction
+ * is a single array access. Opcodes without handler are unknown, and stop
+ * the processor.
+ * Handlers receive the raw operand of the instruction (the byte or word that
+ * follows the opcode, see {@link Mode}), so the same handler is used when the
+ * operand is fetched from memory and when it was decoded beforehand
  * @author Karel
  */
 public final class InstructionMap {
-    private static final Map<String, Instruction> instructions = new HashMap<>();
-    
+    /**
+     * Number of possible opcodes
+     */
+    public static final int OPCODES = 256;
+    private static final Instruction[] instructions = new Instruction[OPCODES];
+    private static final Mode[] modes = new Mode[OPCODES];
+    private static final String[] mnemonics = new String[OPCODES];
+    private static final int[] lengths = new int[OPCODES];
+    //Variants that do not update N and Z, see FlagLiveness
+    private static final Instruction[] flagFree = new Instruction[OPCODES];
+    /**
+     * Added to an opcode to get its flag-free variant from
+     * {@link #handler(int)}
+     */
+    static final int FLAG_FREE = 0x100;
+    //Superinstructions, by first opcode << 8 | second opcode
+    private static final Fused[] fused = new Fused[OPCODES*OPCODES];
+
     protected boolean eval(byte val, CPU cpu) {
-        String asHex = ","+Integer.toHexString(val&0xff);
-        for(String key: instructions.keySet()) {
-            if (key.contains(asHex)) {
-                instructions.get(key).consume(val, cpu.registers().regPC(), cpu);
-                if(val==0){
-                    return false; //BRK
-                }
+        final int opcode = val&0xff;
+        final Instruction inst = instructions[opcode];
+        if (inst==null) {
+            //Unkown opcode
+            return false;
+        }
+        inst.consume(cpu, fetchOperand(cpu, lengths[opcode]));
+        return opcode!=0; //BRK
+    }
+
+    /**
+     * Pops the operand of an instruction of the given length
+     */
+    static int fetchOperand(CPU cpu, int length) {
+        switch(length){
+            case 2:
+                return cpu.popByte()&0xff;
+            case 3:
+                return cpu.popWord();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Checks if the given opcode is a known instruction
+     * @param opcode    The opcode
+     * @return          True if it has a handler
+     */
+    public static boolean isKnown(int opcode) {
+        return instructions[opcode&0xff]!=null;
+    }
+
+    /**
+     * Gets the addressing mode of the opcode
+     * @param opcode    The opcode
+     * @return          The mode, null if the opcode is unknown
+     */
+    public static Mode mode(int opcode) {
+        return modes[opcode&0xff];
+    }
+
+    /**
+     * Gets the mnemonic of the opcode, eg: LDA
+     * @param opcode    The opcode
+     * @return          The mnemonic, null if the opcode is unknown
+     */
+    public static String mnemonic(int opcode) {
+        return mnemonics[opcode&0xff];
+    }
+
+    /**
+     * Gets the length in bytes of the instruction, opcode included
+     * @param opcode    The opcode
+     * @return          The length, 0 if the opcode is unknown
+     */
+    public static int length(int opcode) {
+        return lengths[opcode&0xff];
+    }
+
+    /**
+     * Checks if the opcode may change the program counter (branch, jump,
+     * return or break)
+     * @param opcode    The opcode
+     * @return          True if the instruction ends a straight-line block
+     */
+    public static boolean isFlowControl(int opcode) {
+        final Mode m = modes[opcode&0xff];
+        if (m==Mode.RELATIVE){
+            return true;
+        }
+        switch(opcode&0xff){
+            case 0x00: //BRK
+            case 0x4c: //JMP
+            case 0x6c: //JMP
+            case 0x20: //JSR
+            case 0x40: //RTI
+            case 0x60: //RTS
                 return true;
-            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets the handler of the opcode, or its flag-free variant if
+     * {@link #FLAG_FREE} was added to it
+     */
+    static Instruction handler(int opcode) {
+        if ((opcode&FLAG_FREE)!=0){
+            return flagFree[opcode&0xff];
         }
-        //Unkown opcode
-        return false;
+        return instructions[opcode&0xff];
+    }
+
+    /**
+     * Checks if there is a superinstruction that starts with the two
+     * opcodes
+     * @param first     First opcode
+     * @param second    Second opcode
+     * @return          True if the pair can be fused
+     */
+    public static boolean canFuse(int first, int second) {
+        return fused[(first&0xff)<<8 | (second&0xff)]!=null;
+    }
+
+    /**
+     * Gets the superinstruction that starts with the two opcodes
+     */
+    static Fused fused(int first, int second) {
+        return fused[(first&0xff)<<8 | (second&0xff)];
+    }
+
+    /**
+     * Checks if the opcode has a variant that does not update N and Z
+     */
+    static boolean hasFlagFree(int opcode) {
+        return flagFree[opcode&0xff]!=null;
+    }
+
+    private static void register(int opcode, String mnemonic, Mode mode, Instruction inst) {
+        instructions[opcode] = inst;
+        mnemonics[opcode] = mnemonic;
+        modes[opcode] = mode;
+        lengths[opcode] = mode.length();
+    }
+
+    static {
+        //Initialize instructions, one handler per opcode
+        //Brk
+        register(0x00, "BRK", Mode.IMPLIED, InstructionMap::brk);
+        //NOP
+        register(0xea, "NOP", Mode.IMPLIED, InstructionMap::nop);
+        //Load Accumulator
+        register(0xa9, "LDA", Mode.IMMEDIATE, InstructionMap::ldaImmediate);
+        register(0xa5, "LDA", Mode.ZERO_PAGE, InstructionMap::ldaZeroPage);
+        register(0xb5, "LDA", Mode.ZERO_PAGE_X, InstructionMap::ldaZeroPageX);
+        register(0xad, "LDA", Mode.ABSOLUTE, InstructionMap::ldaAbsolute);
+        register(0xbd, "LDA", Mode.ABSOLUTE_X, InstructionMap::ldaAbsoluteX);
+        register(0xb9, "LDA", Mode.ABSOLUTE_Y, InstructionMap::ldaAbsoluteY);
+        register(0xa1, "LDA", Mode.INDIRECT_X, InstructionMap::ldaIndirectX);
+        register(0xb1, "LDA", Mode.INDIRECT_Y, InstructionMap::ldaIndirectY);
+        //Load X
+        register(0xa2, "LDX", Mode.IMMEDIATE, InstructionMap::ldxImmediate);
+        register(0xa6, "LDX", Mode.ZERO_PAGE, InstructionMap::ldxZeroPage);
+        register(0xb6, "LDX", Mode.ZERO_PAGE_Y, InstructionMap::ldxZeroPageY);
+        register(0xae, "LDX", Mode.ABSOLUTE, InstructionMap::ldxAbsolute);
+        register(0xbe, "LDX", Mode.ABSOLUTE_Y, InstructionMap::ldxAbsoluteY);
+        //Load Y
+        register(0xa0, "LDY", Mode.IMMEDIATE, InstructionMap::ldyImmediate);
+        register(0xa4, "LDY", Mode.ZERO_PAGE, InstructionMap::ldyZeroPage);
+        register(0xb4, "LDY", Mode.ZERO_PAGE_X, InstructionMap::ldyZeroPageX);
+        register(0xac, "LDY", Mode.ABSOLUTE, InstructionMap::ldyAbsolute);
+        register(0xbc, "LDY", Mode.ABSOLUTE_X, InstructionMap::ldyAbsoluteX);
+        //Store Accumulator
+        register(0x85, "STA", Mode.ZERO_PAGE, InstructionMap::staZeroPage);
+        register(0x95, "STA", Mode.ZERO_PAGE_X, InstructionMap::staZeroPageX);
+        register(0x8d, "STA", Mode.ABSOLUTE, InstructionMap::staAbsolute);
+        register(0x9d, "STA", Mode.ABSOLUTE_X, InstructionMap::staAbsoluteX);
+        register(0x99, "STA", Mode.ABSOLUTE_Y, InstructionMap::staAbsoluteY);
+        register(0x81, "STA", Mode.INDIRECT_X, InstructionMap::staIndirectX);
+        register(0x91, "STA", Mode.INDIRECT_Y, InstructionMap::staIndirectY);
+        //Store X
+        register(0x86, "STX", Mode.ZERO_PAGE, InstructionMap::stxZeroPage);
+        register(0x96, "STX", Mode.ZERO_PAGE_Y, InstructionMap::stxZeroPageY);
+        register(0x8e, "STX", Mode.ABSOLUTE, InstructionMap::stxAbsolute);
+        //Store Y
+        register(0x84, "STY", Mode.ZERO_PAGE, InstructionMap::styZeroPage);
+        register(0x94, "STY", Mode.ZERO_PAGE_X, InstructionMap::styZeroPageX);
+        register(0x8c, "STY", Mode.ABSOLUTE, InstructionMap::styAbsolute);
+        //ADC
+        register(0x69, "ADC", Mode.IMMEDIATE, InstructionMap::adcImmediate);
+        register(0x65, "ADC", Mode.ZERO_PAGE, InstructionMap::adcZeroPage);
+        register(0x75, "ADC", Mode.ZERO_PAGE_X, InstructionMap::adcZeroPageX);
+        register(0x6d, "ADC", Mode.ABSOLUTE, InstructionMap::adcAbsolute);
+        register(0x7d, "ADC", Mode.ABSOLUTE_X, InstructionMap::adcAbsoluteX);
+        register(0x79, "ADC", Mode.ABSOLUTE_Y, InstructionMap::adcAbsoluteY);
+        register(0x61, "ADC", Mode.INDIRECT_X, InstructionMap::adcIndirectX);
+        register(0x71, "ADC", Mode.INDIRECT_Y, InstructionMap::adcIndirectY);
+        //SBC
+        register(0xe9, "SBC", Mode.IMMEDIATE, InstructionMap::sbcImmediate);
+        register(0xe5, "SBC", Mode.ZERO_PAGE, InstructionMap::sbcZeroPage);
+        register(0xf5, "SBC", Mode.ZERO_PAGE_X, InstructionMap::sbcZeroPageX);
+        register(0xed, "SBC", Mode.ABSOLUTE, InstructionMap::sbcAbsolute);
+        register(0xfd, "SBC", Mode.ABSOLUTE_X, InstructionMap::sbcAbsoluteX);
+        register(0xf9, "SBC", Mode.ABSOLUTE_Y, InstructionMap::sbcAbsoluteY);
+        register(0xe1, "SBC", Mode.INDIRECT_X, InstructionMap::sbcIndirectX);
+        register(0xf1, "SBC", Mode.INDIRECT_Y, InstructionMap::sbcIndirectY);
+        //AND
+        register(0x29, "AND", Mode.IMMEDIATE, InstructionMap::andImmediate);
+        register(0x25, "AND", Mode.ZERO_PAGE, InstructionMap::andZeroPage);
+        register(0x35, "AND", Mode.ZERO_PAGE_X, InstructionMap::andZeroPageX);
+        register(0x2d, "AND", Mode.ABSOLUTE, InstructionMap::andAbsolute);
+        register(0x3d, "AND", Mode.ABSOLUTE_X, InstructionMap::andAbsoluteX);
+        register(0x39, "AND", Mode.ABSOLUTE_Y, InstructionMap::andAbsoluteY);
+        register(0x21, "AND", Mode.INDIRECT_X, InstructionMap::andIndirectX);
+        register(0x31, "AND", Mode.INDIRECT_Y, InstructionMap::andIndirectY);
+        //EOR
+        register(0x49, "EOR", Mode.IMMEDIATE, InstructionMap::eorImmediate);
+        register(0x45, "EOR", Mode.ZERO_PAGE, InstructionMap::eorZeroPage);
+        register(0x55, "EOR", Mode.ZERO_PAGE_X, InstructionMap::eorZeroPageX);
+        register(0x4d, "EOR", Mode.ABSOLUTE, InstructionMap::eorAbsolute);
+        register(0x5d, "EOR", Mode.ABSOLUTE_X, InstructionMap::eorAbsoluteX);
+        register(0x59, "EOR", Mode.ABSOLUTE_Y, InstructionMap::eorAbsoluteY);
+        register(0x41, "EOR", Mode.INDIRECT_X, InstructionMap::eorIndirectX);
+        register(0x51, "EOR", Mode.INDIRECT_Y, InstructionMap::eorIndirectY);
+        //ORA
+        register(0x09, "ORA", Mode.IMMEDIATE, InstructionMap::oraImmediate);
+        register(0x05, "ORA", Mode.ZERO_PAGE, InstructionMap::oraZeroPage);
+        register(0x15, "ORA", Mode.ZERO_PAGE_X, InstructionMap::oraZeroPageX);
+        register(0x0d, "ORA", Mode.ABSOLUTE, InstructionMap::oraAbsolute);
+        register(0x1d, "ORA", Mode.ABSOLUTE_X, InstructionMap::oraAbsoluteX);
+        register(0x19, "ORA", Mode.ABSOLUTE_Y, InstructionMap::oraAbsoluteY);
+        register(0x01, "ORA", Mode.INDIRECT_X, InstructionMap::oraIndirectX);
+        register(0x11, "ORA", Mode.INDIRECT_Y, InstructionMap::oraIndirectY);
+        //Compare
+        register(0xc9, "CMP", Mode.IMMEDIATE, InstructionMap::cmpImmediate);
+        register(0xc5, "CMP", Mode.ZERO_PAGE, InstructionMap::cmpZeroPage);
+        register(0xd5, "CMP", Mode.ZERO_PAGE_X, InstructionMap::cmpZeroPageX);
+        register(0xcd, "CMP", Mode.ABSOLUTE, InstructionMap::cmpAbsolute);
+        register(0xdd, "CMP", Mode.ABSOLUTE_X, InstructionMap::cmpAbsoluteX);
+        register(0xd9, "CMP", Mode.ABSOLUTE_Y, InstructionMap::cmpAbsoluteY);
+        register(0xc1, "CMP", Mode.INDIRECT_X, InstructionMap::cmpIndirectX);
+        register(0xd1, "CMP", Mode.INDIRECT_Y, InstructionMap::cmpIndirectY);
+        register(0xe0, "CPX", Mode.IMMEDIATE, InstructionMap::cpxImmediate);
+        register(0xe4, "CPX", Mode.ZERO_PAGE, InstructionMap::cpxZeroPage);
+        register(0xec, "CPX", Mode.ABSOLUTE, InstructionMap::cpxAbsolute);
+        register(0xc0, "CPY", Mode.IMMEDIATE, InstructionMap::cpyImmediate);
+        register(0xc4, "CPY", Mode.ZERO_PAGE, InstructionMap::cpyZeroPage);
+        register(0xcc, "CPY", Mode.ABSOLUTE, InstructionMap::cpyAbsolute);
+        //Bit
+        register(0x24, "BIT", Mode.ZERO_PAGE, InstructionMap::bitZeroPage);
+        register(0x2c, "BIT", Mode.ABSOLUTE, InstructionMap::bitAbsolute);
+        //IncDec
+        register(0xe6, "INC", Mode.ZERO_PAGE, InstructionMap::incZeroPage);
+        register(0xf6, "INC", Mode.ZERO_PAGE_X, InstructionMap::incZeroPageX);
+        register(0xee, "INC", Mode.ABSOLUTE, InstructionMap::incAbsolute);
+        register(0xfe, "INC", Mode.ABSOLUTE_X, InstructionMap::incAbsoluteX);
+        register(0xc6, "DEC", Mode.ZERO_PAGE, InstructionMap::decZeroPage);
+        register(0xd6, "DEC", Mode.ZERO_PAGE_X, InstructionMap::decZeroPageX);
+        register(0xce, "DEC", Mode.ABSOLUTE, InstructionMap::decAbsolute);
+        register(0xde, "DEC", Mode.ABSOLUTE_X, InstructionMap::decAbsoluteX);
+        //Shift
+        register(0x0a, "ASL", Mode.IMPLIED, InstructionMap::aslAccumulator);
+        register(0x06, "ASL", Mode.ZERO_PAGE, InstructionMap::aslZeroPage);
+        register(0x16, "ASL", Mode.ZERO_PAGE_X, InstructionMap::aslZeroPageX);
+        register(0x0e, "ASL", Mode.ABSOLUTE, InstructionMap::aslAbsolute);
+        register(0x1e, "ASL", Mode.ABSOLUTE_X, InstructionMap::aslAbsoluteX);
+        register(0x4a, "LSR", Mode.IMPLIED, InstructionMap::lsrAccumulator);
+        register(0x46, "LSR", Mode.ZERO_PAGE, InstructionMap::lsrZeroPage);
+        register(0x56, "LSR", Mode.ZERO_PAGE_X, InstructionMap::lsrZeroPageX);
+        register(0x4e, "LSR", Mode.ABSOLUTE, InstructionMap::lsrAbsolute);
+        register(0x5e, "LSR", Mode.ABSOLUTE_X, InstructionMap::lsrAbsoluteX);
+        //Rotate
+        register(0x2a, "ROL", Mode.IMPLIED, InstructionMap::rolAccumulator);
+        register(0x26, "ROL", Mode.ZERO_PAGE, InstructionMap::rolZeroPage);
+        register(0x36, "ROL", Mode.ZERO_PAGE_X, InstructionMap::rolZeroPageX);
+        register(0x2e, "ROL", Mode.ABSOLUTE, InstructionMap::rolAbsolute);
+        register(0x3e, "ROL", Mode.ABSOLUTE_X, InstructionMap::rolAbsoluteX);
+        register(0x6a, "ROR", Mode.IMPLIED, InstructionMap::rorAccumulator);
+        register(0x66, "ROR", Mode.ZERO_PAGE, InstructionMap::rorZeroPage);
+        register(0x76, "ROR", Mode.ZERO_PAGE_X, InstructionMap::rorZeroPageX);
+        register(0x6e, "ROR", Mode.ABSOLUTE, InstructionMap::rorAbsolute);
+        register(0x7e, "ROR", Mode.ABSOLUTE_X, InstructionMap::rorAbsoluteX);
+        //Branch
+        register(0x10, "BPL", Mode.RELATIVE, InstructionMap::bpl);
+        register(0x30, "BMI", Mode.RELATIVE, InstructionMap::bmi);
+        register(0x50, "BVC", Mode.RELATIVE, InstructionMap::bvc);
+        register(0x70, "BVS", Mode.RELATIVE, InstructionMap::bvs);
+        register(0x90, "BCC", Mode.RELATIVE, InstructionMap::bcc);
+        register(0xb0, "BCS", Mode.RELATIVE, InstructionMap::bcs);
+        register(0xd0, "BNE", Mode.RELATIVE, InstructionMap::bne);
+        register(0xf0, "BEQ", Mode.RELATIVE, InstructionMap::beq);
+        //Registers
+        register(0xaa, "TAX", Mode.IMPLIED, InstructionMap::tax);
+        register(0x8a, "TXA", Mode.IMPLIED, InstructionMap::txa);
+        register(0xca, "DEX", Mode.IMPLIED, InstructionMap::dex);
+        register(0xe8, "INX", Mode.IMPLIED, InstructionMap::inx);
+        register(0xa8, "TAY", Mode.IMPLIED, InstructionMap::tay);
+        register(0x98, "TYA", Mode.IMPLIED, InstructionMap::tya);
+        register(0x88, "DEY", Mode.IMPLIED, InstructionMap::dey);
+        register(0xc8, "INY", Mode.IMPLIED, InstructionMap::iny);
+        //Flags
+        register(0x18, "CLC", Mode.IMPLIED, InstructionMap::clc);
+        register(0x38, "SEC", Mode.IMPLIED, InstructionMap::sec);
+        register(0x58, "CLI", Mode.IMPLIED, InstructionMap::cli);
+        register(0x78, "SEI", Mode.IMPLIED, InstructionMap::sei);
+        register(0xb8, "CLV", Mode.IMPLIED, InstructionMap::clv);
+        register(0xd8, "CLD", Mode.IMPLIED, InstructionMap::cld);
+        register(0xf8, "SED", Mode.IMPLIED, InstructionMap::sed);
+        //Stack instructions
+        register(0x9a, "TXS", Mode.IMPLIED, InstructionMap::txs);
+        register(0xba, "TSX", Mode.IMPLIED, InstructionMap::tsx);
+        register(0x48, "PHA", Mode.IMPLIED, InstructionMap::pha);
+        register(0x68, "PLA", Mode.IMPLIED, InstructionMap::pla);
+        register(0x08, "PHP", Mode.IMPLIED, InstructionMap::php);
+        register(0x28, "PLP", Mode.IMPLIED, InstructionMap::plp);
+        //Jump
+        register(0x4c, "JMP", Mode.ABSOLUTE, InstructionMap::jmpAbsolute);
+        register(0x6c, "JMP", Mode.INDIRECT, InstructionMap::jmpIndirect);
+        register(0x20, "JSR", Mode.ABSOLUTE, InstructionMap::jsr);
+        //RTI
+        register(0x40, "RTI", Mode.IMPLIED, InstructionMap::rti);
+        //RTS
+        register(0x60, "RTS", Mode.IMPLIED, InstructionMap::rts);
+
+        //Flag-free variants, used when N and Z are overwritten before they
+        //are read
+        flagFree[0xa9] = (cpu, v) -> lda(cpu, (byte) v, 2);
+        flagFree[0xa5] = (cpu, a) -> lda(cpu, cpu.memory().get(a), 3);
+        flagFree[0xb5] = (cpu, b) -> lda(cpu, cpu.memory().get(zeroPageX(cpu, b)), 4);
+        flagFree[0xad] = (cpu, a) -> lda(cpu, cpu.memory().get(a), 4);
+        flagFree[0xbd] = (cpu, b) -> lda(cpu, cpu.memory().get(absoluteX(cpu, b)), 4);
+        flagFree[0xb9] = (cpu, b) -> lda(cpu, cpu.memory().get(absoluteY(cpu, b)), 4);
+        flagFree[0xa1] = (cpu, zp) -> lda(cpu, cpu.memory().get(indirectX(cpu, zp)), 6);
+        flagFree[0xb1] = (cpu, zp) -> lda(cpu, cpu.memory().get(indirectY(cpu, zp)), 5);
+        flagFree[0xa2] = (cpu, v) -> ldx(cpu, (byte) v, 2);
+        flagFree[0xa6] = (cpu, a) -> ldx(cpu, cpu.memory().get(a), 3);
+        flagFree[0xb6] = (cpu, b) -> ldx(cpu, cpu.memory().get(zeroPageY(cpu, b)), 4);
+        flagFree[0xae] = (cpu, a) -> ldx(cpu, cpu.memory().get(a), 4);
+        flagFree[0xbe] = (cpu, b) -> ldx(cpu, cpu.memory().get(absoluteY(cpu, b)), 4);
+        flagFree[0xa0] = (cpu, v) -> ldy(cpu, (byte) v, 2);
+        flagFree[0xa4] = (cpu, a) -> ldy(cpu, cpu.memory().get(a), 3);
+        flagFree[0xb4] = (cpu, b) -> ldy(cpu, cpu.memory().get(zeroPageX(cpu, b)), 4);
+        flagFree[0xac] = (cpu, a) -> ldy(cpu, cpu.memory().get(a), 4);
+        flagFree[0xbc] = (cpu, b) -> ldy(cpu, cpu.memory().get(absoluteX(cpu, b)), 4);
+        flagFree[0x29] = (cpu, v) -> and(cpu, (byte) v, 2);
+        flagFree[0x25] = (cpu, a) -> and(cpu, cpu.memory().get(a), 3);
+        flagFree[0x35] = (cpu, b) -> and(cpu, cpu.memory().get(zeroPageX(cpu, b)), 4);
+        flagFree[0x2d] = (cpu, a) -> and(cpu, cpu.memory().get(a), 4);
+        flagFree[0x3d] = (cpu, b) -> and(cpu, cpu.memory().get(absoluteX(cpu, b)), 4);
+        flagFree[0x39] = (cpu, b) -> and(cpu, cpu.memory().get(absoluteY(cpu, b)), 4);
+        flagFree[0x21] = (cpu, zp) -> and(cpu, cpu.memory().get(indirectX(cpu, zp)), 6);
+        flagFree[0x31] = (cpu, zp) -> and(cpu, cpu.memory().get(indirectY(cpu, zp)), 5);
+        flagFree[0x49] = (cpu, v) -> eor(cpu, (byte) v, 2);
+        flagFree[0x45] = (cpu, a) -> eor(cpu, cpu.memory().get(a), 3);
+        flagFree[0x55] = (cpu, b) -> eor(cpu, cpu.memory().get(zeroPageX(cpu, b)), 4);
+        flagFree[0x4d] = (cpu, a) -> eor(cpu, cpu.memory().get(a), 4);
+        flagFree[0x5d] = (cpu, b) -> eor(cpu, cpu.memory().get(absoluteX(cpu, b)), 4);
+        flagFree[0x59] = (cpu, b) -> eor(cpu, cpu.memory().get(absoluteY(cpu, b)), 4);
+        flagFree[0x41] = (cpu, zp) -> eor(cpu, cpu.memory().get(indirectX(cpu, zp)), 6);
+        flagFree[0x51] = (cpu, zp) -> eor(cpu, cpu.memory().get(indirectY(cpu, zp)), 5);
+        flagFree[0x09] = (cpu, v) -> ora(cpu, (byte) v, 2);
+        flagFree[0x05] = (cpu, a) -> ora(cpu, cpu.memory().get(a), 3);
+        flagFree[0x15] = (cpu, b) -> ora(cpu, cpu.memory().get(zeroPageX(cpu, b)), 4);
+        flagFree[0x0d] = (cpu, a) -> ora(cpu, cpu.memory().get(a), 4);
+        flagFree[0x1d] = (cpu, b) -> ora(cpu, cpu.memory().get(absoluteX(cpu, b)), 4);
+        flagFree[0x19] = (cpu, b) -> ora(cpu, cpu.memory().get(absoluteY(cpu, b)), 4);
+        flagFree[0x01] = (cpu, zp) -> ora(cpu, cpu.memory().get(indirectX(cpu, zp)), 6);
+        flagFree[0x11] = (cpu, zp) -> ora(cpu, cpu.memory().get(indirectY(cpu, zp)), 5);
+        flagFree[0xaa] = (cpu, o) -> ldx(cpu, cpu.state.a, 2);             //TAX
+        flagFree[0x8a] = (cpu, o) -> lda(cpu, cpu.state.x, 2);             //TXA
+        flagFree[0xa8] = (cpu, o) -> ldy(cpu, cpu.state.a, 2);             //TAY
+        flagFree[0x98] = (cpu, o) -> lda(cpu, cpu.state.y, 2);             //TYA
+        flagFree[0xba] = (cpu, o) -> ldx(cpu, cpu.state.sp, 2);            //TSX
+        flagFree[0xca] = (cpu, o) -> ldx(cpu, (byte) (cpu.state.x-1), 2);  //DEX
+        flagFree[0xe8] = (cpu, o) -> ldx(cpu, (byte) (cpu.state.x+1), 2);  //INX
+        flagFree[0x88] = (cpu, o) -> ldy(cpu, (byte) (cpu.state.y-1), 2);  //DEY
+        flagFree[0xc8] = (cpu, o) -> ldy(cpu, (byte) (cpu.state.y+1), 2);  //INY
+        flagFree[0x68] = (cpu, o) -> lda(cpu, popStack(cpu), 4);           //PLA
+
+        //Superinstructions, only the last instruction may use the program
+        //counter
+        //LDA STA
+        fuse(0xa9, 0x85, (cpu, pc) -> {
+            cpu.state.pc=(pc+4)&0xffff;
+            ldaImmediate(cpu, byteAt(cpu, pc+1));
+            staZeroPage(cpu, byteAt(cpu, pc+3));
+            return 2;
+        });
+        fuse(0xa9, 0x8d, (cpu, pc) -> {
+            cpu.state.pc=(pc+5)&0xffff;
+            ldaImmediate(cpu, byteAt(cpu, pc+1));
+            staAbsolute(cpu, wordAt(cpu, pc+3));
+            return 2;
+        });
+        fuse(0xa5, 0x85, (cpu, pc) -> {
+            cpu.state.pc=(pc+4)&0xffff;
+            ldaZeroPage(cpu, byteAt(cpu, pc+1));
+            staZeroPage(cpu, byteAt(cpu, pc+3));
+            return 2;
+        });
+        fuse(0xad, 0x8d, (cpu, pc) -> {
+            cpu.state.pc=(pc+6)&0xffff;
+            ldaAbsolute(cpu, wordAt(cpu, pc+1));
+            staAbsolute(cpu, wordAt(cpu, pc+4));
+            return 2;
+        });
+        fuse(0xb1, 0x91, (cpu, pc) -> {
+            cpu.state.pc=(pc+4)&0xffff;
+            ldaIndirectY(cpu, byteAt(cpu, pc+1));
+            staIndirectY(cpu, byteAt(cpu, pc+3));
+            return 2;
+        });
+        //Counter and branch
+        fuse(0xca, 0xd0, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            dex(cpu, 0);
+            bne(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        fuse(0x88, 0xd0, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            dey(cpu, 0);
+            bne(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        fuse(0xe8, 0xd0, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            inx(cpu, 0);
+            bne(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        fuse(0xc8, 0xd0, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            iny(cpu, 0);
+            bne(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        //Counter, compare and branch if followed by BNE
+        fuse(0xc8, 0xc0, (cpu, pc) -> {
+            if (opcodeAt(cpu, pc+3)==0xd0){
+                cpu.state.pc=(pc+5)&0xffff;
+                iny(cpu, 0);
+                cpyImmediate(cpu, byteAt(cpu, pc+2));
+                bne(cpu, byteAt(cpu, pc+4));
+                return 3;
+            }
+            cpu.state.pc=(pc+3)&0xffff;
+            iny(cpu, 0);
+            cpyImmediate(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        fuse(0xe8, 0xe0, (cpu, pc) -> {
+            if (opcodeAt(cpu, pc+3)==0xd0){
+                cpu.state.pc=(pc+5)&0xffff;
+                inx(cpu, 0);
+                cpxImmediate(cpu, byteAt(cpu, pc+2));
+                bne(cpu, byteAt(cpu, pc+4));
+                return 3;
+            }
+            cpu.state.pc=(pc+3)&0xffff;
+            inx(cpu, 0);
+            cpxImmediate(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        //Arithmetic
+        fuse(0x18, 0x69, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            clc(cpu, 0);
+            adcImmediate(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        fuse(0x18, 0x65, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            clc(cpu, 0);
+            adcZeroPage(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+        fuse(0x38, 0xe9, (cpu, pc) -> {
+            cpu.state.pc=(pc+3)&0xffff;
+            sec(cpu, 0);
+            sbcImmediate(cpu, byteAt(cpu, pc+2));
+            return 2;
+        });
+    }
+
+    private static void fuse(int first, int second, Fused inst) {
+        fused[first<<8 | second] = inst;
+    }
+
+    /**
+     * Break
+     */
+    private static void brk(CPU cpu, int operand){
+        //Nada
+        cpu.clock().consumeTicks(7);
+    }
+
+    /**
+     * No Operation
+     */
+    private static void nop(CPU cpu, int operand) {
+        cpu.clock().consumeTicks(2);
+    }
+
+    //------------------------------------------------------ Load
+
+    private static void ldaImmediate(CPU cpu, int val) {
+        cpu.state.a=(byte) val;
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void ldaZeroPage(CPU cpu, int addr) {
+        cpu.state.a=cpu.memory().get(addr);
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void ldaZeroPageX(CPU cpu, int base) {
+        cpu.state.a=cpu.memory().get(zeroPageX(cpu, base));
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldaAbsolute(CPU cpu, int addr) {
+        cpu.state.a=cpu.memory().get(addr);
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldaAbsoluteX(CPU cpu, int base) {
+        cpu.state.a=cpu.memory().get(absoluteX(cpu, base));
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(4); //Ignore page boundary crossed
+    }
+
+    private static void ldaAbsoluteY(CPU cpu, int base) {
+        cpu.state.a=cpu.memory().get(absoluteY(cpu, base));
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(4); //Ignore page boundary crossed
+    }
+
+    private static void ldaIndirectX(CPU cpu, int zp) {
+        cpu.state.a=cpu.memory().get(indirectX(cpu, zp));
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void ldaIndirectY(CPU cpu, int zp) {
+        cpu.state.a=cpu.memory().get(indirectY(cpu, zp));
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(5); //Ignore page boundary crossed
+    }
+
+    private static void ldxImmediate(CPU cpu, int val) {
+        cpu.state.x=(byte) val;
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void ldxZeroPage(CPU cpu, int addr) {
+        cpu.state.x=cpu.memory().get(addr);
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void ldxZeroPageY(CPU cpu, int base) {
+        cpu.state.x=cpu.memory().get(zeroPageY(cpu, base));
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldxAbsolute(CPU cpu, int addr) {
+        cpu.state.x=cpu.memory().get(addr);
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldxAbsoluteY(CPU cpu, int base) {
+        cpu.state.x=cpu.memory().get(absoluteY(cpu, base));
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldyImmediate(CPU cpu, int val) {
+        cpu.state.y=(byte) val;
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void ldyZeroPage(CPU cpu, int addr) {
+        cpu.state.y=cpu.memory().get(addr);
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void ldyZeroPageX(CPU cpu, int base) {
+        cpu.state.y=cpu.memory().get(zeroPageX(cpu, base));
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldyAbsolute(CPU cpu, int addr) {
+        cpu.state.y=cpu.memory().get(addr);
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void ldyAbsoluteX(CPU cpu, int base) {
+        cpu.state.y=cpu.memory().get(absoluteX(cpu, base));
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    //------------------------------------------------------ Store
+
+    private static void staZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, cpu.state.a);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void staZeroPageX(CPU cpu, int base) {
+        cpu.memory().put(zeroPageX(cpu, base), cpu.state.a);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void staAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, cpu.state.a);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void staAbsoluteX(CPU cpu, int base) {
+        cpu.memory().put(absoluteX(cpu, base), cpu.state.a);
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void staAbsoluteY(CPU cpu, int base) {
+        cpu.memory().put(absoluteY(cpu, base), cpu.state.a);
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void staIndirectX(CPU cpu, int zp) {
+        cpu.memory().put(indirectX(cpu, zp), cpu.state.a);
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void staIndirectY(CPU cpu, int zp) {
+        cpu.memory().put(indirectY(cpu, zp), cpu.state.a);
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void stxZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, cpu.state.x);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void stxZeroPageY(CPU cpu, int base) {
+        cpu.memory().put(zeroPageY(cpu, base), cpu.state.x);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void stxAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, cpu.state.x);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void styZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, cpu.state.y);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void styZeroPageX(CPU cpu, int base) {
+        cpu.memory().put(zeroPageX(cpu, base), cpu.state.y);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void styAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, cpu.state.y);
+        cpu.clock().consumeTicks(4);
+    }
+
+    //------------------------------------------------------ Add with Carry
+
+    private static void adcImmediate(CPU cpu, int val) {
+        doADC(cpu, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void adcZeroPage(CPU cpu, int addr) {
+        doADC(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void adcZeroPageX(CPU cpu, int base) {
+        doADC(cpu, cpu.memory().get(zeroPageX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void adcAbsolute(CPU cpu, int addr) {
+        doADC(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void adcAbsoluteX(CPU cpu, int base) {
+        doADC(cpu, cpu.memory().get(absoluteX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void adcAbsoluteY(CPU cpu, int base) {
+        doADC(cpu, cpu.memory().get(absoluteY(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void adcIndirectX(CPU cpu, int zp) {
+        doADC(cpu, cpu.memory().get(indirectX(cpu, zp)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void adcIndirectY(CPU cpu, int zp) {
+        doADC(cpu, cpu.memory().get(indirectY(cpu, zp)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    //------------------------------------------------------ Substract with Carry
+
+    private static void sbcImmediate(CPU cpu, int val) {
+        doSBC(cpu, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void sbcZeroPage(CPU cpu, int addr) {
+        doSBC(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void sbcZeroPageX(CPU cpu, int base) {
+        doSBC(cpu, cpu.memory().get(zeroPageX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void sbcAbsolute(CPU cpu, int addr) {
+        doSBC(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void sbcAbsoluteX(CPU cpu, int base) {
+        doSBC(cpu, cpu.memory().get(absoluteX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void sbcAbsoluteY(CPU cpu, int base) {
+        doSBC(cpu, cpu.memory().get(absoluteY(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void sbcIndirectX(CPU cpu, int zp) {
+        doSBC(cpu, cpu.memory().get(indirectX(cpu, zp)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void sbcIndirectY(CPU cpu, int zp) {
+        doSBC(cpu, cpu.memory().get(indirectY(cpu, zp)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    //------------------------------------------------------ Bitwise AND
+
+    private static void andImmediate(CPU cpu, int val) {
+        doAND(cpu, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void andZeroPage(CPU cpu, int addr) {
+        doAND(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void andZeroPageX(CPU cpu, int base) {
+        doAND(cpu, cpu.memory().get(zeroPageX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void andAbsolute(CPU cpu, int addr) {
+        doAND(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void andAbsoluteX(CPU cpu, int base) {
+        doAND(cpu, cpu.memory().get(absoluteX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void andAbsoluteY(CPU cpu, int base) {
+        doAND(cpu, cpu.memory().get(absoluteY(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void andIndirectX(CPU cpu, int zp) {
+        doAND(cpu, cpu.memory().get(indirectX(cpu, zp)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void andIndirectY(CPU cpu, int zp) {
+        doAND(cpu, cpu.memory().get(indirectY(cpu, zp)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    //------------------------------------------------------ Exclusive OR
+
+    private static void eorImmediate(CPU cpu, int val) {
+        doEOR(cpu, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void eorZeroPage(CPU cpu, int addr) {
+        doEOR(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void eorZeroPageX(CPU cpu, int base) {
+        doEOR(cpu, cpu.memory().get(zeroPageX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void eorAbsolute(CPU cpu, int addr) {
+        doEOR(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void eorAbsoluteX(CPU cpu, int base) {
+        doEOR(cpu, cpu.memory().get(absoluteX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void eorAbsoluteY(CPU cpu, int base) {
+        doEOR(cpu, cpu.memory().get(absoluteY(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void eorIndirectX(CPU cpu, int zp) {
+        doEOR(cpu, cpu.memory().get(indirectX(cpu, zp)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void eorIndirectY(CPU cpu, int zp) {
+        doEOR(cpu, cpu.memory().get(indirectY(cpu, zp)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    //------------------------------------------------------ OR with accumulator
+
+    private static void oraImmediate(CPU cpu, int val) {
+        doORA(cpu, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void oraZeroPage(CPU cpu, int addr) {
+        doORA(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void oraZeroPageX(CPU cpu, int base) {
+        doORA(cpu, cpu.memory().get(zeroPageX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void oraAbsolute(CPU cpu, int addr) {
+        doORA(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void oraAbsoluteX(CPU cpu, int base) {
+        doORA(cpu, cpu.memory().get(absoluteX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void oraAbsoluteY(CPU cpu, int base) {
+        doORA(cpu, cpu.memory().get(absoluteY(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void oraIndirectX(CPU cpu, int zp) {
+        doORA(cpu, cpu.memory().get(indirectX(cpu, zp)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void oraIndirectY(CPU cpu, int zp) {
+        doORA(cpu, cpu.memory().get(indirectY(cpu, zp)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    //------------------------------------------------------ Compare
+
+    private static void cmpImmediate(CPU cpu, int val) {
+        doCompare(cpu, cpu.state.a, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void cmpZeroPage(CPU cpu, int addr) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void cmpZeroPageX(CPU cpu, int base) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(zeroPageX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void cmpAbsolute(CPU cpu, int addr) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void cmpAbsoluteX(CPU cpu, int base) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(absoluteX(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void cmpAbsoluteY(CPU cpu, int base) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(absoluteY(cpu, base)));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void cmpIndirectX(CPU cpu, int zp) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(indirectX(cpu, zp)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void cmpIndirectY(CPU cpu, int zp) {
+        doCompare(cpu, cpu.state.a, cpu.memory().get(indirectY(cpu, zp)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void cpxImmediate(CPU cpu, int val) {
+        doCompare(cpu, cpu.state.x, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void cpxZeroPage(CPU cpu, int addr) {
+        doCompare(cpu, cpu.state.x, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void cpxAbsolute(CPU cpu, int addr) {
+        doCompare(cpu, cpu.state.x, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void cpyImmediate(CPU cpu, int val) {
+        doCompare(cpu, cpu.state.y, (byte) val);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void cpyZeroPage(CPU cpu, int addr) {
+        doCompare(cpu, cpu.state.y, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void cpyAbsolute(CPU cpu, int addr) {
+        doCompare(cpu, cpu.state.y, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    //------------------------------------------------------ Test BIT
+
+    private static void bitZeroPage(CPU cpu, int addr) {
+        BIT(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void bitAbsolute(CPU cpu, int addr) {
+        BIT(cpu, cpu.memory().get(addr));
+        cpu.clock().consumeTicks(4);
+    }
+
+    //------------------------------------------------------ Increment Decrement
+
+    private static void incZeroPage(CPU cpu, int addr) {
+        increment(cpu, addr);
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void incZeroPageX(CPU cpu, int base) {
+        increment(cpu, zeroPageX(cpu, base));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void incAbsolute(CPU cpu, int addr) {
+        increment(cpu, addr);
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void incAbsoluteX(CPU cpu, int base) {
+        increment(cpu, absoluteX(cpu, base));
+        cpu.clock().consumeTicks(7);
+    }
+
+    private static void decZeroPage(CPU cpu, int addr) {
+        decrement(cpu, addr);
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void decZeroPageX(CPU cpu, int base) {
+        decrement(cpu, zeroPageX(cpu, base));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void decAbsolute(CPU cpu, int addr) {
+        decrement(cpu, addr);
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void decAbsoluteX(CPU cpu, int base) {
+        decrement(cpu, absoluteX(cpu, base));
+        cpu.clock().consumeTicks(7);
+    }
+
+    //------------------------------------------------------ Shift
+
+    private static void aslAccumulator(CPU cpu, int operand) {
+        cpu.state.a=doAsl(cpu, cpu.state.a);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void aslZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, doAsl(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void aslZeroPageX(CPU cpu, int base) {
+        final int addr = zeroPageX(cpu, base);
+        cpu.memory().put(addr, doAsl(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void aslAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, doAsl(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void aslAbsoluteX(CPU cpu, int base) {
+        final int addr = absoluteX(cpu, base);
+        cpu.memory().put(addr, doAsl(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(7);
+    }
+
+    private static void lsrAccumulator(CPU cpu, int operand) {
+        cpu.state.a=doLsr(cpu, cpu.state.a);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void lsrZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, doLsr(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void lsrZeroPageX(CPU cpu, int base) {
+        final int addr = zeroPageX(cpu, base);
+        cpu.memory().put(addr, doLsr(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void lsrAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, doLsr(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void lsrAbsoluteX(CPU cpu, int base) {
+        final int addr = absoluteX(cpu, base);
+        cpu.memory().put(addr, doLsr(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(7);
+    }
+
+    //------------------------------------------------------ Rotate
+
+    private static void rolAccumulator(CPU cpu, int operand) {
+        cpu.state.a=doRol(cpu, cpu.state.a);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void rolZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, doRol(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void rolZeroPageX(CPU cpu, int base) {
+        final int addr = zeroPageX(cpu, base);
+        cpu.memory().put(addr, doRol(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void rolAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, doRol(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void rolAbsoluteX(CPU cpu, int base) {
+        final int addr = absoluteX(cpu, base);
+        cpu.memory().put(addr, doRol(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(7);
+    }
+
+    private static void rorAccumulator(CPU cpu, int operand) {
+        cpu.state.a=doRor(cpu, cpu.state.a);
+        cpu.clock().consumeTicks(2);
     }
-    
-    
-    static {
-        //Initialize instructions
-        //IncDec
-        instructions.put(",e6,f6,ee,fe,c6,d6,ce,de", InstructionMap::incdec);
-        //Brk
-        instructions.put(",0", InstructionMap::brk);
-        //Bit
-        instructions.put(",24,2c", InstructionMap::bit);
-        //Rotate
-        instructions.put(",2a,26,36,2e,3e,6a,66,76,6e,7e", InstructionMap::rotate);
-        //Shift
-        instructions.put(",a,6,16,e,1e,4a,46,56,4e,5e", InstructionMap::shift);
-        //Branch
-        instructions.put(",10,30,50,70,90,b0,d0,f0", InstructionMap::branch);
-        //Registers
-        instructions.put(",aa,8a,ca,e8,a8,98,88,c8", InstructionMap::registers);
-        //Flags
-        instructions.put(",18,38,58,78,b8,d8,f8", InstructionMap::flags);
-        //Stack instructions
-        instructions.put(",9a,ba,48,68,08,28,", InstructionMap::stack);
-        //Jump
-        instructions.put(",4c,6c,20", InstructionMap::jump);
-        //Compare
-        instructions.put(",c9,c5,d5,cd,dd,d9,c1,d1,e0,e4,ec,c0,c4,cc", InstructionMap::compare);
-        //Store
-        instructions.put(",85,95,8d,9d,99,81,91,86,96,8e,84,94,8c", InstructionMap::store);
-        //Load
-        instructions.put(",a9,a5,b5,ad,bd,b9,a1,b1,a2,a6,b6,ae,be,a0,a4,b4,ac,bc", InstructionMap::load);
-        //ADC
-        instructions.put(",69,65,75,6d,7d,79,61,71", InstructionMap::adc);
-        //AND
-        instructions.put(",29,25,35,2d,3d,39,21,31", InstructionMap::and);
-        //NOP
-        instructions.put(",ea", InstructionMap::nop);
-        //SBC
-        instructions.put(",e9,e5,f5,ed,fd,f9,e1,f1", InstructionMap::sbc);
-        //EOR
-        instructions.put(",49,45,55,4d,5d,59,41,51", InstructionMap::eor);
-        //ORA
-        instructions.put(",9,5,15,d,1d,19,1,11", InstructionMap::ora);
-        //RTI
-        instructions.put(",40", InstructionMap::rti);
-        //RTS
-        instructions.put(",60", InstructionMap::rts);
+
+    private static void rorZeroPage(CPU cpu, int addr) {
+        cpu.memory().put(addr, doRor(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(5);
+    }
+
+    private static void rorZeroPageX(CPU cpu, int base) {
+        final int addr = zeroPageX(cpu, base);
+        cpu.memory().put(addr, doRor(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void rorAbsolute(CPU cpu, int addr) {
+        cpu.memory().put(addr, doRor(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(6);
+    }
+
+    private static void rorAbsoluteX(CPU cpu, int base) {
+        final int addr = absoluteX(cpu, base);
+        cpu.memory().put(addr, doRor(cpu, cpu.memory().get(addr)));
+        cpu.clock().consumeTicks(7);
     }
-    
+
+    //------------------------------------------------------ Branch
+
     /**
-     * Test BIT
+     * Branch on plus
      */
-    private static final void bit(byte instr, int pos, CPU cpu){
-        switch(instr&0xff){
-            case 0x24:
-                BIT(cpu, cpu.popZeroPage());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x2c:
-                BIT(cpu, cpu.popAbsolute());
-                cpu.clock().consumeTicks(4);
-                break;
-        }
+    private static void bpl(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.n()==0);
     }
-    
+
     /**
-     * Rotate left and right
+     * Branch on minus
      */
-    private static final void rotate(byte instr, int pos, CPU cpu) {
-        Registers r = cpu.registers();
-        Memory m = cpu.memory();
-        switch(instr&0xff){
-            //ROL
-            case 0x2a: //Accumulator
-                r.regA((byte) doRol(cpu, r.regA()));
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x26: //Zero Page
-                int addr = cpu.popByte();
-                m.put(addr,
-                        (byte) doRol(cpu, m.get(pos)));
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x36: //Zero Page, X
-                int addr2 = cpu.popByte() + r.regX();
-                m.put(addr2 & 0xff,
-                        (byte) doRol(cpu, m.get(pos)));
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x2e: //Absolute
-                int addr3 = cpu.popWord();
-                m.put(addr3,
-                        (byte) doRol(cpu, m.get(addr3)));
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x3e: //Absolute, X
-               int addr4 = cpu.popWord() + r.regX();
-                m.put(addr4,
-                        (byte) doRol(cpu, m.get(addr4)));
-                cpu.clock().consumeTicks(7);
-                break;
-            //ROR
-            case 0x6a: //Accumulator
-                r.regA((byte) doRor(cpu, r.regA()));
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x66: //Zero Page
-                int addr5 = cpu.popByte();
-                m.put(addr5,
-                        (byte) doRor(cpu, m.get(pos)));
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x76: //Zero Page, X
-                int addr6 = cpu.popByte() + r.regX();
-                m.put(addr6 & 0xff,
-                        (byte) doRor(cpu, m.get(pos)));
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x6e: //Absolute
-                int addr7 = cpu.popWord();
-                m.put(addr7,
-                        (byte) doRor(cpu, m.get(addr7)));
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x7e: //Absolute, X
-               int addr8 = cpu.popWord() + r.regX();
-                m.put(addr8,
-                        (byte) doRor(cpu, m.get(addr8)));
-                cpu.clock().consumeTicks(7);
-                break;
-        }
+    private static void bmi(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.n()!=0);
     }
-    
+
     /**
-     * Logical and arithmetic shift
+     * Branch on overflow clear
      */
-    private static final void shift(byte instr, int pos, CPU cpu){
-        Registers r = cpu.registers();
-        switch(instr&0xff){
-            //Arithmetic Shift Left
-            case 0x0a: //Accumulator
-                setCarryFlagForBit7(r.regA(), cpu);
-                r.regA((byte) ((r.regA()<<1)&0xff));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x06: //Zero Page
-                byte zp = cpu.popByte();
-                byte zpval = cpu.memory().get(zp);
-                setCarryFlagForBit7(zpval, cpu);
-                zpval<<=1;
-                cpu.memory().put(zp, zpval);
-                setNZ(cpu, zpval);
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x16: //Zero Page, X
-                byte zpx = (byte) ((cpu.popByte() + r.regX()) & 0xff);
-                byte zpxval = cpu.memory().get(zpx);
-                setCarryFlagForBit7(zpxval, cpu);
-                zpxval<<=1;
-                cpu.memory().put(zpx, zpxval);
-                setNZ(cpu, zpxval);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x0e: //Absolute
-                int aaddr = cpu.popWord();
-                byte aval = cpu.memory().get(aaddr);
-                setCarryFlagForBit7(aval, cpu);
-                aval<<=1;
-                cpu.memory().put(aaddr, aval);
-                setNZ(cpu, aval);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x13: //Absolute, X
-                int axaddr = cpu.popWord() + r.regX();
-                byte axval = cpu.memory().get(axaddr);
-                setCarryFlagForBit7(axval, cpu);
-                axval<<=1;
-                cpu.memory().put(axaddr, axval);
-                setNZ(cpu, axval);
-                cpu.clock().consumeTicks(7);
-                break;
-            //LSR
-            case 0x4a: //Accumulator
-                setCarryFlagForBit0(r.regA(), cpu);
-                r.regA((byte) (r.regA()<<1));
-                setNZ(cpu, r.regA());
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x46: //Zero Page
-                int zpaddr = cpu.popByte();
-                byte zpval1 = cpu.memory().get(zpaddr);
-                setCarryFlagForBit0(zpval1, cpu);
-                zpval1>>=1;
-                cpu.memory().put(zpaddr, zpval1);
-                setNZ(cpu, zpval1);
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x56: //Zero Page, X
-                int zpaddr2 = cpu.popByte() + r.regX();
-                byte zpxval1 = cpu.memory().get(zpaddr2& 0xff);
-                setCarryFlagForBit0(zpxval1, cpu);
-                zpxval1>>=1;
-                cpu.memory().put(zpaddr2, zpxval1);
-                setNZ(cpu, zpxval1);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x4e: //Absolute
-                int lsaddr = cpu.popWord();
-                byte lsval = cpu.memory().get(lsaddr);
-                setCarryFlagForBit0(lsval, cpu);
-                lsval>>=1;
-                cpu.memory().put(lsaddr, lsval);
-                setNZ(cpu, lsval);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x5e: //Absolute, X
-                int lsaddr1 = cpu.popWord() + r.regX();
-                byte lsval1 = cpu.memory().get(lsaddr1);
-                setCarryFlagForBit0(lsval1, cpu);
-                lsval1>>=1;
-                cpu.memory().put(lsaddr1, lsval1);
-                setNZ(cpu, lsval1);
-                cpu.clock().consumeTicks(7);
-                break;
-        }
+    private static void bvc(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.overflow==0);
     }
-    
+
     /**
-     * Branch instructions:
-     * - BPL: Branch on plus
-     * - BMI: Branch on minus
-     * - BVC: Branch on Overflow clear
-     * - BVS: Branch on overflow set
-     * - BCC: Branch on carry clear
-     * - BCS: Branch on carry set
-     * - BNE: Branch on not equal
-     * - BEQ: Branch on equal
+     * Branch on overflow set
      */
-    private static final void branch(byte instr, int pos, CPU cpu) {
-        switch(instr&0xff) {
-            case 0x10: //Branch on Plus
-                byte off10 = cpu.popByte();
-                if ( cpu.flags().n() == 0 ){
-                    jumpBranch(cpu, off10);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0x30: //Branch on Minus
-                byte off30 = cpu.popByte();
-                if ( cpu.flags().n() != 0 ){
-                    jumpBranch(cpu, off30);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0x50: //Branch on Overflow Clear
-                byte off50 = cpu.popByte();
-                if (cpu.flags().v()==0) {
-                    jumpBranch(cpu, off50);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0x70: //Branch on Overflow Set
-                byte off70 = cpu.popByte();
-                if (cpu.flags().v()!=0) {
-                    jumpBranch(cpu, off70);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0x90: //Branch on carry clear
-                byte off90 = cpu.popByte();
-                if (cpu.flags().c()==0) {
-                    jumpBranch(cpu, off90);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0xb0: //Branch on carry set
-                byte offb0 = cpu.popByte();
-                if (cpu.flags().c()!=0) {
-                    jumpBranch(cpu, offb0);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0xd0: //Branch on not equal
-                byte offd0 = cpu.popByte();
-                if (cpu.flags().z()==0) {
-                    jumpBranch(cpu, offd0);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-            case 0xf0: //Branch on equal
-                byte offf0 = cpu.popByte();
-                if (cpu.flags().z()!=0) {
-                    jumpBranch(cpu, offf0);
-                    cpu.clock().consumeTicks(3);
-                }else{
-                    cpu.clock().consumeTicks(2);
-                }
-                break;
-        }
+    private static void bvs(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.overflow!=0);
     }
-    
+
     /**
-     * Register instructions
+     * Branch on carry clear
      */
-    private static final void registers(byte instr, int pos, CPU cpu){
-        Registers r = cpu.registers();
-        switch(instr&0xff){
-            case 0xaa: //TAX
-                r.regX(r.regA());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x8a: //TXA
-                r.regA(r.regX());
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xca: //DEX
-                r.regX((byte) ((r.regX()-1)&0xff));
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xe8: //INX
-                r.regX((byte) ((r.regX()+1)&0xff));
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xa8: //TAY
-                r.regY(r.regA());
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x98: //TYA
-                r.regA(r.regY());
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x88: //DEY
-                r.regY((byte) ((r.regY()-1)&0xff));
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xc8: //INY
-                r.regY((byte) ((r.regY()+1)&0xff));
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-         }
-    }
-    
+    private static void bcc(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.carry==0);
+    }
+
     /**
-     * Flag Instructions
+     * Branch on carry set
      */
-    private static final void flags(byte instr, int pos, CPU cpu){
-        Flags f = cpu.flags();
-        switch(instr&0xff){
-            case 0x18: //CLC
-                f.c((byte)0);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x38: //SEC
-                f.c((byte)1);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x58: //CLI
-                f.i((byte)0);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x78: //SEI
-                f.i((byte)1);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xb8: //CLV
-                f.v((byte)0);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xd8: //CLD
-                f.d((byte)0);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xf8: //SED
-                f.c((byte)1);
-                cpu.clock().consumeTicks(2);
-                break;
-        }
+    private static void bcs(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.carry!=0);
     }
-    
+
     /**
-     * Stack Instructions
+     * Branch on not equal
      */
-    private static final void stack(byte instr, int pos, CPU cpu){
-        Registers r = cpu.registers();
-        Memory m = cpu.memory();
-        switch(instr&0xff){
-            case 0x9a: //TXS
-                r.regSP(r.regX());
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xba: //TSX
-                r.regX(r.regSP());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x48: //PHA
-                pushStack(cpu, r.regA());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x68: //PLA
-                r.regA(popStack(cpu));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x08: //PHP
-                pushStack(cpu, cpu.flags().value());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x28: //PLP
-                cpu.flags().value();
-                cpu.clock().consumeTicks(4);
-                break;
-        }
+    private static void bne(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.z()==0);
     }
-    
+
     /**
-     * Jump instructions
+     * Branch on equal
      */
-    private static final void jump(byte instr, int pos, CPU cpu){
-        Registers r = cpu.registers();
-        switch(instr&0xff){
-            case 0x4c: //JMP Absolute
-                r.regPC((short) (cpu.popWord()&0xffff));
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x6c: //JMP Indirect
-                r.regPC((short)(cpu.memory().getWord(cpu.popWord())));
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x20: //JSR
-                int addr = cpu.popWord();
-                int currAddr = r.regPC()-1;
-                pushStack(cpu, (byte) ((currAddr>>8)&0xff) );
-                pushStack(cpu, (byte) (currAddr&0xff));
-                r.regPC((short) (addr&0xffff));
-                cpu.clock().consumeTicks(6);
-                break;
-        }
+    private static void beq(CPU cpu, int offset) {
+        branch(cpu, offset, cpu.state.z()!=0);
+    }
+
+    //------------------------------------------------------ Registers
+
+    private static void tax(CPU cpu, int operand) {
+        cpu.state.x=cpu.state.a;
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void txa(CPU cpu, int operand) {
+        cpu.state.a=cpu.state.x;
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void dex(CPU cpu, int operand) {
+        cpu.state.x=(byte) (cpu.state.x-1);
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void inx(CPU cpu, int operand) {
+        cpu.state.x=(byte) (cpu.state.x+1);
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void tay(CPU cpu, int operand) {
+        cpu.state.y=cpu.state.a;
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void tya(CPU cpu, int operand) {
+        cpu.state.a=cpu.state.y;
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void dey(CPU cpu, int operand) {
+        cpu.state.y=(byte) (cpu.state.y-1);
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void iny(CPU cpu, int operand) {
+        cpu.state.y=(byte) (cpu.state.y+1);
+        setNZforY(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    //------------------------------------------------------ Flags
+
+    private static void clc(CPU cpu, int operand) {
+        cpu.state.carry=(byte)0;
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void sec(CPU cpu, int operand) {
+        cpu.state.carry=(byte)1;
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void cli(CPU cpu, int operand) {
+        cpu.flags().i((byte)0);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void sei(CPU cpu, int operand) {
+        cpu.flags().i((byte)1);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void clv(CPU cpu, int operand) {
+        cpu.state.overflow=(byte)0;
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void cld(CPU cpu, int operand) {
+        cpu.flags().d((byte)0);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void sed(CPU cpu, int operand) {
+        cpu.flags().d((byte)1);
+        cpu.clock().consumeTicks(2);
+    }
+
+    //------------------------------------------------------ Stack
+
+    private static void txs(CPU cpu, int operand) {
+        cpu.state.sp=cpu.state.x;
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void tsx(CPU cpu, int operand) {
+        cpu.state.x=cpu.state.sp;
+        setNZforX(cpu);
+        cpu.clock().consumeTicks(2);
+    }
+
+    private static void pha(CPU cpu, int operand) {
+        pushStack(cpu, cpu.state.a);
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void pla(CPU cpu, int operand) {
+        cpu.state.a=popStack(cpu);
+        setNZforA(cpu);
+        cpu.clock().consumeTicks(4);
+    }
+
+    private static void php(CPU cpu, int operand) {
+        pushStack(cpu, cpu.state.flags());
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void plp(CPU cpu, int operand) {
+        cpu.state.flags(popStack(cpu));
+        cpu.clock().consumeTicks(4);
+    }
+
+    //------------------------------------------------------ Jump
+
+    private static void jmpAbsolute(CPU cpu, int addr) {
+        cpu.state.pc=addr;
+        cpu.clock().consumeTicks(3);
+    }
+
+    private static void jmpIndirect(CPU cpu, int pointer) {
+        cpu.state.pc=cpu.memory().getWord(pointer);
+        cpu.clock().consumeTicks(5);
     }
-    
+
     /**
-     * Compare accumulator, x and y registers
+     * Jump to subroutine, pushes the address of the last byte of this
+     * instruction
      */
-    private static final void compare(byte instr, int pos, CPU cpu){
-        Registers r = cpu.registers();
-        switch(instr&0xff){
-            //Compare A
-            case 0xC9: //Immediate
-                doCompare(cpu, r.regA(), cpu.popByte());
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xC5:  //Zero P
-                doCompare(cpu, r.regA(),
-                        cpu.memory().get(cpu.popByte()));
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0xD5: //Zero P, X
-                cpu.clock().consumeTicks(4);
-                doCompare(cpu, r.regA(),
-                        cpu.memory().get( (cpu.popByte() + r.regX())&0xff ));
-                break;
-            case 0xCD: //Absolute
-                doCompare(cpu, r.regA(),
-                        cpu.memory().get(cpu.popWord()));
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xDD: //Absolute, X
-                int addrdd = cpu.popWord() + r.regX();
-                doCompare(cpu, r.regA(), cpu.memory().get(addrdd));
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xD9: //Absolute, Y
-                int addrd9 = cpu.popWord() + r.regY();
-                doCompare(cpu, r.regA(), cpu.memory().get(addrd9));
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xC1: //Indirect, X
-                int zpc1 = (cpu.popByte() + r.regX() )&0xff;
-                int addrc1 = cpu.memory().getWord(zpc1);
-                doCompare(cpu, r.regA(), cpu.memory().get(addrc1));
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0xD1: //Indirect, Y
-                int zpd1 = cpu.popByte();
-                int addrd1 = cpu.memory().getWord(zpd1) + r.regY();
-                doCompare(cpu, r.regA(), cpu.memory().get(addrd1));
-                cpu.clock().consumeTicks(5);
-                break;
-            //Compare X
-            case 0xe0: //Immediate
-                doCompare(cpu, r.regX(), cpu.popByte());
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xe4: //Zero Page
-                doCompare(cpu, r.regX(),
-                        cpu.memory().get(cpu.popByte()));
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0xec: //Absolute
-                doCompare(cpu, r.regX(),
-                        cpu.memory().get(cpu.popWord()));
-                cpu.clock().consumeTicks(4);
-                break;
-            //Compare Y
-            case 0xc0: //Immediate
-                doCompare(cpu, r.regY(), cpu.popByte());
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xc4: //Zero Page
-                doCompare(cpu, r.regY(),
-                        cpu.memory().get(cpu.popByte()));
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0xcc: //Absolute
-                doCompare(cpu, r.regY(),
-                        cpu.memory().get(cpu.popWord()));
-                cpu.clock().consumeTicks(4);
-        }
+    private static void jsr(CPU cpu, int addr) {
+        final int currAddr = (cpu.state.pc-1)&0xffff;
+        pushStack(cpu, (byte) (currAddr>>8));
+        pushStack(cpu, (byte) currAddr);
+        cpu.state.pc=addr;
+        cpu.clock().consumeTicks(6);
     }
-    
+
     /**
-     * Load Accumulator, X and Y registers
+     * Return from interrupt
      */
-    private static final void load(byte instr, int pos, CPU cpu) {
-        final Registers r = cpu.registers();
-        
-        switch(instr&0xff) {
-            //Accumulator
-            case 0xa9: //Immediate
-                //Loads the popped byte into the A register
-                r.regA(
-                        cpu.popByte()
-                );
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-                
-            case 0xa5: //Zero Page
-                r.regA(
-                        cpu.popZeroPage()
-                );
-                cpu.clock().consumeTicks(3);
-                break;
-                
-            case 0xb5: //Zero page plus XRegister
-                r.regA((byte)
-                        cpu.popZeroPageX()
-                 );
-                cpu.clock().consumeTicks(4);
-                break;
-                
-            case 0xad: //Absolute
-                r.regA(
-                        cpu.memory().get(cpu.popWord())
-                );
-                cpu.clock().consumeTicks(4);
-                break;
-                
-            case 0xbd: //Absolute, X
-                r.regA(cpu.memory().get(cpu.popWord()+r.regX()
-                        )
-                );
-                cpu.clock().consumeTicks(4); //Ignore page boundary crossed
-                break;
-                
-            case 0xb9: //Absolute, Y
-                r.regA(cpu.memory().get(cpu.popWord()+r.regY()
-                        )
-                );
-                cpu.clock().consumeTicks(4); //Ignore page boundary crossed
-                break;
-            
-            case 0xa1: //Indirect, X
-                int zp_x = (cpu.popByte() + r.regX() ) & 0xff;
-                int addr_x = cpu.memory().getWord(zp_x);
-                
-                r.regA(
-                        cpu.memory().get(addr_x)
-                );
-                cpu.clock().consumeTicks(6);
-                break;
-            
-            case 0xb1: //Indirect, Y
-                int zp_y = cpu.popByte();
-                int addr_y = cpu.memory().getWord(zp_y) + r.regY();
-                
-                r.regA(
-                        cpu.memory().get(addr_y)
-                );
-                cpu.clock().consumeTicks(5); //Ignore page boundary crossed
-                break;
-            //X
-            case 0xa2: //Immediate
-                r.regX(cpu.popImmediate());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xa6: //Zero page
-                r.regX(cpu.popZeroPage());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0xb6: //Zero Page, Y
-                r.regX(cpu.popZeroPage());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xae: //Absolute
-                r.regX(cpu.popAbsolute());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xbe: //Absolute, Y
-                r.regX(cpu.popAbsoluteY());
-                setNZforX(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            //Y
-            case 0xa0: //Immediate
-                r.regY(cpu.popImmediate());
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xa4: //Zero Page
-                r.regY(cpu.popZeroPage());
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0xb4: //Zero Page, X
-                r.regY(cpu.popZeroPageX());
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xac: //Absolute
-                r.regY(cpu.popAbsolute());
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xbc: //Absolute, X
-                r.regY(cpu.popAbsoluteX());
-                setNZforY(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-        }
-        
+    private static void rti(CPU cpu, int operand){
+        cpu.state.flags(popStack(cpu));
+        final int lo = popStack(cpu)&0xff, hi = popStack(cpu)&0xff;
+        cpu.state.pc=lo | (hi<<8);
+        cpu.clock().consumeTicks(6);
     }
-    
+
     /**
-     * Store Accumulator, X and Y registers
+     * Return from subroutine
      */
-    private static final void store(byte instr, int pos, CPU cpu){
-        final Memory m = cpu.memory();
-        final Registers r = cpu.registers();
-        
-        switch(instr&0xff){
-            //Accumulator
-            case 0x85: //Zero Page
-                m.put(cpu.popByte(), r.regA());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x95: //Zero Page, X
-                m.put(( cpu.popByte() + r.regX() )&0xff,
-                        r.regA()
-                );
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x8d: //Absolute
-                m.put(cpu.popWord(), r.regA());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x9d: //Absolute, X
-                m.put(cpu.popWord() + r.regX(),
-                        r.regA());
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x99: //Absolute, Y
-                m.put(cpu.popWord()+r.regY(),
-                        r.regA()
-                );
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0x81: //Indirect, X
-                int zp81 = ( cpu.popByte() + r.regX() ) &0xff;
-                int addr81 = m.getWord(zp81);
-                m.put(addr81, r.regA());
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x91: //Indirect, Y
-                int zp91 = cpu.popByte();
-                int addr91 = m.getWord(zp91) + r.regY();
-                m.put(addr91, r.regA());
-                cpu.clock().consumeTicks(6);
-                break;
-            //X
-            case 0x86: //Zero Page
-                m.put(cpu.popByte()&0xff, r.regX());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x96: //Zero Page, Y
-                m.put((cpu.popByte() + r.regY())&0xff, r.regX());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x8e: //Absolute
-                m.put(cpu.popWord(), r.regX());
-                cpu.clock().consumeTicks(4);
-                break;
-            //Y
-            case 0x84: //Zero Page
-                m.put(cpu.popByte()&0xff, r.regY());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x94: //Zero Page, X
-                m.put((cpu.popByte() + r.regX())&0xff, r.regY());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x8c: //Absolute
-                m.put(cpu.popWord(), r.regY());
-                cpu.clock().consumeTicks(4);
-                break;
-        }
+    private static void rts(CPU cpu, int operand){
+        final int lo = popStack(cpu)&0xff, hi = popStack(cpu)&0xff;
+        cpu.state.pc=((lo | (hi<<8)) + 1)&0xffff;
+        cpu.clock().consumeTicks(6);
+    }
+
+    //---------------------------------------------------------
+
+    private static int zeroPageX(CPU cpu, int base){
+        return (base + cpu.state.x)&0xff;
+    }
+
+    private static int zeroPageY(CPU cpu, int base){
+        return (base + cpu.state.y)&0xff;
+    }
+
+    private static int absoluteX(CPU cpu, int base){
+        return (base + (cpu.state.x&0xff))&0xffff;
+    }
+
+    private static int absoluteY(CPU cpu, int base){
+        return (base + (cpu.state.y&0xff))&0xffff;
     }
-    
+
     /**
-     * Add with Carry
+     * (zero page + X), the pointer wraps around the zero page
      */
-    private static final void adc(byte instr, int pos, CPU cpu) {
-        Registers r = cpu.registers();
-        Flags f = cpu.flags();
-        switch(instr&0xff){
-            case 0x69: //Immediate
-                byte val69 = cpu.popByte();
-                doADC(r, val69, f, cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x65: //Zero Page
-                byte addr65 = cpu.popByte();
-                byte val65 = cpu.memory().get(addr65);
-                doADC(r, val65, f, cpu);
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x75: //Zero Page, X
-                int addr75 = (cpu.popByte() + r.regX())&0xff;
-                byte val75 = cpu.memory().get(addr75);
-                doADC(r, val75, f, cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x6d: //Absolute
-                int addr6d = cpu.popWord();
-                byte val6d = cpu.memory().get(addr6d);
-                doADC(r, val6d, f, cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x7d: //Absolute, X
-                int addr7d = cpu.popWord();
-                byte val7d = cpu.memory().get(addr7d+r.regX());
-                doADC(r, val7d, f, cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x79: //Absolute, Y
-                int addr79 = cpu.popWord();
-                byte val79 = cpu.memory().get(addr79+r.regY());
-                doADC(r, val79, f, cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x61: //Indirect, X
-                int zp61 = (cpu.popByte()+r.regX())&0xff;
-                int addr61 = cpu.memory().getWord(zp61);
-                byte val61 = cpu.memory().get(addr61);
-                doADC(r, val61, f, cpu);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x71: //Indirect, Y+
-                int zp71 = (cpu.popByte()+r.regX())&0xff;
-                int addr71 = cpu.memory().getWord(zp71);
-                byte val71 = cpu.memory().get(addr71);
-                doADC(r, val71, f, cpu);
-                cpu.clock().consumeTicks(5);
-                break;
-        }
+    private static int indirectX(CPU cpu, int zp){
+        return zeroPageWord(cpu, zeroPageX(cpu, zp));
     }
-    
+
     /**
-     * Bitwise AND with accumulator
+     * (zero page) + Y, the pointer wraps around the zero page
      */
-    private static final void and(byte instr, int pos, CPU cpu) {
-        Registers r = cpu.registers();
-        Memory m = cpu.memory();
-        switch(instr&0xff){
-            case 0x29: //Immediate
-                r.regA((byte) (r.regA() & cpu.popByte()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x25: //Zero Page
-                r.regA((byte) (
-                        r.regA() & m.get(cpu.popByte() /*Zero Page*/)
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x35: //Zero Page, X
-                r.regA((byte) (
-                        r.regA() & m.get(cpu.popByte() /*Zero Page*/ + r.regX())
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x2D: //Absolute
-                r.regA((byte) (
-                        r.regA() & m.get(cpu.popWord())
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x3D: //Absolute, X
-                r.regA((byte) (
-                        r.regA() & m.get(cpu.popWord() + r.regX())
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x39: //Absolute, Y
-                r.regA((byte) (
-                        r.regA() & m.get(cpu.popWord() + r.regY())
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x21: //Indirect, X
-                int zp21 = (cpu.popByte() + r.regX())&0xff;
-                int addr21 = m.getWord(zp21);
-                r.regA((byte)(
-                        r.regA() & m.get(addr21)
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x31: //Indirect, Y
-                int zp31 = cpu.popByte();
-                int addr31 = m.getWord(zp31) + r.regY();
-                r.regA((byte)(
-                        r.regA() & m.get(addr31)
-                ));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(5);
-                break;
-        }
+    private static int indirectY(CPU cpu, int zp){
+        return (zeroPageWord(cpu, zp) + (cpu.state.y&0xff))&0xffff;
     }
-    
+
     /**
-     * No Operation
+     * Reads a word like {@link Memory#getWord(int)}, the second byte of $FF
+     * is read from $00
      */
-    private static final void nop(byte instr, int pos, CPU cpu) {
-        switch(instr&0xff){
-            case 0xea: //NOP
-                cpu.clock().consumeTicks(2);
-                break;
-        }
+    private static int zeroPageWord(CPU cpu, int zp){
+        return ((cpu.memory().get(zp&0xff)<<8) + (cpu.memory().get((zp+1)&0xff)&0xff))&0xffff;
+    }
+
+    private static void decrement(CPU cpu, int pos){
+        final byte val = (byte) (cpu.memory().get(pos)-1);
+        setNZ(cpu, val);
+        cpu.memory().put(pos, val);
+    }
+
+    private static void increment(CPU cpu, int pos){
+        final byte val = (byte) (cpu.memory().get(pos)+1);
+        setNZ(cpu, val);
+        cpu.memory().put(pos, val);
+    }
+
+    private static byte doAsl(CPU cpu, byte val){
+        setCarryFlagForBit7(val, cpu);
+        val = (byte) (val<<1);
+        setNZ(cpu, val);
+        return val;
+    }
+
+    private static byte doLsr(CPU cpu, byte val){
+        setCarryFlagForBit0(val, cpu);
+        val = (byte) ((val&0xff)>>1);
+        setNZ(cpu, val);
+        return val;
+    }
+
+    private static byte doRor(CPU cpu , byte val){
+        int carrySet = cpu.state.carry;
+        setCarryFlagForBit0(val, cpu);
+        val = (byte) (((val&0xff)>>1) | (carrySet<<7));
+        setNZ(cpu, val);
+        return val;
+    }
+
+    private static byte doRol(CPU cpu , byte val){
+        int carrySet = cpu.state.carry;
+        setCarryFlagForBit7(val, cpu);
+        val = (byte) ((val<<1) | carrySet);
+        setNZ(cpu, val);
+        return val;
+    }
+
+    private static void doAND(CPU cpu, byte val){
+        cpu.state.a=(byte) (cpu.state.a & val);
+        setNZforA(cpu);
+    }
+
+    private static void doEOR(CPU cpu, byte val){
+        cpu.state.a=(byte) (cpu.state.a ^ val);
+        setNZforA(cpu);
+    }
+
+    private static void doORA(CPU cpu, byte val){
+        cpu.state.a=(byte) (cpu.state.a | val);
+        setNZforA(cpu);
+    }
+
+    private static void doSBC(CPU cpu, byte val){
+        final State s = cpu.state;
+        final int a = s.a&0xff;
+        setArithmetic(cpu, (s.status&State.D)!=0 ? Arithmetic.sbcDecimal(a, val&0xff, s.carry)
+                : Arithmetic.sbc(a, val&0xff, s.carry));
     }
-    
+
     /**
-     * Substract with carry
+     * Copies bit 7 and 6 of the value into N and V, Z is set when
+     * regA AND value is zero
      */
-    private static final void sbc(byte instr, int pos, CPU cpu) {
-        switch(instr&0xff){
-            case 0xe9: //Immediate
-                doSBC(cpu, cpu.popByte());
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0xe5: //Zero Page
-                doSBC(cpu, cpu.popZeroPage());
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0xf5: //Zero Page, X
-                doSBC(cpu, cpu.popZeroPageX());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xed: //Absolute
-                doSBC(cpu, cpu.popAbsolute());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xfd: //Absolute, X
-                doSBC(cpu, cpu.popAbsoluteX());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xf9: //Absolute, Y
-                doSBC(cpu, cpu.popAbsoluteY());
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xe1: //Indirect, X
-                doSBC(cpu, cpu.popIndirectX());
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0xf1: //Indirect, Y
-                doSBC(cpu, cpu.popIndirectY());
-                cpu.clock().consumeTicks(5);
-                break;
-        }
+    private static void BIT(CPU cpu , byte val){
+        final State s = cpu.state;
+        s.nResult=val;
+        s.overflow=(byte) ((val>>6)&0x1);
+        s.zResult=(byte) (s.a & val);
+    }
+
+    private static void setCarryFlagForBit0(byte val, CPU cpu){
+        cpu.state.carry=(byte) (val&0x1);
+    }
+
+    private static void setCarryFlagForBit7(byte val, CPU cpu){
+        cpu.state.carry=(byte) ((val>>7)&0x1);
+
     }
-    
+
     /**
-     * Exclusive OR
+     * Compares two registers as unsigned values
      */
-    private static final void eor(byte instr, int pos, CPU cpu) {
-        Registers r = cpu.registers();
-        switch(instr&0xff){
-            case 0x49: //Immediate
-                r.regA((byte) (r.regA()^cpu.popByte()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x45: //Zero Page
-                r.regA((byte) (r.regA()^cpu.popZeroPage()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x55: //Zero Page, X
-                r.regA((byte) (r.regA()^cpu.popZeroPage()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x4d: //Absolute
-                r.regA((byte) (r.regA()^cpu.popAbsolute()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x5d: //Absolute, X
-                r.regA((byte) (r.regA()^cpu.popAbsoluteX()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x59: //Absolute, Y
-                r.regA((byte) (r.regA()^cpu.popAbsoluteY()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x41: //Indirect, X
-                r.regA((byte) (r.regA()^cpu.popIndirectX()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x51: //Indirect, Y
-                r.regA((byte) (r.regA()^cpu.popIndirectY()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(5);
-                break;
-                
-        }
+    private static void doCompare(CPU cpu, byte v1, byte v2){
+        final int r = Arithmetic.cmp(v1&0xff, v2&0xff);
+        cpu.state.carry=(byte) (r>>8&1);
+        setNZ(cpu, (byte) r);
+    }
+
+    private static void doADC(CPU cpu, byte val) {
+        final State s = cpu.state;
+        final int a = s.a&0xff;
+        setArithmetic(cpu, (s.status&State.D)!=0 ? Arithmetic.adcDecimal(a, val&0xff, s.carry)
+                : Arithmetic.adc(a, val&0xff, s.carry));
     }
-    
+
     /**
-     * OR with accumulator
+     * Stores the result of an Arithmetic operation in regA and the flags
      */
-    private static final void ora(byte instr, int pos, CPU cpu) {
-        Registers r = cpu.registers();
-        switch(instr&0xff) {
-            case 0x9: //Immediate
-                r.regA((byte) (r.regA() | cpu.popByte()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(2);
-                break;
-            case 0x5: //Zero Page
-                r.regA((byte) (r.regA() | cpu.popZeroPage()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(3);
-                break;
-            case 0x15: //Zero Page, X
-                r.regA((byte) (r.regA() | cpu.popZeroPageX()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0xd: //Absolute
-                r.regA((byte) (r.regA() | cpu.popAbsolute()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x1d: //Absolute, X
-                r.regA((byte) (r.regA() | cpu.popAbsoluteX()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x19: //Absolute, Y
-                r.regA((byte) (r.regA() | cpu.popAbsoluteY()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(4);
-                break;
-            case 0x1: //Indirect, X
-                r.regA((byte) (r.regA() | cpu.popIndirectX()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0x11: //Indirect, Y
-                r.regA((byte) (r.regA() | cpu.popIndirectY()));
-                setNZforA(cpu);
-                cpu.clock().consumeTicks(5);
-                break;
-                
-        }
+    private static void setArithmetic(CPU cpu, int r) {
+        final State s = cpu.state;
+        s.a=(byte) r;
+        s.carry=(byte) (r>>8&1);
+        s.overflow=(byte) (r>>9&1);
+        s.result((byte) r);
     }
-    
+
     /**
-     * Break
+     * Enters an interrupt handler: pushes the program counter and the flags
+     * (with B clear), sets I and jumps to the address stored at VECTOR
      */
-    private static final void brk(byte instr, int pos, CPU cpu){
-        //Nada
+    static void interrupt(CPU cpu, int vector) {
+        final int pc = cpu.state.pc;
+        pushStack(cpu, (byte) (pc>>8));
+        pushStack(cpu, (byte) pc);
+        pushStack(cpu, (byte) (cpu.state.flags() & ~State.B));
+        cpu.state.status|=State.I;
+        cpu.state.pc=cpu.memory().getWord(vector);
         cpu.clock().consumeTicks(7);
     }
-    
+
     /**
-     * Return from interrupt
+     * Pushes a value into the stack, the stack pointer is decremented after
+     * the write
      */
-    private static final void rti(byte instr, int pos, CPU cpu){
-        switch(instr&0xff){
-            case 0x40:
-                int regP = cpu.flags().value();
-                byte b1 = popStack(cpu), b2 = popStack(cpu), b3 = popStack(cpu);
-                cpu.flags().value((byte) (regP | b1));
-                cpu.registers().regPC(b2 | (b3<<8) );
-                cpu.clock().consumeTicks(6);
-                break;
-        }
+    private static void pushStack(CPU cpu, byte val){
+        cpu.memory().put( (cpu.state.sp&0xff) + 0x100,
+                        val);
+        cpu.state.sp--;
     }
-    
+
     /**
-     * Return from subroutine
+     * Pops a value from the stack, the stack pointer is incremented before
+     * the read
      */
-    private static final void rts(byte instr, int pos, CPU cpu){
-        switch(instr&0xff){
-            case 0x60:
-                byte b1 = popStack(cpu), b2 = popStack(cpu);
-                cpu.registers().regPC( (b1 | (b2<<8)) + 1);
-                cpu.clock().consumeTicks(6);
-                break;
-        }
+    private static byte popStack(CPU cpu) {
+        cpu.state.sp++;
+        return cpu.memory().get((cpu.state.sp&0xff)+0x100);
     }
-    
+
     /**
-     * Increment Decrement operations
+     * If COND, jumps to the relative OFFSET (raw operand byte)
      */
-    private static final void incdec(byte instr, int pos, CPU cpu){
-        switch(instr&0xff){
-            //Dec
-            case 0xc6: //Zero Page
-                decrement(cpu, cpu.popByte());
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0xd6: //Zero Page, X
-                decrement(cpu, ( cpu.popByte() + cpu.registers().regX() ) &0xff);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0xce: //Absolute
-                decrement(cpu, cpu.popWord());
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0xde: //Absolute, X
-                decrement(cpu, cpu.popWord() + cpu.registers().regX());
-                cpu.clock().consumeTicks(7);
-                break;
-            //Inc
-            case 0xe6: //Zero Page
-                increment(cpu, cpu.popByte());
-                cpu.clock().consumeTicks(5);
-                break;
-            case 0xf6: //Zero Page, X
-                increment(cpu, ( cpu.popByte() + cpu.registers().regX() ) &0xff);
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0xee: //Absolute
-                increment(cpu, cpu.popWord());
-                cpu.clock().consumeTicks(6);
-                break;
-            case 0xfe: //Absolute, X
-                increment(cpu, cpu.popWord() + cpu.registers().regX());
-                cpu.clock().consumeTicks(7);
-                break;
+    private static void branch(CPU cpu, int offset, boolean cond) {
+        if (cond) {
+            cpu.state.pc=
+                    (cpu.state.pc + (byte) offset)&0xffff
+            ;
+            cpu.clock().consumeTicks(3);
+        }else{
+            cpu.clock().consumeTicks(2);
         }
     }
-    
-    //---------------------------------------------------------
-    
-    private static final void decrement(CPU cpu, int pos){
-        int val = cpu.memory().get(pos);
-        val--;
-        val&=0xff;
-        setNZ(cpu, (byte) val);
-        cpu.memory().put(pos, (byte) (val&0xff));
-    }
-    
-    private static final void increment(CPU cpu, int pos){
-        int val = cpu.memory().get(pos);
-        val--;
-        val&=0xff;
-        setNZ(cpu, (byte) val);
-        cpu.memory().put(pos, (byte) (val&0xff));
-    }
-    
-    private static final int doRor(CPU cpu , byte val){
-        int carrySet = cpu.flags().c();
-        setCarryFlagForBit0(val, cpu);
-        val>>=1;
-        if (carrySet!=0) {
-            val|=0x80;
-        }
-        setNZ(cpu, val);
-        return val;
+
+    //Operands of the superinstructions
+
+    private static int byteAt(CPU cpu, int pos) {
+        return cpu.memory().get(pos&0xffff)&0xff;
     }
-    
-    private static final int doRol(CPU cpu , byte val){
-        int carrySet = cpu.flags().c();
-        setCarryFlagForBit7(val, cpu);
-        val<<=1;
-        val+=carrySet;
-        setNZ(cpu, val);
-        return val;
+
+    private static int wordAt(CPU cpu, int pos) {
+        return cpu.memory().getWord(pos&0xffff);
     }
-    
-    private static final void doSBC(CPU cpu , byte val){
-        int tmp, w;
-        int regA = cpu.registers().regA();
-        
-        if ( ((regA^val)&0x80) !=0) {
-            cpu.flags().v((byte)1);
-        }else{
-            cpu.flags().v((byte)0);
-        }
-        
-        //If Decimal Mode Enabled
-        if (cpu.flags().d()!= 0 ) {
-            tmp = 0xf + (regA & 0xf) - (val & 0xf) + cpu.flags().c();
-            if (tmp < 0x10) {
-                w = 0;
-                tmp -= 6;
-            } else {
-                w = 0x10;
-                tmp -= 0x10;
-            }
-            
-            w += 0xf0 + (regA & 0xf0) - (val & 0xf0);
-            
-            if (w < 0x100) {
-                cpu.flags().c((byte)0);
-                if ( /*Overflow set*/ cpu.flags().v()!=0 && w < 0x80) {
-                    cpu.flags().v((byte)0);
-                }
-                w -= 0x60;
-            } else {
-                cpu.flags().c((byte)1); //Set carry
-                if (/*Overflow set*/cpu.flags().v()!=0 && w >= 0x180) {
-                    cpu.flags().v((byte)0);
-                }
-            }
-            w += tmp;
-        } else {
-            w = 0xff + regA - val + cpu.flags().c();
-            if (w < 0x100) {
-                cpu.flags().c((byte)1);//Clear carry
-                
-                if (/*Overflow set*/ cpu.flags().v()!=0 && w < 0x80) {
-                    cpu.flags().v((byte)0); //Clear overflow
-                }
-            } else {
-                cpu.flags().c((byte)1); //Set carry
-                if (/*Overflow set*/ cpu.flags().v()!=0 && w >= 0x180) {
-                    cpu.flags().v((byte)0); //Clear overflow
-                }
-            }
+
+    /**
+     * Gets the opcode at POS without reading devices, -1 in I/O pages
+     */
+    static int opcodeAt(CPU cpu, int pos) {
+        pos&=0xffff;
+        if (cpu.memory().isIo(pos>>>8)){
+            return -1;
         }
-        cpu.registers().regA((byte) (w&0xff));
-        setNZforA(cpu);
+        return cpu.memory().peek(pos)&0xff;
     }
-    
-    private static final void BIT(CPU cpu , byte val){
-        int regP = cpu.flags().value();
-        //Match Bit 8
-        if ((val&0x80) != 0){
-            regP|=0x80;
-        }else{
-            regP&=0x7f;
-        }
-        //Match Bit 7
-        if ((val&0x40) != 0){
-            regP|=0x40;
-        }else{
-            regP&= ~0x40;
-        }
-        //Match regA and value
-        if ( (cpu.registers().regA() & val) != 0){
-            regP&=0xfd;
-        }else{
-            regP|=0x02;
-        }
-        cpu.flags().value((byte) (regP&0xff));
+
+    //Flag-free loads and logic operations
+
+    private static void lda(CPU cpu, byte val, int ticks) {
+        cpu.state.a=val;
+        cpu.clock().consumeTicks(ticks);
     }
-    
-    private static final void setCarryFlagForBit0(byte val, CPU cpu){
-        cpu.flags().c((byte) (val&0x1));
+
+    private static void ldx(CPU cpu, byte val, int ticks) {
+        cpu.state.x=val;
+        cpu.clock().consumeTicks(ticks);
     }
-    
-    private static final void setCarryFlagForBit7(byte val, CPU cpu){
-        cpu.flags().c((byte) ((val>>7)&0x1));
-        
+
+    private static void ldy(CPU cpu, byte val, int ticks) {
+        cpu.state.y=val;
+        cpu.clock().consumeTicks(ticks);
     }
-    
-    private static final void doCompare(CPU cpu, byte v1, byte v2){
-        if (v1>= v2){
-            cpu.flags().c((byte)1); //Set carry
-        }else{
-            cpu.flags().c((byte)0); //Clear carry
-        }
-        v2 = (byte) (v1-v2);
-        setNZ(cpu, v2);
-    }
-    
-    private static final void doADC(Registers r, byte val, Flags f, CPU cpu) {
-        //Check if either regA or value have the most significant bit to 1
-        if (((r.regA() ^ val)&0x80) != 0){
-            f.v((byte)0);
-        }else{
-            f.v((byte)1);
-        }
-        
-        int tmp = 0;
-        
-        //Lets do the sum
-        if (f.d()!=0){//Decimal mode
-            //  4-Bytes of RegA, 4 of value, and 1 if carry set
-            tmp= r.regA()&0xf + val&0xf + f.c();
-            
-            if(tmp>=10){ //Diez porque es decimal :/
-                tmp = 0x10 | ((tmp + 6) & 0xf);
-            }
-            
-            tmp += (r.regA() & 0xf0) + (val & 0xf0);
-            
-            if (tmp >= 160) {
-                f.c((byte)1); //Set carry
-                if (f.v()!=0 && tmp >= 0x180) { f.v((byte)0); }
-                tmp += 0x60;
-            } else {
-                f.c((byte)0);//Clear carry
-                if (f.v()!=0 && tmp < 0x80) { f.v((byte)0); } //Clear overflow
-            }
-            tmp = r.regA() + val + f.c();
-            
-        }else{
-            if (tmp >= 0x100) {
-                f.c((byte)1); //Set carry
-                if (f.v()!=0 && tmp >= 0x180) {  f.v((byte)0); } //Clear overflow
-            } else {
-                f.c((byte)0);//Clear carry;
-                if (f.v()!=0 && tmp < 0x80) {  f.v((byte)0); } //Clear overflow
-            }
-        }
-        
-        r.regA((byte) (tmp&0xff));
-        setNZforA(cpu);
+
+    private static void and(CPU cpu, byte val, int ticks) {
+        lda(cpu, (byte) (cpu.state.a & val), ticks);
     }
-    
-    private static final void pushStack(CPU cpu, byte val){
-        cpu.memory().put( (cpu.registers().regSP()&0xff) + 0x100,
-                        val);
+
+    private static void eor(CPU cpu, byte val, int ticks) {
+        lda(cpu, (byte) (cpu.state.a ^ val), ticks);
     }
-    
-    private static final byte popStack(CPU cpu) {
-        cpu.registers().incRegSP();
-        return cpu.memory().get(cpu.registers().regSP()+0x100);
-    }
-    
-    private static void jumpBranch(CPU cpu, int offset) {
-        if (offset > 0x7f) { //Negative
-            cpu.registers().regPC(
-                    (short) (cpu.registers().regPC() - ( 0x100 - offset))
-            );
-        }else{
-            cpu.registers().regPC(
-                    (short) (cpu.registers().regPC() + offset)
-            );
-        }
+
+    private static void ora(CPU cpu, byte val, int ticks) {
+        lda(cpu, (byte) (cpu.state.a | val), ticks);
     }
-    
+
     /**
      * Sets negative or zero
      */
     private static void setNZ(CPU cpu, byte val) {
-        if (val==0){
-            cpu.flags().z((byte)1);
-        }else{
-            cpu.flags().z((byte)0);
-        }
-        
-        //If negative bit, aka: 8th bit, is 0, the number is positive
-        if( (val&0x80) == 0) {
-            cpu.flags().n((byte)0);
-        }else{
-            cpu.flags().n((byte)1);
-        }
+        //Evaluated when they are read
+        cpu.state.result(val);
     }
-    
+
     private static void setNZforA(CPU cpu) {
-        setNZ(cpu, cpu.registers().regA());
+        setNZ(cpu, cpu.state.a);
     }
-    
+
     private static void setNZforX(CPU cpu) {
-        setNZ(cpu, cpu.registers().regX());
+        setNZ(cpu, cpu.state.x);
     }
-    
+
     private static void setNZforY(CPU cpu) {
-        setNZ(cpu, cpu.registers().regY());
+        setNZ(cpu, cpu.state.y);
     }
-    
-    static interface Instruction{
-        public void consume(byte instr, int pos, CPU cpu);
+
+    /**
+     * Handler of an opcode, receives the raw operand: 0 for implied
+     * instructions, the byte for two-byte instructions and the word for
+     * three-byte instructions. It's public only for the classes generated by
+     * {@link BlockCompiler}
+     */
+    public static interface Instruction{
+        public void consume(CPU cpu, int operand);
+    }
+
+    /**
+     * Superinstruction, executes two or three instructions that start at PC
+     * in one dispatch. Every instruction consumes its own ticks
+     */
+    static interface Fused{
+        /**
+         * @return  The number of instructions executed
+         */
+        public int consume(CPU cpu, int pc);
+    }
+
+    /**
+     * Addressing modes, they define the length of the instruction and the
+     * meaning of its operand
+     */
+    public static enum Mode {
+        /**
+         * No operand, also used for the accumulator instructions
+         */
+        IMPLIED(1),
+        IMMEDIATE(2),
+        ZERO_PAGE(2),
+        ZERO_PAGE_X(2),
+        ZERO_PAGE_Y(2),
+        ABSOLUTE(3),
+        ABSOLUTE_X(3),
+        ABSOLUTE_Y(3),
+        /**
+         * Only JMP, the operand is the address of the target
+         */
+        INDIRECT(3),
+        INDIRECT_X(2),
+        INDIRECT_Y(2),
+        /**
+         * Branches, the operand is a signed offset from the next instruction
+         */
+        RELATIVE(2);
+
+        private final int length;
+
+        private Mode(int length) {
+            this.length = length;
+        }
+
+        /**
+         * Length in bytes of the instructions of this mode, opcode included
+         * @return  The length
+         */
+        public int length() {
+            return length;
+        }
     }
 }
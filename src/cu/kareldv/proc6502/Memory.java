@@ -20,12 +20,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
- *
+ * The 64 KB of memory, organized as a bus of 256 pages of 256 bytes. Every
+ * page is either plain RAM, read-only ROM or I/O (a page with watched or
+ * read-mapped positions). Reading and writing RAM is a single array access,
+ * the other kinds are resolved through the page table in constant time, no
+ * matter how many watchers are registered.
+ * Pages with predecoded instructions (see {@link CPU.ExecutionMode#BLOCKS})
+ * are code pages, writing into them drops the decoded blocks.
+ * Every page has its own array, a forked memory shares them with its parent
+ * and copies a page before its first write, the pages of a {@link Rom} are
+ * shared by all the memories that map it. The pages that were not written
+ * since the last reset share a page filled with the reset value, so a
+ * memory only allocates the pages its program writes
  * @author Karel
  */
 public final class Memory {
@@ -33,41 +44,114 @@ public final class Memory {
      * Memory available 64 KB
      */
     public static final int MEMORY = 64 * 1024;
-    private final byte[] data = new byte[MEMORY];
-    private final Map<Range, OnValueInRangeChanged> events = new HashMap<>();
+    /**
+     * Size of a page, in bytes
+     */
+    public static final int PAGE_SIZE = 256;
+    /**
+     * Number of pages
+     */
+    public static final int PAGES = MEMORY / PAGE_SIZE;
+    private static final int ADDRESS_MASK = MEMORY - 1;
+    //Page kinds, reads are only slow in IO pages and writes in all but RAM
+    private static final byte RAM = 0, ROM = 1, IO = 2, CODE = 3, WATCHED = 4, SHARED = 5;
+    
+    //Read-only pages filled with every value, for the pages not written yet
+    private static final byte[][] FILLED = new byte[256][PAGE_SIZE];
+    private final byte[][] data = new byte[PAGES][];
+    //Pages whose array is shared with other memories, copied before writing
+    private final boolean[] shared = new boolean[PAGES];
+    private final byte[] pageKinds = new byte[PAGES];
+    private final boolean[] readOnly = new boolean[PAGES];
+    private final IoPage[] ioPages = new IoPage[PAGES];
+    private final boolean[] code = new boolean[PAGES];
+    //Pages with read or write watchpoints
+    private final boolean[] watchedReads = new boolean[PAGES];
+    private final boolean[] watchedWrites = new boolean[PAGES];
+    private Debugger debugger;
+    private BlockCache blocks;
+    private int ioAccesses;
+    private final Map<Range, OnValueInRangeChanged> events = new LinkedHashMap<>();
+    private final Map<Range, OnValueInRangeRead> readEvents = new LinkedHashMap<>();
+    
+    static {
+        for (int i = 0; i < FILLED.length; i++) {
+            Arrays.fill(FILLED[i], (byte) i);
+        }
+    }
     
     /**
-     * Default constructor, creates an empty array
+     * Default constructor, creates an empty memory, the pages are allocated
+     * when they are first written
      */
     public Memory() {
+        for (int i = 0; i < PAGES; i++) {
+            data[i]=FILLED[0];
+            shared[i]=true;
+            updateKind(i);
+        }
     }
     
     /**
-     * Copies the memory from {@code other}
+     * Copies the memory from {@code other}, the ROM pages are kept read-only
+     * but the watchers are not copied
      * @param other Other memory to copy data from
      */
     public Memory(Memory other) {
-        System.arraycopy(other.data, 0, data, 0, MEMORY);
+        for (int i = 0; i < PAGES; i++) {
+            //Shared pages are never written, only the others are copied
+            shared[i]=other.shared[i];
+            data[i]=shared[i] ? other.data[i] : other.data[i].clone();
+        }
+        System.arraycopy(other.readOnly, 0, readOnly, 0, PAGES);
+        for (int i = 0; i < PAGES; i++) {
+            updateKind(i);
+        }
     }
     
     /**
-     * Copies the data from the given array
+     * Copies the data from the given array, from position 0
      * @param data      Byte set, the data
      * @param startFrom Position where to start the copy
      */
     public Memory(byte[] data, int startFrom) {
-        System.arraycopy(data, startFrom, this.data,
-                Math.max(0, Math.min(data.length-startFrom, MEMORY)),
-                MEMORY);
+        this();
+        write(data, startFrom, 0, Math.max(0, Math.min(data.length-startFrom, MEMORY)));
     }
     
     /**
-     * Gets a byte from the data
-     * @param pos   The position in range [0;MEMORY)
+     * Gets a byte from the data, positions mapped with
+     * {@link #addRangeRead(int, int, OnValueInRangeRead)} are read from
+     * their device
+     * @param pos   The position, wraps around MEMORY
      * @return      The byte at the given position
      */
     public byte get(int pos){
-        return data[Math.min(MEMORY-1, pos)];
+        pos&=ADDRESS_MASK;
+        if (pageKinds[pos>>>8]!=IO){
+            return data[pos>>>8][pos&0xff];
+        }
+        return getSlow(pos);
+    }
+    
+    /**
+     * Internal use
+     * Reads from an I/O page or a page with read watchpoints
+     */
+    private byte getSlow(int pos) {
+        if (watchedReads[pos>>>8]){
+            debugger.accessed(Debugger.Kind.READ, pos);
+        }
+        final IoPage io = ioPages[pos>>>8];
+        if (io==null){
+            return data[pos>>>8][pos&0xff];
+        }
+        ioAccesses++;
+        final OnValueInRangeRead evnt = io.readers[pos&0xff];
+        if (evnt!=null){
+            return evnt.read(this, pos);
+        }
+        return data[pos>>>8][pos&0xff];
     }
     
     /**
@@ -80,14 +164,44 @@ public final class Memory {
     }
     
     /**
-     * Puts a byte into the data, at given pos
-     * @param pos   Position
+     * Puts a byte into the data, at given pos. Writes to ROM pages are
+     * ignored
+     * @param pos   Position, wraps around MEMORY
      * @param b     Value to insert
      * @return      This
      */
     public Memory put(int pos, byte b) {
-        data[Math.min(MEMORY-1, pos)]=b;
-        notifyMemory(pos);
+        pos&=ADDRESS_MASK;
+        if (pageKinds[pos>>>8]==RAM){
+            data[pos>>>8][pos&0xff]=b;
+            return this;
+        }
+        return putSlow(pos, b);
+    }
+    
+    /**
+     * Internal use
+     * Writes into a ROM, I/O, code, watched or shared page
+     */
+    private Memory putSlow(int pos, byte b) {
+        final int page = pos>>>8;
+        if (watchedWrites[page]){
+            debugger.accessed(Debugger.Kind.WRITE, pos);
+        }
+        if (readOnly[page]){
+            return this;
+        }
+        writable(page)[pos&0xff]=b;
+        if (code[page]){
+            blocks.invalidate(page);
+        }
+        final IoPage io = ioPages[page];
+        if (io!=null){
+            ioAccesses++;
+        }
+        if (io!=null && io.watchers[pos&0xff]!=null){
+            io.watchers[pos&0xff].changed(this, pos, b);
+        }
         return this;
     }
     
@@ -113,7 +227,7 @@ public final class Memory {
             }
             
             //The bytes
-            bld.append(String.format(" %02X", data[i]));
+            bld.append(String.format(" %02X", peek(i)));
             
             //Insert last line break
             if ((i+1)%lineSize==0 && (i+1)!= end){
@@ -124,10 +238,19 @@ public final class Memory {
         return bld.toString();
     }
     
+    /**
+     * Watches the writes into the range [start;end], the pages of the range
+     * become I/O pages
+     * @param start First position
+     * @param end   Last position, included
+     * @param evnt  Gets called after a value in the range is written
+     * @return      This
+     */
     public Memory addRangeWatched(int start, int end, OnValueInRangeChanged evnt){
-        assert (start<end && start>=0 && end<MEMORY); //Assume
+        assert (start<=end && start>=0 && end<MEMORY); //Assume
         assert (evnt!=null);
         events.put(new Range(start, end, true, true), evnt);
+        watch(start, end, evnt);
         return this;
     }
     
@@ -142,16 +265,370 @@ public final class Memory {
         }
         if(toDel!=null){
             events.remove(toDel);
+            rebuildWatchers();
         }
         return this;
     }
     
-    private void notifyMemory(int pos){
-        for (Range range : events.keySet()) {
-            if(range.contains(pos)){
-                events.get(range).changed(this, pos, get(pos));
+    /**
+     * Maps the reads of the range [start;end] to EVNT, the device computes
+     * the value only when it's read. The pages of the range become I/O pages.
+     * If several devices map the same position the last one wins
+     * @param start First position
+     * @param end   Last position, included
+     * @param evnt  Gets called when a value in the range is read
+     * @return      This
+     */
+    public Memory addRangeRead(int start, int end, OnValueInRangeRead evnt){
+        assert (start<=end && start>=0 && end<MEMORY); //Assume
+        assert (evnt!=null);
+        readEvents.put(new Range(start, end, true, true), evnt);
+        mapReads(start, end, evnt);
+        return this;
+    }
+    
+    public Memory removeRangeRead(OnValueInRangeRead evnt) {
+        assert(evnt!=null);
+        Range toDel = null;
+        for (Range range : readEvents.keySet()) {
+            if (readEvents.get(range).equals(evnt)){
+                toDel=range;
+                break;
+            }
+        }
+        if(toDel!=null){
+            readEvents.remove(toDel);
+            rebuildWatchers();
+        }
+        return this;
+    }
+    
+    /**
+     * Marks the pages that contain the range [start;end] as read-only, the
+     * writes into them are ignored. Use {@link #loadBytes(byte[], int, int)}
+     * to load their contents
+     * @param start First position
+     * @param end   Last position, included
+     * @return      This
+     */
+    public Memory mapRom(int start, int end) {
+        assert (start<=end && start>=0 && end<MEMORY); //Assume
+        for (int page = start>>>8; page <= end>>>8; page++) {
+            readOnly[page]=true;
+            updateKind(page);
+        }
+        return this;
+    }
+    
+    /**
+     * Maps ROM as read-only pages, they reference the arrays of ROM instead of
+     * copies, shared by every memory that maps it. Loading bytes into them
+     * or mapping them as RAM copies them first
+     * @param rom   The ROM image
+     * @return      This
+     */
+    public Memory mapRom(Rom rom) {
+        assert rom!=null;
+        final int first = rom.start()>>>8;
+        for (int i = 0; i < rom.pages(); i++) {
+            final int page = first+i;
+            if (code[page]){
+                blocks.invalidate(page);
+            }
+            data[page]=rom.page(i);
+            shared[page]=true;
+            readOnly[page]=true;
+            updateKind(page);
+        }
+        return this;
+    }
+    
+    /**
+     * Marks the pages that contain the range [start;end] as writable again
+     * @param start First position
+     * @param end   Last position, included
+     * @return      This
+     */
+    public Memory mapRam(int start, int end) {
+        assert (start<=end && start>=0 && end<MEMORY); //Assume
+        for (int page = start>>>8; page <= end>>>8; page++) {
+            readOnly[page]=false;
+            updateKind(page);
+        }
+        return this;
+    }
+    
+    /**
+     * Checks if the page that contains the given position is read-only
+     * @param pos   The position
+     * @return      True if it's ROM
+     */
+    public boolean isRom(int pos) {
+        return readOnly[(pos&ADDRESS_MASK)>>>8];
+    }
+    
+    /**
+     * Internal use
+     * Registers EVNT in the I/O pages of the range
+     */
+    private void watch(int start, int end, OnValueInRangeChanged evnt) {
+        for (int pos = start; pos <= end; pos++) {
+            final OnValueInRangeChanged[] watchers = ioPage(pos>>>8).watchers;
+            final OnValueInRangeChanged prev = watchers[pos&0xff];
+            watchers[pos&0xff] = prev==null ? evnt : new ChainedWatch(prev, evnt);
+        }
+    }
+    
+    /**
+     * Internal use
+     * Registers EVNT as the reader of the range
+     */
+    private void mapReads(int start, int end, OnValueInRangeRead evnt) {
+        for (int pos = start; pos <= end; pos++) {
+            ioPage(pos>>>8).readers[pos&0xff] = evnt;
+        }
+    }
+    
+    /**
+     * Internal use
+     * Gets the I/O page, creating it if needed
+     */
+    private IoPage ioPage(int page) {
+        if (ioPages[page]==null){
+            ioPages[page]=new IoPage();
+            if (code[page]){
+                //Blocks are never decoded from I/O pages
+                blocks.invalidate(page);
+            }
+            updateKind(page);
+        }
+        return ioPages[page];
+    }
+    
+    /**
+     * Internal use
+     * Builds again the I/O pages from the registered ranges
+     */
+    private void rebuildWatchers() {
+        invalidateCode();
+        Arrays.fill(ioPages, null);
+        for (int i = 0; i < PAGES; i++) {
+            updateKind(i);
+        }
+        for (Map.Entry<Range, OnValueInRangeChanged> entry : events.entrySet()) {
+            watch(entry.getKey().getStart(), entry.getKey().getEnd(), entry.getValue());
+        }
+        for (Map.Entry<Range, OnValueInRangeRead> entry : readEvents.entrySet()) {
+            mapReads(entry.getKey().getStart(), entry.getKey().getEnd(), entry.getValue());
+        }
+    }
+    
+    /**
+     * Internal use
+     * Updates the kind of the page, I/O (or read watchpoints) wins over ROM
+     * (read-only I/O pages still ignore the writes), ROM over write
+     * watchpoints, those over shared pages and those over code
+     */
+    private void updateKind(int page) {
+        if (ioPages[page]!=null || watchedReads[page]){
+            pageKinds[page]=IO;
+        }else if (readOnly[page]){
+            pageKinds[page]=ROM;
+        }else if (watchedWrites[page]){
+            pageKinds[page]=WATCHED;
+        }else if (shared[page]){
+            pageKinds[page]=SHARED;
+        }else if (code[page]){
+            pageKinds[page]=CODE;
+        }else{
+            pageKinds[page]=RAM;
+        }
+    }
+    
+    /**
+     * Internal use
+     * Gets the decoded blocks of this memory
+     */
+    BlockCache blocks() {
+        if (blocks==null){
+            blocks=new BlockCache(this);
+        }
+        return blocks;
+    }
+    
+    /**
+     * Internal use
+     * Number of reads and writes of I/O pages so far
+     */
+    int ioAccesses() {
+        return ioAccesses;
+    }
+    
+    /**
+     * Internal use
+     * Copies the data and the ROM pages of OTHER, not its devices
+     */
+    void copyFrom(Memory other) {
+        for (int i = 0; i < PAGES; i++) {
+            if (other.shared[i]){
+                data[i]=other.data[i];
+                if (!shared[i]){
+                    shared[i]=true;
+                    updateKind(i);
+                }
+            }else{
+                System.arraycopy(other.data[i], 0, writable(i), 0, PAGE_SIZE);
+            }
+        }
+        invalidateCode();
+        for (int i = 0; i < PAGES; i++) {
+            if (readOnly[i]!=other.readOnly[i]){
+                readOnly[i]=other.readOnly[i];
+                updateKind(i);
+            }
+        }
+    }
+    
+    /**
+     * Internal use
+     * Gets a memory with the data, the ROM pages and the compiled program of
+     * this one, not its devices. The pages are shared by both until they are
+     * written
+     */
+    Memory fork() {
+        final Memory m = new Memory(true);
+        for (int i = 0; i < PAGES; i++) {
+            m.data[i]=data[i];
+            m.readOnly[i]=readOnly[i];
+            m.shared[i]=true;
+            m.updateKind(i);
+            if (!shared[i]){
+                shared[i]=true;
+                updateKind(i);
             }
         }
+        if (blocks!=null){
+            m.blocks=new BlockCache(m);
+            m.blocks.copySettings(blocks);
+        }
+        return m;
+    }
+    
+    /**
+     * Internal use
+     * Creates a memory without pages, for {@link #fork()}
+     */
+    private Memory(boolean empty) {
+    }
+    
+    /**
+     * Internal use
+     * Gets the array of the page to write it, copying it if it's shared
+     */
+    private byte[] writable(int page) {
+        if (shared[page]){
+            data[page]=data[page].clone();
+            shared[page]=false;
+            updateKind(page);
+        }
+        return data[page];
+    }
+    
+    /**
+     * Internal use
+     * Copies LEN bytes of SRC from OFF into the pages from POS
+     */
+    private void write(byte[] src, int off, int pos, int len) {
+        while(len>0){
+            final int n = Math.min(len, PAGE_SIZE-(pos&0xff));
+            System.arraycopy(src, off, writable(pos>>>8), pos&0xff, n);
+            off+=n;
+            pos+=n;
+            len-=n;
+        }
+    }
+    
+    /**
+     * Internal use
+     * Reads the data at POS without devices nor watchpoints
+     */
+    byte peek(int pos) {
+        pos&=ADDRESS_MASK;
+        return data[pos>>>8][pos&0xff];
+    }
+    
+    /**
+     * Internal use
+     * Checks if the page shares its array with other memories
+     */
+    boolean isShared(int page) {
+        return shared[page];
+    }
+    
+    /**
+     * Internal use
+     * Sets the debugger notified by the watched pages
+     */
+    void debugger(Debugger d) {
+        debugger=d;
+        if (d==null){
+            Arrays.fill(watchedReads, false);
+            Arrays.fill(watchedWrites, false);
+            for (int i = 0; i < PAGES; i++) {
+                updateKind(i);
+            }
+        }
+    }
+    
+    /**
+     * Internal use
+     * Marks the pages with read or write watchpoints, their accesses take
+     * the slow path
+     */
+    void watch(int page, boolean reads, boolean writes) {
+        if (watchedReads[page]!=reads || watchedWrites[page]!=writes){
+            watchedReads[page]=reads;
+            watchedWrites[page]=writes;
+            updateKind(page);
+        }
+    }
+    
+    /**
+     * Internal use
+     * Checks if the page has watched or read-mapped positions
+     */
+    boolean isIo(int page) {
+        return ioPages[page]!=null;
+    }
+    
+    /**
+     * Internal use
+     * Marks a page the blocks were decoded from, its writes take the slow
+     * path
+     */
+    void markCode(int page) {
+        if (!code[page]){
+            code[page]=true;
+            updateKind(page);
+        }
+    }
+    
+    void unmarkCode(int page) {
+        if (code[page]){
+            code[page]=false;
+            updateKind(page);
+        }
+    }
+    
+    /**
+     * Internal use
+     * Drops the decoded blocks, called when the memory is written without
+     * {@link #put(int, byte)}
+     */
+    private void invalidateCode() {
+        if (blocks!=null){
+            blocks.invalidateAll();
+        }
     }
     
     /**
@@ -162,7 +639,8 @@ public final class Memory {
      * @return      This
      */
     public Memory loadBytes(byte[] data, int len, int pos) {
-        System.arraycopy(data, 0, this.data, pos, len);
+        invalidateCode();
+        write(data, 0, pos, len);
         return this;
     }
     
@@ -181,7 +659,8 @@ public final class Memory {
         byte[] dataB = new byte[len];
         in.read(dataB);
         in.close();
-        System.arraycopy(dataB, 0, this.data, pos, len);
+        invalidateCode();
+        write(dataB, 0, pos, len);
         return this;
     }
     
@@ -194,40 +673,52 @@ public final class Memory {
     public Memory loadBytes(InputStream in, int len, int pos) throws IOException{
         //Assume Pos is in range [60,MEMORY)
         //could cause an ArrayIndexOutOfBounds
+        invalidateCode();
         for (int i = 0; i < len; i++) {
-            data[pos+i]=(byte) (in.read()&0xff);
+            writable((pos+i)>>>8)[(pos+i)&0xff]=(byte) (in.read()&0xff);
         }
         //Done
         return this;
     }
     
     /**
-     * Gets the memory
+     * Gets a copy of the memory, writing into it doesn't change the memory,
+     * use {@link #put(int, byte)} or {@link #loadBytes(byte[], int, int)}
      * @return The bytes of the memory
      */
     public byte[] memory(){
-        return data;
+        final byte[] copy = new byte[MEMORY];
+        for (int i = 0; i < PAGES; i++) {
+            System.arraycopy(data[i], 0, copy, i*PAGE_SIZE, PAGE_SIZE);
+        }
+        return copy;
     }
     
     /**
-     * Resets this memory, filling any position with 0
+     * Resets this memory, filling any position with 0. ROM pages are kept
      * @return  This
      */
     public Memory reset(){
-        for (int i = 0; i < data.length; i++) {
-            data[i]=0;
-        }
-        return this;
+        return reset((byte)0);
     }
     
     /**
-     * Fills all the positions with the given VAL
+     * Fills all the positions with the given VAL. ROM pages are kept, the
+     * others are released until they are written again
      * @param val   Value to fill the memory positions
      * @return      This
      */
     public Memory reset(byte val){
-        for (int i = 0; i < data.length; i++) {
-            data[i]=val;
+        invalidateCode();
+        for (int page = 0; page < PAGES; page++) {
+            if (readOnly[page]){
+                continue;
+            }
+            data[page]=FILLED[val&0xff];
+            if (!shared[page]){
+                shared[page]=true;
+                updateKind(page);
+            }
         }
         return this;
     }
@@ -238,4 +729,37 @@ public final class Memory {
     public static interface OnValueInRangeChanged{
         public void changed(Memory mem, int pos, byte newVal);
     }
+    
+    /**
+     * Interface that provides the value of a read-mapped position
+    **/
+    public static interface OnValueInRangeRead{
+        public byte read(Memory mem, int pos);
+    }
+    
+    /**
+     * Watchers and readers of a page, indexed by the low byte of the position
+     */
+    private static final class IoPage {
+        final OnValueInRangeChanged[] watchers = new OnValueInRangeChanged[PAGE_SIZE];
+        final OnValueInRangeRead[] readers = new OnValueInRangeRead[PAGE_SIZE];
+    }
+    
+    /**
+     * Two watchers of the same position, called in registration order
+     */
+    private static final class ChainedWatch implements OnValueInRangeChanged {
+        private final OnValueInRangeChanged first, second;
+
+        ChainedWatch(OnValueInRangeChanged first, OnValueInRangeChanged second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void changed(Memory mem, int pos, byte newVal) {
+            first.changed(mem, pos, newVal);
+            second.changed(mem, pos, newVal);
+        }
+    }
 }
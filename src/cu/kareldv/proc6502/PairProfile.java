@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts of the opcode pairs executed by the interpreter, used to choose
+ * the superinstructions of the processor:
+ * <pre>
+ * PairProfile profile = new PairProfile();
+ * cpu.pairProfile(profile).run(1_000_000);
+ * cpu.pairProfile(null).superinstructions(profile.select(8));
+ * </pre>
+ * It's not thread safe, use one per processor
+ * @author Karel
+ */
+public final class PairProfile {
+    private final long[] counts = new long[InstructionMap.OPCODES*InstructionMap.OPCODES];
+
+    /**
+     * Internal use
+     * Counts the pair
+     */
+    void record(int first, int second) {
+        counts[(first&0xff)<<8 | (second&0xff)]++;
+    }
+
+    /**
+     * Times SECOND was executed right after FIRST
+     * @param first     First opcode
+     * @param second    Second opcode
+     * @return          The count
+     */
+    public long count(int first, int second) {
+        return counts[(first&0xff)<<8 | (second&0xff)];
+    }
+
+    /**
+     * Clears the counts
+     * @return  This
+     */
+    public PairProfile reset() {
+        Arrays.fill(counts, 0);
+        return this;
+    }
+
+    /**
+     * Chooses the most executed pairs that have a superinstruction
+     * @param max   Maximum number of pairs
+     * @return      The pairs as first opcode << 8 | second opcode, the most
+     *              executed first
+     */
+    public int[] select(int max) {
+        if (max<0){
+            throw new IllegalArgumentException("The maximum cannot be negative!");
+        }
+        final List<Integer> pairs = new ArrayList<>();
+        for (int pair = 0; pair < counts.length; pair++) {
+            if (counts[pair]>0 && InstructionMap.canFuse(pair>>>8, pair&0xff)){
+                pairs.add(pair);
+            }
+        }
+        pairs.sort((a, b) -> Long.compare(counts[b], counts[a]));
+        return pairs.stream().limit(max).mapToInt(Integer::intValue).toArray();
+    }
+}
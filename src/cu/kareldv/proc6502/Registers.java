@@ -16,24 +16,32 @@
 package cu.kareldv.proc6502;
 
 /**
- *
+ * The registers of the processor, a view of its execution state
  * @author Karel
  */
 public final class Registers {
-    private byte regA, regX, regY, regSP, regSR;
-    private int regPC;
+    private final State state;
 
     public Registers() {
         this((byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(short)0);
     }
 
     public Registers(byte regA, byte regX, byte regY, byte regSP, byte regSR, short regPC) {
-        this.regA = regA;
-        this.regX = regX;
-        this.regY = regY;
-        this.regSP = regSP;
-        this.regSR = regSR;
-        this.regPC = regPC;
+        this(new State());
+        state.a = regA;
+        state.x = regX;
+        state.y = regY;
+        state.sp = regSP;
+        state.sr = regSR;
+        state.pc = regPC;
+    }
+
+    /**
+     * Internal use
+     * Creates a view of STATE
+     */
+    Registers(State state) {
+        this.state = state;
     }
     
     
@@ -42,7 +50,7 @@ public final class Registers {
      * @return Accumulator value
      */
     public byte regA() {
-        return regA;
+        return state.a;
     }
     
     /**
@@ -51,7 +59,7 @@ public final class Registers {
      * @return      This
      */
     public Registers regA(byte value) {
-        regA=value;
+        state.a=value;
         return this;
     }
     
@@ -60,7 +68,7 @@ public final class Registers {
      * @return X Register value
      */
     public byte regX(){
-        return regX;
+        return state.x;
     }
     
     /**
@@ -69,7 +77,7 @@ public final class Registers {
      * @return      This
      */
     public Registers regX(byte regX){
-        this.regX=regX;
+        state.x=regX;
         return this;
     }
     
@@ -78,7 +86,7 @@ public final class Registers {
      * @return  Y register value
      */
     public byte regY() {
-        return regY;
+        return state.y;
     }
     
     /**
@@ -87,7 +95,7 @@ public final class Registers {
      * @return      This
      */
     public Registers regY(byte val) {
-        this.regY=val;
+        state.y=val;
         return this;
     }
     
@@ -96,7 +104,7 @@ public final class Registers {
      * @return  The program counter
      */
     public int regPC() {
-        return regPC;
+        return state.pc;
     }
     
     /**
@@ -105,7 +113,7 @@ public final class Registers {
      * @return      This
      */
     public Registers regPC(int val) {
-        regPC = val;
+        state.pc = val;
         return this;
     }
     
@@ -114,8 +122,7 @@ public final class Registers {
      * @return  The Program Counter + 1
      */
     public int incRegPC() {
-        regPC++;
-        return regPC;
+        return ++state.pc;
     }
     
     /**
@@ -123,7 +130,7 @@ public final class Registers {
      * @return  The stack pointer
      */
     public byte regSP(){
-        return regSP;
+        return state.sp;
     }
     
     /**
@@ -132,7 +139,7 @@ public final class Registers {
      * @return      This
      */
     public Registers regSP(byte sp){
-        regSP=sp;
+        state.sp=sp;
         return this;
     }
     
@@ -141,7 +148,7 @@ public final class Registers {
      * @return  This
      */
     public Registers decRegSP() {
-        regSP--;
+        state.sp--;
         return this;
     }
     
@@ -150,16 +157,16 @@ public final class Registers {
      * @return  This
      */
     public Registers incRegSP(){
-        regSP++;
+        state.sp++;
         return this;
     }
     
     public byte regSR(){
-        return regSR;
+        return state.sr;
     }
     
     public Registers regSR(byte regsr){
-        regSR=regsr;
+        state.sr=regsr;
         return this;
     }
 }
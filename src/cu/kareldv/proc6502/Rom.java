@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * An immutable ROM image, mapped with {@link Memory#mapRom(Rom)}. Every
+ * memory that maps it references the same pages, so thousands of instances
+ * of the same program keep a single copy of its code. The writes into the
+ * pages are ignored, use a write watchpoint of the {@link Debugger} to trap
+ * them
+ * @author Karel
+ */
+public final class Rom {
+    private final int start;
+    private final byte[][] pages;
+
+    /**
+     * Copies the image, the last page is filled with zeros
+     * @param data  The bytes of the ROM
+     * @param start Address of the first byte, at a page boundary
+     */
+    public Rom(byte[] data, int start) {
+        assert data!=null;
+        if (start<0 || start%Memory.PAGE_SIZE!=0){
+            throw new IllegalArgumentException("The ROM must start at a page boundary!");
+        }
+        if (data.length==0 || start+data.length>Memory.MEMORY){
+            throw new IllegalArgumentException("The ROM doesn't fit in memory!");
+        }
+        this.start = start;
+        this.pages = new byte[(data.length+Memory.PAGE_SIZE-1)/Memory.PAGE_SIZE][Memory.PAGE_SIZE];
+        for (int i = 0; i < pages.length; i++) {
+            final int off = i*Memory.PAGE_SIZE;
+            System.arraycopy(data, off, pages[i], 0, Math.min(Memory.PAGE_SIZE, data.length-off));
+        }
+    }
+
+    /**
+     * Address of the first byte
+     * @return  The start address
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * Address of the last byte of the last page
+     * @return  The end address, included
+     */
+    public int end() {
+        return start+pages.length*Memory.PAGE_SIZE-1;
+    }
+
+    /**
+     * Internal use
+     * Gets the array of the I-th page, it must not be written
+     */
+    byte[] page(int i) {
+        return pages[i];
+    }
+
+    /**
+     * Internal use
+     * Number of pages
+     */
+    int pages() {
+        return pages.length;
+    }
+}
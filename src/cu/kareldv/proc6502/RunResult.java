@@ -0,0 +1,103 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Result of executing a batch of instructions with {@link CPU#run(long)} or
+ * {@link CPU#runUntil(CPU.StopCondition, long)}
+ * @author Karel
+ */
+public final class RunResult {
+    private final long cycles;
+    private final long instructions;
+    private final HaltReason haltReason;
+
+    RunResult(long cycles, long instructions, HaltReason haltReason) {
+        this.cycles = cycles;
+        this.instructions = instructions;
+        this.haltReason = haltReason;
+    }
+
+    /**
+     * Clock cycles consumed by the batch
+     * @return  The cycles
+     */
+    public long cycles() {
+        return cycles;
+    }
+
+    /**
+     * Instructions executed by the batch
+     * @return  The instructions retired
+     */
+    public long instructions() {
+        return instructions;
+    }
+
+    /**
+     * Why the batch stopped
+     * @return  The halt reason
+     */
+    public HaltReason haltReason() {
+        return haltReason;
+    }
+
+    /**
+     * Checks if the processor stopped, a batch that only ran out of cycles
+     * can be continued
+     * @return  True when the program finished (BRK or unknown opcode)
+     */
+    public boolean halted() {
+        return haltReason==HaltReason.BRK || haltReason==HaltReason.UNKNOWN_OPCODE;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"[cycles="+cycles+", instructions="
+                +instructions+", haltReason="+haltReason+"]";
+    }
+
+    /**
+     * The reasons a batch stops
+     */
+    public static enum HaltReason {
+        /**
+         * A BRK instruction was executed
+         */
+        BRK,
+        /**
+         * An opcode without handler was fetched
+         */
+        UNKNOWN_OPCODE,
+        /**
+         * The cycle budget was consumed
+         */
+        BUDGET_EXHAUSTED,
+        /**
+         * The stop condition was met
+         */
+        CONDITION,
+        /**
+         * The next instruction has an execute breakpoint, see
+         * {@link Debugger}
+         */
+        BREAKPOINT,
+        /**
+         * The last instruction read or wrote a watched address
+         */
+        WATCHPOINT
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Device events (timers, displays, serial ports...) keyed by the clock cycle
+ * they are due at. The processor runs uninterrupted until the earliest
+ * deadline, then fires exactly the due events, after the instruction or
+ * block that reaches it. Events with the same deadline fire in the order they
+ * were scheduled, they may schedule themselves again.
+ * Events scheduled by other threads are seen at the end of the current run
+ * slice, use {@link CPU#assertIrq()} to stop it sooner
+ * @author Karel
+ */
+public final class Scheduler {
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private long sequence;
+    //Earliest deadline, read by CPU.step() without taking the monitor
+    private volatile long deadline = Long.MAX_VALUE;
+
+    Scheduler() {
+    }
+
+    /**
+     * Schedules EVENT at the clock cycle CYCLE, if it's already due it fires
+     * after the current instruction
+     * @param cycle The deadline, in clock cycles
+     * @param event The event
+     * @return      This
+     */
+    public synchronized Scheduler schedule(long cycle, Event event) {
+        assert event!=null;
+        queue.add(new Entry(cycle, sequence++, event));
+        if (cycle<deadline){
+            deadline = cycle;
+        }
+        return this;
+    }
+
+    /**
+     * Schedules EVENT CYCLES clock cycles from now. Periodic events should
+     * schedule from the deadline they get instead, so they don't drift
+     * @param cpu       The processor
+     * @param cycles    Cycles from now
+     * @param event     The event
+     * @return          This
+     */
+    public Scheduler scheduleIn(CPU cpu, long cycles, Event event) {
+        if (cycles<0){
+            throw new IllegalArgumentException("Cycles cannot be negative!");
+        }
+        return schedule(cpu.clock().cycles()+cycles, event);
+    }
+
+    /**
+     * Removes every pending occurrence of EVENT
+     * @param event The event
+     * @return      true if it was pending
+     */
+    public synchronized boolean cancel(Event event) {
+        boolean found = false;
+        for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+            if (it.next().event==event){
+                it.remove();
+                found = true;
+            }
+        }
+        refresh();
+        return found;
+    }
+
+    /**
+     * Removes every pending event
+     * @return  This
+     */
+    public synchronized Scheduler clear() {
+        queue.clear();
+        refresh();
+        return this;
+    }
+
+    /**
+     * Gets the earliest deadline
+     * @return  The clock cycle, {@link Long#MAX_VALUE} without events
+     */
+    public long next() {
+        return deadline;
+    }
+
+    /**
+     * Number of pending events
+     * @return  The number of events
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Checks if there are no pending events
+     * @return  true if empty
+     */
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Internal use
+     * Checks if an event is due at NOW, without taking the monitor
+     */
+    boolean due(long now) {
+        return now>=deadline;
+    }
+
+    /**
+     * Internal use
+     * Fires the events due at NOW, outside of the monitor so they can
+     * schedule again. Events scheduled by them at or before NOW fire in the
+     * next dispatch
+     */
+    void dispatch(CPU cpu, long now) {
+        final List<Entry> due;
+        synchronized (this) {
+            final Entry first = queue.peek();
+            if (first==null || first.cycle>now){
+                return;
+            }
+            due = new ArrayList<>();
+            while(!queue.isEmpty() && queue.peek().cycle<=now){
+                due.add(queue.poll());
+            }
+            refresh();
+        }
+        for (Entry e : due) {
+            e.event.fire(cpu, e.cycle);
+        }
+    }
+
+    /**
+     * Internal use
+     * Updates the earliest deadline, the monitor is taken
+     */
+    private void refresh() {
+        final Entry e = queue.peek();
+        deadline = e!=null ? e.cycle : Long.MAX_VALUE;
+    }
+
+    /**
+     * Something that happens at a clock cycle
+     */
+    public static interface Event{
+        /**
+         * Called when the deadline is reached
+         * @param cpu   The processor, its lock is taken
+         * @param cycle The deadline, the clock may be a few cycles past it
+         */
+        void fire(CPU cpu, long cycle);
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final long cycle;
+        final long seq;
+        final Event event;
+
+        Entry(long cycle, long seq, Event event) {
+            this.cycle = cycle;
+            this.seq = seq;
+            this.event = event;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            final int c = Long.compare(cycle, o.cycle);
+            return c!=0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Execution state of the processor: the registers, the flags and the cycle
+ * counter as primitive fields of one object. {@link Registers}, {@link Flags}
+ * and {@link Clock} are views of it, the instructions use the fields directly
+ * so the JIT can keep them in machine registers.
+ * Internal use, the registers and flags are public only because the blocks
+ * compiled by {@link BlockCompiler} live in their own class loader
+ * @author Karel
+ */
+public final class State {
+    //Bits of the flags register
+    static final int C = 0x01, Z = 0x02, I = 0x04, D = 0x08, B = 0x10, V = 0x20, N = 0x40;
+    //Bits of I, D, B and the unused bit 7
+    static final int PACKED_MASK = 0b1001_1100;
+
+    public byte a, x, y, sp;
+    byte sr;
+    public int pc;
+    //I, D, B and bit 7, C and V are kept unpacked
+    byte status;
+    public byte carry, overflow;
+    //Z is set when zResult is 0, N is bit 7 of nResult
+    public byte zResult = 1, nResult;
+    //Changed through the Clock, it paces the execution
+    long cycles;
+
+    State() {
+    }
+
+    /**
+     * Gets the flags register
+     */
+    byte flags() {
+        return (byte) (status | carry | (z()<<1) | (overflow<<5) | (n()<<6));
+    }
+
+    /**
+     * Sets the flags register
+     */
+    void flags(byte val) {
+        status = (byte) (val & PACKED_MASK);
+        carry = (byte) (val & C);
+        overflow = (byte) ((val>>5) & 0x1);
+        zResult = (byte) ((val & Z)!=0 ? 0 : 1);
+        nResult = (byte) (val<<1);
+    }
+
+    /**
+     * Sets N and Z from the result of an instruction
+     */
+    void result(byte val) {
+        zResult = val;
+        nResult = val;
+    }
+
+    byte z() {
+        return (byte) (zResult==0 ? 1 : 0);
+    }
+
+    byte n() {
+        return (byte) ((nResult>>7) & 0x1);
+    }
+
+    /**
+     * Copies the registers and the flags of OTHER, not the cycles
+     */
+    void copyFrom(State other) {
+        a = other.a;
+        x = other.x;
+        y = other.y;
+        sp = other.sp;
+        sr = other.sr;
+        pc = other.pc;
+        status = other.status;
+        carry = other.carry;
+        overflow = other.overflow;
+        zResult = other.zResult;
+        nResult = other.nResult;
+    }
+
+    void resetRegisters() {
+        a = x = y = sp = sr = 0;
+        pc = 0;
+    }
+
+    void resetFlags() {
+        status = carry = overflow = nResult = 0;
+        zResult = 1;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline tool that compiles the code of a memory image to Java classes. The
+ * code reachable from the entry points is recovered following the branches,
+ * jumps and subroutine calls, every block found is compiled like the hot
+ * blocks of {@link CPU.ExecutionMode#TIERED}. Indirect jumps, returns and
+ * interrupts are not followed, their targets are interpreted unless they
+ * were reached some other way.
+ * The result is a {@link CompiledProgram}, install it in the processor:
+ * <pre>
+ * new MyRom().install(cpu);
+ * cpu.executionMode(CPU.ExecutionMode.BLOCKS);
+ * </pre>
+ * Usage: {@code StaticRecompiler image loadAddress entry[,entry...] className outDir}
+ * @author Karel
+ */
+public final class StaticRecompiler {
+    private final Memory image;
+    private final BitSet entries = new BitSet(Memory.MEMORY);
+
+    /**
+     * Creates a recompiler for IMAGE, it's copied
+     * @param image The memory image
+     */
+    public StaticRecompiler(Memory image) {
+        this.image = new Memory(image);
+    }
+
+    /**
+     * Adds an entry point, eg: the reset vector
+     * @param pc    The address
+     * @return      This
+     */
+    public StaticRecompiler entry(int pc) {
+        entries.set(pc&0xffff);
+        return this;
+    }
+
+    /**
+     * Finds the blocks reachable from the entry points
+     * @return  Start address of the blocks, sorted
+     */
+    public int[] recover() {
+        return decode().keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Compiles the reachable blocks
+     * @param className Binary name of the program class, eg: a.b.MyRom
+     * @return          The class files, by binary name
+     * @throws IOException  When a class cannot be written
+     */
+    public Map<String, byte[]> compile(String className) throws IOException {
+        final Map<Integer, BlockCache.Block> blocks = decode();
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+        final String name = className.replace('.', '/');
+        final int[] starts = new int[blocks.size()];
+        final String[] codes = new String[blocks.size()];
+        final String[] blockNames = new String[blocks.size()];
+        int i = 0;
+        for (BlockCache.Block b : blocks.values()) {
+            starts[i] = b.start;
+            codes[i] = code(b);
+            blockNames[i] = String.format("%s$Block_%04X", name, b.start);
+            classes.put(blockNames[i].replace('/', '.'), BlockCompiler.classFile(blockNames[i], b, false));
+            i++;
+        }
+        classes.put(className, BlockCompiler.programClassFile(name, starts, codes, blockNames));
+        return classes;
+    }
+
+    /**
+     * Compiles the reachable blocks and writes the class files into DIR,
+     * following the package structure
+     * @param className Binary name of the program class
+     * @param dir       Output directory
+     * @return          Number of compiled blocks
+     * @throws IOException  When a file cannot be written
+     */
+    public int write(String className, File dir) throws IOException {
+        final Map<String, byte[]> classes = compile(className);
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            final File file = new File(dir, entry.getKey().replace('.', File.separatorChar) + ".class");
+            file.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(entry.getValue());
+            }
+        }
+        return classes.size()-1;
+    }
+
+    /**
+     * Internal use
+     * Decodes the reachable blocks, by start address
+     */
+    private Map<Integer, BlockCache.Block> decode() {
+        final BlockCache cache = new BlockCache(image);
+        final Map<Integer, BlockCache.Block> blocks = new TreeMap<>();
+        final Deque<Integer> pending = new ArrayDeque<>();
+        for (int pc = entries.nextSetBit(0); pc >= 0; pc = entries.nextSetBit(pc+1)) {
+            pending.push(pc);
+        }
+        while(!pending.isEmpty()){
+            final int pc = pending.pop();
+            if (blocks.containsKey(pc)){
+                continue;
+            }
+            final BlockCache.Block b = cache.get(pc);
+            if (b==null){
+                //Unknown opcode, interpreted
+                continue;
+            }
+            blocks.put(pc, b);
+            final int last = b.length-1;
+            final int opcode = b.opcodes[last]&0xff;
+            final int next = b.nextPC[last];
+            if (InstructionMap.mode(opcode)==InstructionMap.Mode.RELATIVE){
+                pending.push((next + (byte) b.operands[last])&0xffff);
+                pending.push(next);
+            }else if (opcode==0x4c){ //JMP
+                pending.push(b.operands[last]);
+            }else if (opcode==0x20){ //JSR, assume it returns
+                pending.push(b.operands[last]);
+                pending.push(next);
+            }else if (!InstructionMap.isFlowControl(opcode)){
+                //Too long or followed by an I/O page
+                pending.push(next);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Internal use
+     * Gets the bytes of the block as an ISO-8859-1 string
+     */
+    private String code(BlockCache.Block b) {
+        final int length = (b.nextPC[b.length-1]-b.start)&0xffff;
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (image.peek(b.start+i)&0xff);
+        }
+        return new String(chars);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length!=5){
+            System.err.println("Usage: StaticRecompiler image loadAddress entry[,entry...] className outDir");
+            System.exit(1);
+        }
+        final File file = new File(args[0]);
+        final int load = Integer.decode(args[1]);
+        final Memory mem = new Memory();
+        mem.loadBytes(file, (int) Math.min(file.length(), Memory.MEMORY-load), load);
+        final StaticRecompiler rec = new StaticRecompiler(mem);
+        Arrays.stream(args[2].split(",")).forEach((e) -> rec.entry(Integer.decode(e)));
+        final int n = rec.write(args[3], new File(args[4]));
+        System.out.println("Compiled "+n+" blocks into "+args[3]);
+    }
+}
@@ -16,31 +16,142 @@
 package cu.kareldv.proc6502.plugs;
 
 import cu.kareldv.proc6502.CPU;
+import cu.kareldv.proc6502.Memory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- *
+ * Keyboard device, by default at $FF. Keys are queued from the UI thread
+ * with {@link #setKeyPressed(char)} and every read of the address by the
+ * processor takes the next key, or 0 if there is none. Install it with
+ * {@link #install(Memory)}, instructions that do not read the address do
+ * not pay anything.
+ * The queue is a lock-free single producer, single consumer ring: keys can
+ * be pressed from any thread, but only one at a time
  * @author Karel
  */
-public final class KeyPressed implements CPU.PreInstruction, CPU.PostInstruction {
-    private char ascii=0;
-    private int address;
+public final class KeyPressed implements Memory.OnValueInRangeRead, CPU.PreInstruction, CPU.PostInstruction {
+    /**
+     * Default number of keys that can wait in the queue
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+    private final int address;
+    private final char[] keys;
+    private final int mask;
+    //Next key to read, only written by the processor
+    private final AtomicLong head = new AtomicLong();
+    //Next free slot, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private Memory installed;
 
     public KeyPressed() {
         this(0xff);
     }
 
     public KeyPressed(int address) {
+        this(address, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a keyboard
+     * @param address   The address
+     * @param capacity  Number of keys that can wait, rounded up to a power
+     *                  of two
+     */
+    public KeyPressed(int address, int capacity) {
+        if (capacity<=0){
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+        int size = 1;
+        while(size<capacity){
+            size<<=1;
+        }
         this.address = address;
+        this.keys = new char[size];
+        this.mask = size-1;
     }
-    
+
+    /**
+     * Queues a key press, it's dropped if the queue is full
+     * @param ch    The key
+     * @return      This
+     */
     public KeyPressed setKeyPressed(char ch) {
-        this.ascii=ch;
+        offer(ch);
         return this;
     }
 
+    /**
+     * Queues a key press
+     * @param ch    The key
+     * @return      False if the queue is full and the key was dropped
+     */
+    public boolean offer(char ch) {
+        final long t = tail.get();
+        if (t-head.get() == keys.length){
+            return false;
+        }
+        keys[(int) t & mask] = ch;
+        tail.lazySet(t+1);
+        return true;
+    }
+
+    /**
+     * Number of keys waiting to be read
+     * @return  The number of keys
+     */
+    public int pending() {
+        return (int) (tail.get()-head.get());
+    }
+
+    /**
+     * Maps the address of this device in MEM
+     * @param mem   The memory
+     * @return      This
+     */
+    public KeyPressed install(Memory mem) {
+        mem.addRangeRead(address, address, this);
+        installed = mem;
+        return this;
+    }
+
+    /**
+     * Removes this device from MEM
+     * @param mem   The memory
+     * @return      This
+     */
+    public KeyPressed uninstall(Memory mem) {
+        mem.removeRangeRead(this);
+        if (installed==mem){
+            installed = null;
+        }
+        return this;
+    }
+
+    public int address() {
+        return address;
+    }
+
+    @Override
+    public byte read(Memory mem, int pos) {
+        final long h = head.get();
+        if (h==tail.get()){
+            return 0;
+        }
+        final char ch = keys[(int) h & mask];
+        head.lazySet(h+1);
+        return (byte) (ch&0xff);
+    }
+
+    /**
+     * Kept for compatibility with the hook based setup, installs this device
+     * in the memory of the processor the first time it's called
+     * @deprecated Use {@link #install(Memory)}, it does not need a hook
+     */
+    @Deprecated
     @Override
     public void execute(CPU cpu, byte instr) {
-        cpu.memory().put(address, (byte) (ascii&0xff));
-        ascii=0;
+        if (installed!=cpu.memory()){
+            install(cpu.memory());
+        }
     }
 }
@@ -16,28 +16,122 @@
 package cu.kareldv.proc6502.plugs;
 
 import cu.kareldv.proc6502.CPU;
+import cu.kareldv.proc6502.Memory;
 import java.security.SecureRandom;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
- *
+ * Random byte device, by default at $FE. A new byte is generated only when
+ * the processor reads the address, install it with {@link #install(Memory)}.
+ * Uses a fast {@link SplittableRandom}, that can be seeded to reproduce a
+ * run and split to give every processor its own generator, or a
+ * {@link SecureRandom} (see {@link #secure(int)})
  * @author Karel
  */
-public final class SetRandom implements CPU.PreInstruction, CPU.PostInstruction {
-    private int address;
-    private SecureRandom random=new SecureRandom();
+public final class SetRandom implements Memory.OnValueInRangeRead, CPU.PreInstruction, CPU.PostInstruction {
+    private final int address;
+    private final SplittableRandom fast;
+    private final SecureRandom secure;
+    //Unused bytes of the last generated long
+    private long bits;
+    private int left;
+    private Memory installed;
 
     public SetRandom() {
         this(0xfe);
     }
 
     public SetRandom(int address) {
+        this(address, new SplittableRandom(), null);
+    }
+
+    /**
+     * Creates a reproducible random device
+     * @param address   The address
+     * @param seed      Seed of the generator
+     */
+    public SetRandom(int address, long seed) {
+        this(address, new SplittableRandom(seed), null);
+    }
+
+    private SetRandom(int address, SplittableRandom fast, SecureRandom secure) {
         this.address = address;
+        this.fast = fast;
+        this.secure = secure;
+    }
+
+    /**
+     * Creates a random device backed by a {@link SecureRandom}
+     * @param address   The address
+     * @return          The device
+     */
+    public static SetRandom secure(int address) {
+        return new SetRandom(address, null, new SecureRandom());
+    }
+
+    /**
+     * Creates a new independent device at the same address. Seeded devices
+     * produce reproducible children, give one to every thread instead of
+     * sharing a device
+     * @return  The new device
+     */
+    public SetRandom split() {
+        if (fast!=null){
+            return new SetRandom(address, fast.split(), null);
+        }
+        return secure(address);
+    }
+
+    /**
+     * Maps the address of this device in MEM
+     * @param mem   The memory
+     * @return      This
+     */
+    public SetRandom install(Memory mem) {
+        mem.addRangeRead(address, address, this);
+        installed = mem;
+        return this;
+    }
+
+    /**
+     * Removes this device from MEM
+     * @param mem   The memory
+     * @return      This
+     */
+    public SetRandom uninstall(Memory mem) {
+        mem.removeRangeRead(this);
+        if (installed==mem){
+            installed = null;
+        }
+        return this;
+    }
+
+    public int address() {
+        return address;
+    }
+
+    @Override
+    public byte read(Memory mem, int pos) {
+        if (left==0){
+            bits = fast!=null ? fast.nextLong() : secure.nextLong();
+            left = 8;
+        }
+        final byte b = (byte) bits;
+        bits>>>=8;
+        left--;
+        return b;
     }
 
+    /**
+     * Kept for compatibility with the hook based setup, installs this device
+     * in the memory of the processor the first time it's called
+     * @deprecated Use {@link #install(Memory)}, it does not need a hook
+     */
+    @Deprecated
     @Override
     public void execute(CPU cpu, byte instr) {
-        cpu.memory().put(address, (byte) random.ints().findFirst().getAsInt());
+        if (installed!=cpu.memory()){
+            install(cpu.memory());
+        }
     }
-    
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Compares lookup tables with computing every result, on chains of dependent
+ * additions and subtractions like the ones of multi-byte arithmetic routines.
+ * The branchy binary baseline is the doADC/doSBC that {@link Arithmetic}
+ * replaced. {@link Arithmetic} uses the faster way of each mode
+ * @author Karel
+ */
+public final class ArithmeticBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int OPERATIONS = 50_000_000;
+    private static final char[] binary = Arithmetic.table(Arithmetic::adc);
+    
+    public static void main(String[] args) {
+        for (int round = 0; round < ROUNDS; round++) {
+            time("binary branchy", () -> binaryBranchy());
+            time("binary table", () -> binaryTable());
+            time("binary computed", () -> binaryComputed());
+            time("decimal table", () -> decimalTable());
+            time("decimal computed", () -> decimalComputed());
+            System.out.println();
+        }
+    }
+    
+    private static void time(String name, Benchmark b) {
+        final long start = System.nanoTime();
+        final int check = b.run();
+        final long elapsed = System.nanoTime()-start;
+        System.out.printf("%-18s %6.2f ns/op (%d)%n", name, (double) elapsed/OPERATIONS, check);
+    }
+    
+    private static int binaryBranchy() {
+        int a = 0, c = 0;
+        for (int i = 0; i < OPERATIONS; i+=2) {
+            int r = branchyAdc(a, i&0xff, c);
+            c = r>>8&1;
+            r = branchySbc(r&0xff, i>>8&0xff, c);
+            c = r>>8&1;
+            a = r&0xff;
+        }
+        return a;
+    }
+    
+    private static int binaryTable() {
+        int a = 0, c = 0;
+        for (int i = 0; i < OPERATIONS; i+=2) {
+            int r = binary[c<<16 | a<<8 | (i&0xff)];
+            c = r>>8&1;
+            r = binary[c<<16 | (r&0xff)<<8 | (~(i>>8)&0xff)];
+            c = r>>8&1;
+            a = r&0xff;
+        }
+        return a;
+    }
+    
+    private static int binaryComputed() {
+        int a = 0, c = 0;
+        for (int i = 0; i < OPERATIONS; i+=2) {
+            int r = Arithmetic.adc(a, i&0xff, c);
+            c = r>>8&1;
+            r = Arithmetic.sbc(r&0xff, i>>8&0xff, c);
+            c = r>>8&1;
+            a = r&0xff;
+        }
+        return a;
+    }
+    
+    private static int decimalTable() {
+        int a = 0, c = 0;
+        for (int i = 0; i < OPERATIONS; i+=2) {
+            int r = Arithmetic.adcDecimal(a, i&0x99, c);
+            c = r>>8&1;
+            r = Arithmetic.sbcDecimal(r&0xff, i>>8&0x99, c);
+            c = r>>8&1;
+            a = r&0xff;
+        }
+        return a;
+    }
+    
+    private static int decimalComputed() {
+        int a = 0, c = 0;
+        for (int i = 0; i < OPERATIONS; i+=2) {
+            int r = Arithmetic.computeAdcDecimal(a, i&0x99, c);
+            c = r>>8&1;
+            r = Arithmetic.computeSbcDecimal(r&0xff, i>>8&0x99, c);
+            c = r>>8&1;
+            a = r&0xff;
+        }
+        return a;
+    }
+    
+    /**
+     * The binary path of the old doADC, V is set when the operands have the
+     * same sign and cleared by the range of the sum. It adds the sum the old
+     * code missed, results like {@link Arithmetic#adc(int, int, int)}
+     */
+    private static int branchyAdc(int a, int b, int c) {
+        int v, carry;
+        if (((a ^ b)&0x80) != 0){
+            v = 0;
+        }else{
+            v = 1;
+        }
+        final int tmp = a + b + c;
+        if (tmp >= 0x100) {
+            carry = 1;
+            if (v!=0 && tmp >= 0x180) { v = 0; }
+        } else {
+            carry = 0;
+            if (v!=0 && tmp < 0x80) { v = 0; }
+        }
+        return tmp&0xff | carry<<8 | v<<9;
+    }
+    
+    /**
+     * The binary path of the old doSBC, with the carry cleared on borrow
+     * as the old code meant to
+     */
+    private static int branchySbc(int a, int b, int c) {
+        int v, carry;
+        if (((a ^ b)&0x80) != 0){
+            v = 1;
+        }else{
+            v = 0;
+        }
+        final int w = 0xff + a - b + c;
+        if (w < 0x100) {
+            carry = 0;
+            if (v!=0 && w < 0x80) { v = 0; }
+        } else {
+            carry = 1;
+            if (v!=0 && w >= 0x180) { v = 0; }
+        }
+        return w&0xff | carry<<8 | v<<9;
+    }
+    
+    private static interface Benchmark{
+        int run();
+    }
+}
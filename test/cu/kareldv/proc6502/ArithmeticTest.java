@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Karel
+ */
+public class ArithmeticTest {
+    
+    public ArithmeticTest() {
+    }
+
+    @Test
+    public void testBinary() {
+        System.out.println("Testing binary ADC, SBC and CMP...");
+        assertEquals(0x02, Arithmetic.adc(0x01, 0x01, 0));
+        assertEquals(0xa0 | Arithmetic.V, Arithmetic.adc(0x50, 0x50, 0));
+        assertEquals(0x00 | Arithmetic.C, Arithmetic.adc(0xff, 0x00, 1));
+        assertEquals(0x60 | Arithmetic.C | Arithmetic.V, Arithmetic.adc(0xd0, 0x90, 0));
+        assertEquals(0x02 | Arithmetic.C, Arithmetic.sbc(0x05, 0x03, 1));
+        assertEquals(0xff, Arithmetic.sbc(0x00, 0x00, 0));
+        assertEquals(0x7f | Arithmetic.C | Arithmetic.V, Arithmetic.sbc(0x80, 0x01, 1));
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                int r = Arithmetic.cmp(a, b);
+                assertEquals((a-b)&0xff, r&0xff);
+                assertEquals(a>=b, (r&Arithmetic.C)!=0);
+            }
+        }
+        System.out.println("OK");
+    }
+
+    @Test
+    public void testDecimal() {
+        System.out.println("Testing decimal ADC and SBC...");
+        assertEquals(0x10, Arithmetic.adcDecimal(0x09, 0x01, 0));
+        assertEquals(0x00 | Arithmetic.C, Arithmetic.adcDecimal(0x99, 0x00, 1));
+        assertEquals(0x46, Arithmetic.adcDecimal(0x12, 0x34, 0));
+        assertEquals(0x01 | Arithmetic.C, Arithmetic.adcDecimal(0x58, 0x42, 1) & ~Arithmetic.V);
+        assertEquals(0x99, Arithmetic.sbcDecimal(0x00, 0x01, 1));
+        assertEquals(0x29 | Arithmetic.C, Arithmetic.sbcDecimal(0x46, 0x17, 1));
+        assertEquals(0x28 | Arithmetic.C, Arithmetic.sbcDecimal(0x46, 0x17, 0));
+        //Every valid BCD pair
+        for (int a = 0; a < 100; a++) {
+            for (int b = 0; b < 100; b++) {
+                int r = Arithmetic.adcDecimal(bcd(a), bcd(b), 1);
+                assertEquals(bcd((a+b+1)%100), r&0xff);
+                assertEquals(a+b+1>=100, (r&Arithmetic.C)!=0);
+                r = Arithmetic.sbcDecimal(bcd(a), bcd(b), 1);
+                assertEquals(bcd((a-b+100)%100), r&0xff);
+                assertEquals(a>=b, (r&Arithmetic.C)!=0);
+            }
+        }
+        System.out.println("OK");
+    }
+
+    @Test
+    public void testInstructions() {
+        System.out.println("Testing ADC and SBC instructions...");
+        //sed, clc, lda #$19, adc #$23, sta $00, cld, sec, sbc #$01, brk
+        byte[] code = {(byte) 0xf8, 0x18, (byte) 0xa9, 0x19, 0x69, 0x23, (byte) 0x85, 0x00,
+            (byte) 0xd8, 0x38, (byte) 0xe9, 0x01, 0x00};
+        CPU mCpu = CPU.newInstance();
+        mCpu.memory().loadBytes(code, code.length, 0x600);
+        mCpu.registers().regPC(0x600);
+        mCpu.run(Long.MAX_VALUE);
+        assertEquals(0x42, mCpu.memory().get(0x00));
+        assertEquals(0x41, mCpu.registers().regA());
+        assertEquals(1, mCpu.flags().c());
+        System.out.println("OK");
+    }
+    
+    private static int bcd(int value) {
+        return (value/10)<<4 | value%10;
+    }
+}
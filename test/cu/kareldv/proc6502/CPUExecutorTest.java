@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Karel
+ */
+public class CPUExecutorTest {
+    
+    public CPUExecutorTest() {
+    }
+
+    @Test
+    public void testManyPrograms() throws Exception {
+        System.out.println("Testing the executor...");
+        try (CPUExecutor executor = new CPUExecutor(2, 1000)) {
+            //Runaway programs first, they must not starve the rest
+            final List<CompletableFuture<RunResult>> runaway = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                //jmp $0600
+                runaway.add(executor.submit(Programs.program(0x4c, 0x06, 0x00)));
+            }
+            final List<CompletableFuture<RunResult>> finite = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                //ldx #$ff, dex, bne -3, brk
+                finite.add(executor.submit(Programs.program(0xa2, 0xff, 0xca, 0xd0, 0xfd, 0x00)));
+            }
+            for (CompletableFuture<RunResult> f : finite) {
+                RunResult result = f.get(10, TimeUnit.SECONDS);
+                assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+                assertEquals(1+255*2+1, result.instructions());
+            }
+            for (CompletableFuture<RunResult> f : runaway) {
+                assertFalse(f.isDone());
+                assertTrue(f.cancel(true));
+            }
+            
+            //With a budget
+            RunResult result = executor.submit(Programs.program(0x4c, 0x06, 0x00), null, 10_500)
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(RunResult.HaltReason.BUDGET_EXHAUSTED, result.haltReason());
+            assertEquals(10_500, result.cycles());
+            assertEquals(3500, result.instructions());
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Karel
+ */
+public class CPUFarmTest {
+    
+    public CPUFarmTest() {
+    }
+
+    @Test
+    public void testBatch() {
+        System.out.println("Testing the farm...");
+        //lda $10, asl a, sta $11, brk
+        CPU template = CPU.newInstance();
+        template.setup(true, true, true, 0x600);
+        template.memory().loadBytes(new byte[]{(byte) 0xa5, 0x10, 0x0a, (byte) 0x85, 0x11, 0x00}, 6, 0x600);
+        
+        final List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(i&0x7f);
+        }
+        final ConcurrentHashMap<Integer, Integer> values = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CPUFarm<Integer, Integer> farm = new CPUFarm<Integer, Integer>(template, pool)
+                    .input((cpu, item) -> cpu.memory().put(0x10, (byte) (int) item))
+                    .output((cpu, item, result) -> cpu.memory().get(0x11)&0xff);
+        
+            //Changes after the farm is created are not seen
+            template.memory().put(0x600, (byte) 0x00);
+            CPUFarm.Report report = farm.run(items, (r) -> {
+                assertEquals(RunResult.HaltReason.BRK, r.run().haltReason());
+                assertNull(values.put(r.index(), r.value()));
+            });
+            assertEquals(1000, report.items());
+            assertEquals(4000, report.instructions());
+            assertTrue(report.instructionsPerSecond() > 0);
+            for (int i = 0; i < items.size(); i++) {
+                assertEquals(items.get(i)*2, (int) values.get(i));
+            }
+            assertEquals(0, template.memory().get(0x11));
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("OK");
+    }
+}
@@ -40,4 +40,429 @@ public class CPUTest {
         
         while(mCpu.step()){}
     }
+
+    @Test
+    public void testFetch() {
+        System.out.println("Fetch test...");
+        
+        //The first instruction is the one at the program counter
+        CPU mCpu = CPU.newInstance();
+        mCpu.registers().regPC(0x600);
+        mCpu.memory().put(0x600, (byte) 0xa9);
+        mCpu.memory().put(0x601, (byte) 0xff);
+        mCpu.memory().put(0x602, (byte) 0x85);
+        mCpu.memory().put(0x603, (byte) 0x11);
+        
+        while(mCpu.step()){}
+        
+        assertEquals((byte) 0xff, mCpu.memory().get(0x11));
+        assertEquals((byte) 0xff, mCpu.registers().regA());
+        assertEquals(1, mCpu.flags().n());
+        assertEquals(0x605, mCpu.registers().regPC());
+    }
+
+    @Test
+    public void testZeroPageWrap() {
+        System.out.println("Zero page wrap test...");
+        
+        //ldx #$00, lda ($ff,x), ldy #$01, lda ($ff),y, brk
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        mCpu.memory().loadBytes(new byte[]{(byte) 0xa2, 0x00, (byte) 0xa1, (byte) 0xff,
+            (byte) 0xa0, 0x01, (byte) 0xb1, (byte) 0xff, 0x00}, 9, 0x600);
+        //Pointer $1234 in $ff and $00, not in $ff and $100
+        mCpu.memory().put(0xff, (byte) 0x12).put(0x00, (byte) 0x34).put(0x100, (byte) 0x99);
+        mCpu.memory().put(0x1234, (byte) 0x56).put(0x1235, (byte) 0x78);
+        
+        mCpu.step();
+        mCpu.step();
+        assertEquals(0x56, mCpu.registers().regA()&0xff);
+        mCpu.step();
+        mCpu.step();
+        assertEquals(0x78, mCpu.registers().regA()&0xff);
+    }
+
+    @Test
+    public void testUnknownOpcode() {
+        System.out.println("Unknown opcode test...");
+        
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        mCpu.memory().put(0x600, (byte) 0xe8); //INX
+        mCpu.memory().put(0x601, (byte) 0x02); //Unknown
+        
+        assertTrue(mCpu.step());
+        assertFalse(mCpu.step());
+        assertEquals(1, mCpu.registers().regX());
+        assertFalse(InstructionMap.isKnown(0x02));
+        assertTrue(InstructionMap.isKnown(0xe8));
+    }
+
+    @Test
+    public void testRun() {
+        System.out.println("Run test...");
+        
+        CPU mCpu = loopProgram();
+        RunResult result = mCpu.run(Long.MAX_VALUE);
+        
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertTrue(result.halted());
+        assertEquals(12, result.instructions());
+        assertEquals(33, result.cycles());
+        assertEquals(0, mCpu.registers().regX());
+    }
+
+    @Test
+    public void testRunBudgetAndCondition() {
+        System.out.println("Run budget and condition test...");
+        
+        CPU mCpu = loopProgram();
+        RunResult result = mCpu.run(10);
+        assertEquals(RunResult.HaltReason.BUDGET_EXHAUSTED, result.haltReason());
+        assertFalse(result.halted());
+        assertTrue(result.cycles()>=10);
+        
+        result = mCpu.runUntil((cpu) -> cpu.registers().regX()==2, Long.MAX_VALUE);
+        assertEquals(RunResult.HaltReason.CONDITION, result.haltReason());
+        assertEquals(2, mCpu.registers().regX());
+        
+        result = mCpu.run(Long.MAX_VALUE);
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+    }
+
+    @Test
+    public void testBlocks() {
+        System.out.println("Blocks test...");
+        
+        CPU mCpu = loopProgram().executionMode(CPU.ExecutionMode.BLOCKS);
+        RunResult result = mCpu.run(Long.MAX_VALUE);
+        
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertEquals(12, result.instructions());
+        assertEquals(33, result.cycles());
+        assertEquals(0, mCpu.registers().regX());
+    }
+
+    @Test
+    public void testBlocksSelfModifying() {
+        System.out.println("Blocks self-modifying code test...");
+        
+        CPU mCpu = CPU.newInstance().executionMode(CPU.ExecutionMode.BLOCKS);
+        //lda #$ca, sta $0608, jmp $0608, inx, brk
+        mCpu.memory().loadBytes(new byte[]{
+            (byte) 0xa9, (byte) 0xca, (byte) 0x8d, 0x06, 0x08,
+            0x4c, 0x06, 0x08, (byte) 0xe8, 0x00
+        }, 10, 0x600);
+        
+        //Decode the block at $0608 (inx)
+        mCpu.registers().regPC(0x608);
+        mCpu.run(Long.MAX_VALUE);
+        assertEquals(1, mCpu.registers().regX());
+        
+        //Now it's replaced by dex
+        mCpu.registers().regPC(0x600);
+        RunResult result = mCpu.run(Long.MAX_VALUE);
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertEquals(0, mCpu.registers().regX());
+    }
+
+    @Test
+    public void testTiered() {
+        System.out.println("Tiered test...");
+        
+        CPU interpreted = Programs.nestedLoopProgram();
+        RunResult expected = interpreted.run(Long.MAX_VALUE);
+        CPU tiered = Programs.nestedLoopProgram().executionMode(CPU.ExecutionMode.TIERED);
+        RunResult result = tiered.run(Long.MAX_VALUE);
+        
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertEquals(expected.instructions(), result.instructions());
+        assertEquals(expected.cycles(), result.cycles());
+        assertEquals(interpreted.registers().regA(), tiered.registers().regA());
+        assertNotNull(tiered.memory().blocks().get(0x605).compiled);
+    }
+
+    @Test
+    public void testTieredDeoptimize() {
+        System.out.println("Tiered deoptimization test...");
+        
+        CPU mCpu = Programs.nestedLoopProgram().executionMode(CPU.ExecutionMode.TIERED);
+        mCpu.run(Long.MAX_VALUE);
+        CompiledBlock compiled = mCpu.memory().blocks().get(0x605).compiled;
+        assertNotNull(compiled);
+        
+        //adc #$01 becomes adc #$02
+        mCpu.memory().put(0x606, (byte) 2);
+        assertTrue(compiled.deoptimized);
+        assertNull(mCpu.memory().blocks().get(0x605).compiled);
+    }
+
+    @Test
+    public void testTieredDirect() {
+        System.out.println("Tiered direct emission test...");
+        
+        CPU interpreted = directProgram();
+        RunResult expected = interpreted.run(Long.MAX_VALUE);
+        CPU tiered = directProgram().executionMode(CPU.ExecutionMode.TIERED);
+        RunResult result = tiered.run(Long.MAX_VALUE);
+        
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertNotNull(tiered.memory().blocks().get(0x607).compiled);
+        assertEquals(expected.instructions(), result.instructions());
+        assertEquals(expected.cycles(), result.cycles());
+        Registers a = interpreted.registers(), b = tiered.registers();
+        assertEquals(a.regA(), b.regA());
+        assertEquals(a.regX(), b.regX());
+        assertEquals(a.regY(), b.regY());
+        assertEquals(a.regSP(), b.regSP());
+        assertEquals(a.regSR(), b.regSR());
+        assertEquals(a.regPC(), b.regPC());
+        assertArrayEquals(interpreted.memory().memory(), tiered.memory().memory());
+    }
+
+    @Test
+    public void testSuperinstructions() {
+        System.out.println("Superinstructions test...");
+        
+        PairProfile profile = new PairProfile();
+        CPU interpreted = Programs.nestedLoopProgram().pairProfile(profile);
+        RunResult expected = interpreted.run(Long.MAX_VALUE);
+        assertEquals(16*256, profile.count(0xca, 0xd0));
+        assertEquals(16, profile.count(0x88, 0xd0));
+        int[] pairs = profile.select(2);
+        assertArrayEquals(new int[]{0xcad0, 0x1869}, pairs);
+        
+        CPU fused = Programs.nestedLoopProgram().superinstructions(profile.select(8));
+        RunResult result = fused.run(Long.MAX_VALUE);
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertEquals(expected.instructions(), result.instructions());
+        assertEquals(expected.cycles(), result.cycles());
+        assertEquals(interpreted.registers().regA(), fused.registers().regA());
+        assertEquals(interpreted.registers().regPC(), fused.registers().regPC());
+        assertEquals(interpreted.flags().value(), fused.flags().value());
+        
+        //Hooks see every instruction
+        CPU hooked = Programs.nestedLoopProgram().superinstructions(pairs);
+        long[] count = new long[1];
+        hooked.addPostInstruction((cpu, instr) -> count[0]++);
+        hooked.run(Long.MAX_VALUE);
+        assertEquals(expected.instructions(), count[0]);
+    }
+
+    @Test
+    public void testHookFilters() {
+        System.out.println("Hook filters test...");
+        
+        int[] count = new int[3];
+        CPU.PreInstruction all = (cpu, instr) -> count[0]++;
+        CPU.PreInstruction dex = (cpu, instr) -> count[1]++;
+        CPU.PostInstruction branch = (cpu, instr) -> count[2]++;
+        CPU mCpu = loopProgram().executionMode(CPU.ExecutionMode.BLOCKS)
+                .addPreInstruction(all)
+                .addPreInstruction(dex, new CPU.HookFilter().opcodes(0xca))
+                .addPostInstruction(branch, new CPU.HookFilter().pcRange(0x603, 0x604));
+        RunResult result = mCpu.run(Long.MAX_VALUE);
+        assertEquals(result.instructions(), count[0]);
+        assertEquals(5, count[1]);
+        assertEquals(5, count[2]);
+        
+        mCpu.removePreInstruction(all).removePostInstruction(branch);
+        mCpu.setup(false, true, true, 0x600).run(Long.MAX_VALUE);
+        assertEquals(result.instructions(), count[0]);
+        assertEquals(10, count[1]);
+        assertEquals(5, count[2]);
+    }
+    
+    @Test
+    public void testFork() {
+        System.out.println("Fork test...");
+        //ldx #$05, dex, stx $0200, bne -6, brk
+        CPU parent = CPU.newInstance().executionMode(CPU.ExecutionMode.BLOCKS);
+        parent.setup(true, true, true, 0x600);
+        parent.memory().loadBytes(new byte[]{(byte) 0xa2, 0x05, (byte) 0xca,
+            (byte) 0x8e, 0x02, 0x00, (byte) 0xd0, (byte) 0xfa, 0x00}, 9, 0x600);
+        parent.clock().paced(1_000_000_000).sliceCycles(500);
+        CompiledProgram program = new CompiledProgram(){}.install(parent);
+        parent.step();
+        
+        CPU child = parent.fork();
+        assertEquals(5, child.registers().regX());
+        assertEquals(0x602, child.registers().regPC());
+        assertEquals(CPU.ExecutionMode.BLOCKS, child.executionMode());
+        assertEquals(parent.clock().cycles(), child.clock().cycles());
+        assertEquals(Clock.Mode.PACED, child.clock().mode());
+        assertEquals(1_000_000_000, child.clock().frequency());
+        assertEquals(500, child.clock().sliceCycles());
+        assertSame(program, child.memory().blocks().program());
+        child.memory().put(0x601, (byte) 0x02);
+        assertEquals(RunResult.HaltReason.BRK, child.run(Long.MAX_VALUE).haltReason());
+        assertEquals(0, child.memory().get(0x200));
+        assertEquals(0, parent.memory().get(0x200));
+        
+        //The parent is not changed by the child
+        parent.step();
+        assertEquals(4, parent.registers().regX());
+        assertEquals(0x05, parent.memory().get(0x601));
+        assertEquals(RunResult.HaltReason.BRK, parent.run(Long.MAX_VALUE).haltReason());
+        assertEquals(0, parent.registers().regX());
+        System.out.println("OK");
+    }
+
+    @Test
+    public void testInterrupts() throws InterruptedException {
+        System.out.println("Interrupts test...");
+        
+        for (CPU.ExecutionMode mode : CPU.ExecutionMode.values()) {
+            //cli, jmp $0601. IRQ: inx, rti. NMI: iny, rti
+            CPU mCpu = CPU.newInstance().executionMode(mode);
+            mCpu.memory().loadBytes(new byte[]{0x58, 0x4c, 0x06, 0x01}, 4, 0x600);
+            mCpu.memory().loadBytes(new byte[]{(byte) 0xe8, 0x40}, 2, 0x700);
+            mCpu.memory().loadBytes(new byte[]{(byte) 0xc8, 0x40}, 2, 0x710);
+            mCpu.memory().put(CPU.IRQ_VECTOR, (byte) 0x07).put(CPU.IRQ_VECTOR+1, (byte) 0x00);
+            mCpu.memory().put(CPU.NMI_VECTOR, (byte) 0x07).put(CPU.NMI_VECTOR+1, (byte) 0x10);
+            mCpu.registers().regPC(0x600).regSP((byte) 0xff);
+            mCpu.run(100);
+            assertEquals(0, mCpu.registers().regX());
+            
+            //Level triggered, asserted from another thread
+            Thread device = new Thread(mCpu::assertIrq);
+            device.start();
+            device.join();
+            assertTrue(mCpu.irqAsserted());
+            mCpu.run(100);
+            assertTrue(mCpu.registers().regX()>1);
+            mCpu.releaseIrq();
+            assertFalse(mCpu.irqAsserted());
+            mCpu.run(20);
+            byte x = mCpu.registers().regX();
+            mCpu.run(100);
+            assertEquals(x, mCpu.registers().regX());
+            assertEquals(0xff, mCpu.registers().regSP()&0xff);
+            
+            //Edge triggered, even with I set
+            mCpu.flags().i((byte) 1);
+            mCpu.nmi().nmi();
+            mCpu.run(100);
+            assertEquals(1, mCpu.registers().regY());
+        }
+    }
+    
+    @Test
+    public void testEverySuperinstruction() {
+        System.out.println("Every superinstruction test...");
+        
+        for (int pair = 0; pair < 0x10000; pair++) {
+            if (!InstructionMap.canFuse(pair>>>8, pair&0xff)){
+                continue;
+            }
+            //Operands are $10 or $0210, followed by BNE
+            byte[] code = new byte[8];
+            int pos = operands(code, 0, pair>>>8);
+            pos = operands(code, pos, pair&0xff);
+            code[pos] = (byte) 0xd0;
+            code[pos+1] = 0x10;
+            CPU stepped = superinstructionProgram(code);
+            CPU fused = superinstructionProgram(code).superinstructions(pair);
+            RunResult result = fused.run(1);
+            for (int i = 0; i < result.instructions(); i++) {
+                stepped.step();
+            }
+            String name = String.format("%04X", pair);
+            assertTrue(name, result.instructions()>=2);
+            assertEquals(name, stepped.clock().cycles(), result.cycles());
+            assertEquals(name, stepped.registers().regPC(), fused.registers().regPC());
+            assertEquals(name, stepped.registers().regA(), fused.registers().regA());
+            assertEquals(name, stepped.registers().regX(), fused.registers().regX());
+            assertEquals(name, stepped.registers().regY(), fused.registers().regY());
+            assertEquals(name, stepped.flags().value(), fused.flags().value());
+            assertArrayEquals(name, stepped.memory().memory(), fused.memory().memory());
+        }
+    }
+    
+    @Test
+    public void testStateViews() {
+        System.out.println("State views test...");
+        
+        CPU mCpu = loopProgram();
+        Registers registers = mCpu.registers();
+        Flags flags = mCpu.flags();
+        mCpu.run(Long.MAX_VALUE);
+        assertEquals(mCpu.state.cycles, mCpu.clock().cycles());
+        assertEquals(mCpu.state.flags(), flags.value());
+        
+        //setup resets the state, the views are kept
+        mCpu.setup(false, true, true, 0x600);
+        assertSame(registers, mCpu.registers());
+        assertSame(flags, mCpu.flags());
+        assertEquals(0, registers.regX());
+        assertEquals(0x600, registers.regPC());
+        assertEquals(0, flags.value());
+        flags.c((byte) 1);
+        assertEquals(1, mCpu.state.carry);
+    }
+    
+    private static int operands(byte[] code, int pos, int opcode) {
+        code[pos] = (byte) opcode;
+        if (InstructionMap.length(opcode)==3){
+            code[pos+1] = 0x02;
+            code[pos+2] = 0x10;
+        }else if (InstructionMap.length(opcode)==2){
+            code[pos+1] = 0x10;
+        }
+        return pos+InstructionMap.length(opcode);
+    }
+    
+    private static CPU superinstructionProgram(byte[] code) {
+        CPU mCpu = CPU.newInstance();
+        mCpu.memory().loadBytes(code, code.length, 0x600);
+        mCpu.memory().put(0x10, (byte) 0x20);
+        mCpu.memory().put(0x11, (byte) 0x02);
+        mCpu.memory().put(0x0210, (byte) 0x7f);
+        mCpu.memory().put(0x0235, (byte) 0x42);
+        mCpu.registers().regA((byte) 0x33).regX((byte) 0x05).regY((byte) 0x15).regPC(0x600);
+        return mCpu;
+    }
+    
+    /**
+     * Loads, stores, transfers, INC/DEC and branches in a loop of 8*256
+     * iterations, the instructions emitted directly by the BlockCompiler
+     */
+    private static CPU directProgram() {
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        byte[] program = new byte[]{
+            (byte) 0xa9, 0x08, (byte) 0x8d, 0x02, 0x50, (byte) 0xa0, 0x00, (byte) 0x8c,
+            0x02, 0x40, (byte) 0x98, (byte) 0xaa, (byte) 0xe8, (byte) 0x96, 0x60, (byte) 0xb6,
+            0x60, (byte) 0x94, 0x70, (byte) 0xb4, 0x70, (byte) 0x8a, (byte) 0xa8, (byte) 0xca,
+            (byte) 0x88, (byte) 0xc8, (byte) 0x95, 0x10, (byte) 0xb5, 0x10, (byte) 0x86, 0x20,
+            (byte) 0xa6, 0x20, (byte) 0x84, 0x21, (byte) 0xa4, 0x21, (byte) 0x85, 0x22,
+            (byte) 0xa5, 0x22, (byte) 0x9d, 0x03, 0x00, (byte) 0xbd, 0x03, 0x00,
+            (byte) 0x99, 0x04, 0x00, (byte) 0xb9, 0x04, 0x00, (byte) 0x8e, 0x02,
+            0x41, (byte) 0xae, 0x02, 0x41, (byte) 0xbe, 0x04, 0x00, (byte) 0xbc,
+            0x03, 0x00, (byte) 0xe6, 0x30, (byte) 0xf6, 0x30, (byte) 0xee, 0x05,
+            0x00, (byte) 0xfe, 0x05, 0x00, (byte) 0xc6, 0x31, (byte) 0xd6, 0x31,
+            (byte) 0xce, 0x04, (byte) 0x80, (byte) 0xde, 0x04, (byte) 0x80, (byte) 0xba, (byte) 0x9a,
+            0x10, 0x00, 0x30, 0x00, (byte) 0x90, 0x00, (byte) 0xb0, 0x00,
+            0x50, 0x00, 0x70, 0x00, (byte) 0xf0, 0x00, (byte) 0xac, 0x02,
+            0x40, (byte) 0x88, (byte) 0xd0, (byte) 0x9b, (byte) 0xce, 0x02, 0x50, (byte) 0xd0,
+            (byte) 0x94, 0x00
+        };
+        mCpu.memory().loadBytes(program, program.length, 0x600);
+        return mCpu;
+    }
+    
+    /**
+     * ldx #$05
+     * dex
+     * bne $602
+     * brk
+     */
+    private static CPU loopProgram() {
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        mCpu.memory().loadBytes(new byte[]{
+            (byte) 0xa2, 0x05, (byte) 0xca, (byte) 0xd0, (byte) 0xfd, 0x00
+        }, 6, 0x600);
+        return mCpu;
+    }
 }
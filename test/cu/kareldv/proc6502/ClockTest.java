@@ -73,5 +73,69 @@ public class ClockTest {
             ex.printStackTrace();
         }
     }
-    
+
+    @Test
+    public void testVirtual() {
+        System.out.println("virtual");
+        
+        Clock myClock = new Clock();
+        assertEquals(Clock.Mode.VIRTUAL, myClock.mode());
+        
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 1_000_000; i++) {
+            myClock.consumeTicks(2);
+        }
+        myClock.consumeTick();
+        long end = System.currentTimeMillis();
+        
+        assertTrue(end-start < 1000);
+        assertEquals(2_000_001, myClock.cycles());
+        assertEquals(2_000_001_000L, myClock.virtualNanos());
+        
+        myClock.frequency(2_000_000);
+        assertEquals(1_000_000_500L, myClock.virtualNanos());
+        System.out.println("OK, time="+(end-start));
+    }
+
+    @Test
+    public void testPaced() {
+        System.out.println("paced");
+        
+        Clock myClock = new Clock().paced(1_000_000).sliceCycles(1000);
+        assertEquals(Clock.Mode.PACED, myClock.mode());
+        
+        long start = System.nanoTime();
+        //50 ms at 1 MHz
+        for (int i = 0; i < 10_000; i++) {
+            myClock.consumeTicks(5);
+        }
+        long end = System.nanoTime();
+        
+        assertTrue(end-start >= 45_000_000);
+        assertTrue(end-start < 500_000_000);
+        System.out.println("OK, time="+(end-start)/1_000_000);
+    }
+
+    @Test
+    public void testPacedMaxLag() throws InterruptedException {
+        System.out.println("paced max lag");
+        
+        Clock myClock = new Clock().paced(1_000_000).sliceCycles(1000)
+                .maxLag(10_000_000);
+        myClock.consumeTicks(1000);
+        
+        //Host stall longer than the max lag, the lost time is dropped
+        Thread.sleep(100);
+        myClock.consumeTicks(1000);
+        
+        long start = System.nanoTime();
+        //20 ms at 1 MHz, would run at full speed if the stall was recovered
+        for (int i = 0; i < 20; i++) {
+            myClock.consumeTicks(1000);
+        }
+        long end = System.nanoTime();
+        
+        assertTrue(end-start >= 15_000_000);
+        System.out.println("OK, time="+(end-start)/1_000_000);
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Karel
+ */
+public class DebuggerTest {
+    
+    public DebuggerTest() {
+    }
+
+    @Test
+    public void testBreakpoints() {
+        System.out.println("Testing execute breakpoints...");
+        //ldx #$05, dex, bne -3, brk
+        CPU mCpu = Programs.program(0xa2, 0x05, 0xca, 0xd0, 0xfd, 0x00);
+        mCpu.debugger().breakpoint(0x602);
+        for (int x = 5; x > 0; x--) {
+            RunResult result = mCpu.run(Long.MAX_VALUE);
+            assertEquals(RunResult.HaltReason.BREAKPOINT, result.haltReason());
+            assertEquals(0x602, mCpu.registers().regPC());
+            assertEquals(x, mCpu.registers().regX());
+            assertEquals(Debugger.Kind.EXECUTE, mCpu.debugger().lastKind());
+        }
+        assertEquals(RunResult.HaltReason.BRK, mCpu.run(Long.MAX_VALUE).haltReason());
+        
+        //Only when X is 2
+        mCpu = Programs.program(0xa2, 0x05, 0xca, 0xd0, 0xfd, 0x00);
+        mCpu.debugger().breakpoint(0x602, (cpu) -> cpu.registers().regX()==2);
+        assertEquals(RunResult.HaltReason.BREAKPOINT, mCpu.run(Long.MAX_VALUE).haltReason());
+        assertEquals(2, mCpu.registers().regX());
+        mCpu.debugger().remove(Debugger.Kind.EXECUTE, 0x602);
+        assertEquals(0, mCpu.debugger().count());
+        assertEquals(RunResult.HaltReason.BRK, mCpu.run(Long.MAX_VALUE).haltReason());
+        System.out.println("OK");
+    }
+
+    @Test
+    public void testWatchpoints() {
+        System.out.println("Testing watchpoints...");
+        //lda #$42, sta $0200, lda $0300, brk
+        CPU mCpu = Programs.program(0xa9, 0x42, 0x8d, 0x02, 0x00, 0xad, 0x03, 0x00, 0x00)
+                .executionMode(CPU.ExecutionMode.BLOCKS);
+        mCpu.memory().put(0x300, (byte) 0x17);
+        mCpu.debugger().writeWatchpoint(0x200).readWatchpoint(0x300);
+        
+        RunResult result = mCpu.run(Long.MAX_VALUE);
+        assertEquals(RunResult.HaltReason.WATCHPOINT, result.haltReason());
+        assertEquals(2, result.instructions());
+        assertEquals(0x605, mCpu.registers().regPC());
+        assertEquals(0x42, mCpu.memory().get(0x200));
+        assertEquals(Debugger.Kind.WRITE, mCpu.debugger().lastKind());
+        assertEquals(0x200, mCpu.debugger().lastAddress());
+        
+        result = mCpu.run(Long.MAX_VALUE);
+        assertEquals(RunResult.HaltReason.WATCHPOINT, result.haltReason());
+        assertEquals(0x17, mCpu.registers().regA());
+        assertEquals(Debugger.Kind.READ, mCpu.debugger().lastKind());
+        
+        //Without watchpoints the pages are fast again
+        mCpu.debugger().clear();
+        mCpu.setup(false, true, true, 0x600);
+        assertEquals(RunResult.HaltReason.BRK, mCpu.run(Long.MAX_VALUE).haltReason());
+        System.out.println("OK");
+    }
+}
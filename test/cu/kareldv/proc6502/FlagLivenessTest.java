@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Karel
+ */
+public class FlagLivenessTest {
+    
+    public FlagLivenessTest() {
+    }
+
+    @Test
+    public void testLiveOut() {
+        System.out.println("Flag liveness test...");
+        
+        //lda #1, ldx #2, cpx #3, sta $10, ldy #4, bne
+        int[] live = FlagLiveness.liveOut(new byte[]{
+            (byte) 0xa9, (byte) 0xa2, (byte) 0xe0, (byte) 0x85, (byte) 0xa0, (byte) 0xd0
+        }, 6);
+        //N and Z of lda and ldx are overwritten by cpx
+        assertEquals(0, live[0] & (FlagLiveness.N | FlagLiveness.Z));
+        assertEquals(0, live[1] & (FlagLiveness.N | FlagLiveness.Z));
+        //Everything is live at a store and at the end of the block
+        assertEquals(FlagLiveness.ALL, live[2]);
+        assertEquals(FlagLiveness.ALL, live[3]);
+        assertEquals(FlagLiveness.Z, live[4] & FlagLiveness.Z);
+        assertEquals(FlagLiveness.ALL, live[5]);
+    }
+
+    @Test
+    public void testElideAndVerify() {
+        System.out.println("Flag elision test...");
+        
+        CPU expected = program();
+        RunResult expectedResult = expected.run(Long.MAX_VALUE);
+        
+        CPU elided = program().executionMode(CPU.ExecutionMode.BLOCKS)
+                .flagAnalysis(CPU.FlagAnalysis.ELIDE);
+        RunResult result = elided.run(Long.MAX_VALUE);
+        assertEquals(expectedResult.cycles(), result.cycles());
+        assertEquals(expectedResult.instructions(), result.instructions());
+        assertEquals(expected.flags().value(), elided.flags().value());
+        assertEquals(expected.registers().regA(), elided.registers().regA());
+        assertNotEquals(0, elided.memory().blocks().get(0x602).flagFree);
+        
+        AtomicInteger divergences = new AtomicInteger();
+        CPU verified = program().executionMode(CPU.ExecutionMode.BLOCKS)
+                .flagAnalysis(CPU.FlagAnalysis.VERIFY)
+                .onFlagDivergence((cpu, pc, exp, actual) -> divergences.incrementAndGet());
+        verified.run(Long.MAX_VALUE);
+        assertEquals(0, divergences.get());
+        assertEquals(expected.flags().value(), verified.flags().value());
+    }
+    
+    /**
+     * ldy #$08
+     * loop: tya
+     * eor #$ff
+     * and #$0f
+     * ldx #$00
+     * cpx #$01
+     * dey
+     * bne loop
+     * brk
+     */
+    private static CPU program() {
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        mCpu.memory().loadBytes(new byte[]{
+            (byte) 0xa0, 0x08, (byte) 0x98, 0x49, (byte) 0xff, 0x29, 0x0f,
+            (byte) 0xa2, 0x00, (byte) 0xe0, 0x01, (byte) 0x88, (byte) 0xd0,
+            (byte) 0xf4, 0x00
+        }, 15, 0x600);
+        return mCpu;
+    }
+}
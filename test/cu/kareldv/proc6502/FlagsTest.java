@@ -50,4 +50,25 @@ public class FlagsTest {
         assertEquals(expResult, result);
         System.out.println("OK");
     }
+
+    @Test
+    public void testResult() {
+        System.out.println("Testing lazy N and Z...");
+        Flags instance = new Flags();
+        instance.c((byte)1);
+        instance.result((byte) 0x80);
+        assertEquals(1, instance.n());
+        assertEquals(0, instance.z());
+        assertEquals(0b0100_0001, instance.value());
+        instance.result((byte) 0);
+        assertEquals(0, instance.n());
+        assertEquals(1, instance.z());
+        assertEquals(0b0000_0011, instance.value());
+        
+        //Every bit is kept
+        for (int i = 0; i < 256; i++) {
+            assertEquals((byte) i, instance.value((byte) i).value());
+        }
+        System.out.println("OK");
+    }
 }
@@ -45,6 +45,154 @@ public class MemoryTest {
         assertEquals(memory.getWord(0), 0b10000_0010);
     }
 
+    @Test
+    public void testRangeWatched() {
+        System.out.println("Test Range Watched");
+        final int[] calls = new int[2];
+        Memory.OnValueInRangeChanged first = (mem, pos, val) -> calls[0]++;
+        Memory.OnValueInRangeChanged second = (mem, pos, val) -> {
+            assertEquals(0x2ff, pos);
+            assertEquals((byte) 7, val);
+            calls[1]++;
+        };
+        memory.addRangeWatched(0x200, 0x2ff, first);
+        memory.addRangeWatched(0x2ff, 0x300, second);
+        
+        memory.put(0x1ff, (byte) 1).put(0x200, (byte) 2).put(0x2ff, (byte) 7);
+        assertEquals(2, calls[0]);
+        assertEquals(1, calls[1]);
+        assertEquals((byte) 2, memory.get(0x200));
+        
+        memory.removeRangeWatched(first);
+        memory.put(0x200, (byte) 3).put(0x2ff, (byte) 7);
+        assertEquals(2, calls[0]);
+        assertEquals(2, calls[1]);
+    }
+
+    @Test
+    public void testRangeRead() {
+        System.out.println("Test Range Read");
+        final int[] reads = new int[1];
+        Memory.OnValueInRangeRead device = (mem, pos) -> {
+            reads[0]++;
+            return (byte) (pos&0xff);
+        };
+        memory.addRangeRead(0xfe, 0xff, device);
+        memory.put(0xfd, (byte) 1).put(0xfe, (byte) 1);
+        assertEquals(0, reads[0]);
+        
+        assertEquals((byte) 1, memory.get(0xfd));
+        assertEquals((byte) 0xfe, memory.get(0xfe));
+        assertEquals((byte) 0xff, memory.get(0xff));
+        assertEquals(2, reads[0]);
+        
+        memory.removeRangeRead(device);
+        assertEquals((byte) 1, memory.get(0xfe));
+        assertEquals(2, reads[0]);
+    }
+
+    @Test
+    public void testRom() {
+        System.out.println("Test ROM");
+        memory.loadBytes(new byte[]{1, 2, 3}, 3, 0xf000);
+        memory.mapRom(0xf000, 0xffff);
+        memory.put(0xf000, (byte) 9).put(0xefff, (byte) 9);
+        
+        assertTrue(memory.isRom(0xf0ff));
+        assertEquals((byte) 1, memory.get(0xf000));
+        assertEquals((byte) 9, memory.get(0xefff));
+        
+        memory.reset();
+        assertEquals((byte) 2, memory.get(0xf001));
+        assertEquals((byte) 0, memory.get(0xefff));
+        
+        memory.mapRam(0xf000, 0xf0ff);
+        memory.put(0xf000, (byte) 9);
+        assertEquals((byte) 9, memory.get(0xf000));
+    }
+
+    @Test
+    public void testWrapAround() {
+        System.out.println("Test Wrap Around");
+        memory.put(0x10005, (byte) 4);
+        assertEquals((byte) 4, memory.get(5));
+        assertEquals((byte) 4, memory.get(-0xfffb));
+    }
+
+    @Test
+    public void testFork() {
+        System.out.println("Test Fork");
+        memory.put(0x200, (byte) 1).put(0x300, (byte) 2);
+        memory.mapRom(0xf000, 0xf0ff);
+        Memory fork = memory.fork();
+        assertTrue(fork.isShared(0x02) && memory.isShared(0x02));
+        assertTrue(fork.isRom(0xf000));
+        
+        //Copied before the first write, by each side
+        fork.put(0x200, (byte) 3);
+        memory.put(0x300, (byte) 4);
+        assertFalse(fork.isShared(0x02));
+        assertTrue(fork.isShared(0x03));
+        assertEquals((byte) 3, fork.get(0x200));
+        assertEquals((byte) 1, memory.get(0x200));
+        assertEquals((byte) 2, fork.get(0x300));
+        assertEquals((byte) 4, memory.get(0x300));
+        
+        fork.loadBytes(new byte[]{5, 6}, 2, 0x3ff);
+        assertEquals((byte) 5, fork.get(0x3ff));
+        assertEquals((byte) 6, fork.get(0x400));
+        assertEquals((byte) 0, memory.get(0x3ff));
+        fork.reset();
+        assertEquals((byte) 4, memory.get(0x300));
+    }
+
+    @Test
+    public void testSharedRom() {
+        System.out.println("Test Shared ROM");
+        Rom rom = new Rom(new byte[]{1, 2, 3}, 0xf000);
+        assertEquals(0xf0ff, rom.end());
+        Memory other = new Memory();
+        memory.mapRom(rom);
+        other.mapRom(rom);
+        assertTrue(memory.isRom(0xf000) && memory.isShared(0xf0));
+        assertEquals((byte) 2, other.get(0xf001));
+        
+        //Writes are ignored, loads and RAM mappings copy the page
+        memory.put(0xf000, (byte) 9);
+        memory.reset();
+        assertEquals((byte) 1, memory.get(0xf000));
+        memory.loadBytes(new byte[]{7}, 1, 0xf000);
+        assertEquals((byte) 7, memory.get(0xf000));
+        assertEquals((byte) 1, other.get(0xf000));
+        other.mapRam(0xf000, 0xf0ff);
+        other.put(0xf001, (byte) 8);
+        assertEquals((byte) 8, other.get(0xf001));
+        assertEquals((byte) 2, new Memory().mapRom(rom).get(0xf001));
+    }
+
+    @Test
+    public void testSparse() {
+        System.out.println("Test Sparse");
+        Memory sparse = new Memory();
+        for (int page = 0; page < Memory.PAGES; page++) {
+            assertTrue(sparse.isShared(page));
+        }
+        sparse.put(0x1ff, (byte) 1);
+        assertFalse(sparse.isShared(0x01));
+        assertTrue(sparse.isShared(0x02));
+        
+        //Untouched pages read the fill value
+        sparse.reset((byte) 0xea);
+        assertTrue(sparse.isShared(0x01));
+        assertEquals((byte) 0xea, sparse.get(0x1ff));
+        assertEquals((byte) 0xea, sparse.get(0x8000));
+        sparse.put(0x8000, (byte) 2);
+        assertEquals((byte) 2, sparse.get(0x8000));
+        assertEquals((byte) 0xea, sparse.get(0x8001));
+        assertEquals((byte) 0xea, new Memory().reset((byte) 0xea).get(0x8000));
+        assertEquals((byte) 0, new Memory().get(0x8000));
+    }
+
     @Test
     @After
     public void testDump() {
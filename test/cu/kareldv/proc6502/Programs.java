@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+/**
+ * Test programs shared by the tests, loaded at $600 with the processor
+ * ready to run them
+ * @author Karel
+ */
+final class Programs {
+    
+    private Programs() {
+    }
+    
+    /**
+     * Loads CODE at $600
+     */
+    static CPU program(int... code) {
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        for (int i = 0; i < code.length; i++) {
+            mCpu.memory().put(0x600+i, (byte) code[i]);
+        }
+        return mCpu;
+    }
+    
+    /**
+     * ldy #$10
+     * ldx #$00
+     * clc
+     * adc #$01
+     * dex
+     * bne $605
+     * dey
+     * bne $602
+     * brk
+     */
+    static CPU nestedLoopProgram() {
+        CPU mCpu = CPU.newInstance();
+        mCpu.setup(true, true, true, 0x600);
+        mCpu.memory().loadBytes(new byte[]{
+            (byte) 0xa0, 0x10, (byte) 0xa2, 0x00, 0x18, 0x69, 0x01,
+            (byte) 0xca, (byte) 0xd0, (byte) 0xfb, (byte) 0x88,
+            (byte) 0xd0, (byte) 0xf5, 0x00
+        }, 14, 0x600);
+        return mCpu;
+    }
+}
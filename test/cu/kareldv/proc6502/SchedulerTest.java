@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Karel
+ */
+public class SchedulerTest {
+    
+    public SchedulerTest() {
+    }
+
+    @Test
+    public void testPeriodicEvent() {
+        System.out.println("Testing periodic events...");
+        for (CPU.ExecutionMode mode : CPU.ExecutionMode.values()) {
+            //inx, jmp $0600
+            CPU mCpu = CPU.newInstance().executionMode(mode);
+            mCpu.memory().loadBytes(new byte[]{(byte) 0xe8, 0x4c, 0x06, 0x00}, 4, 0x600);
+            mCpu.registers().regPC(0x600);
+            final long start = mCpu.clock().cycles();
+            final List<long[]> fired = new ArrayList<>();
+            mCpu.scheduler().schedule(start+100, new Scheduler.Event() {
+                @Override
+                public void fire(CPU cpu, long cycle) {
+                    fired.add(new long[]{cycle, cpu.clock().cycles()});
+                    cpu.scheduler().schedule(cycle+100, this);
+                }
+            });
+            RunResult result = mCpu.run(1000);
+            assertEquals(RunResult.HaltReason.BUDGET_EXHAUSTED, result.haltReason());
+            assertEquals(10, fired.size());
+            for (int i = 0; i < fired.size(); i++) {
+                final long deadline = fired.get(i)[0];
+                assertEquals(start+100*(i+1), deadline);
+                //Right after the instruction that reaches it
+                assertTrue(fired.get(i)[1] >= deadline);
+                assertTrue(fired.get(i)[1] < deadline+3);
+            }
+            assertEquals(start+1100, mCpu.scheduler().next());
+        }
+        System.out.println("OK");
+    }
+
+    @Test
+    public void testOrderAndCancel() {
+        System.out.println("Testing event order...");
+        //nop, nop, nop
+        CPU mCpu = CPU.newInstance();
+        mCpu.memory().loadBytes(new byte[]{(byte) 0xea, (byte) 0xea, (byte) 0xea}, 3, 0x600);
+        mCpu.registers().regPC(0x600);
+        final long start = mCpu.clock().cycles();
+        final StringBuilder order = new StringBuilder();
+        Scheduler.Event a = (cpu, cycle) -> order.append('a');
+        Scheduler.Event b = (cpu, cycle) -> order.append('b');
+        Scheduler.Event c = (cpu, cycle) -> order.append('c');
+        mCpu.scheduler().schedule(start+4, c).schedule(start+2, b)
+                .schedule(start+2, a).schedule(start+6, a);
+        assertEquals(start+2, mCpu.scheduler().next());
+        
+        mCpu.step();
+        assertEquals("ba", order.toString());
+        assertTrue(mCpu.scheduler().cancel(a));
+        assertFalse(mCpu.scheduler().cancel(a));
+        mCpu.step();
+        mCpu.step();
+        assertEquals("bac", order.toString());
+        assertTrue(mCpu.scheduler().isEmpty());
+        assertEquals(Long.MAX_VALUE, mCpu.scheduler().next());
+        System.out.println("OK");
+    }
+
+    @Test
+    public void testStepDeadline() {
+        System.out.println("Testing step deadlines...");
+        //nop, nop, nop
+        CPU mCpu = CPU.newInstance();
+        mCpu.memory().loadBytes(new byte[]{(byte) 0xea, (byte) 0xea, (byte) 0xea}, 3, 0x600);
+        mCpu.registers().regPC(0x600);
+        final long start = mCpu.clock().cycles();
+        final StringBuilder order = new StringBuilder();
+        mCpu.scheduler().schedule(start+6, (cpu, cycle) -> order.append('b'));
+        
+        mCpu.step();
+        assertEquals("", order.toString());
+        assertEquals(start+6, mCpu.scheduler().next());
+        //An earlier deadline is seen by the next step
+        mCpu.scheduler().schedule(start+1, (cpu, cycle) -> order.append('a'));
+        assertEquals(start+1, mCpu.scheduler().next());
+        mCpu.step();
+        assertEquals("a", order.toString());
+        assertEquals(start+6, mCpu.scheduler().next());
+        mCpu.step();
+        assertEquals("ab", order.toString());
+        assertEquals(Long.MAX_VALUE, mCpu.scheduler().next());
+        System.out.println("OK");
+    }
+}
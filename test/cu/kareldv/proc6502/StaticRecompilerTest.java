@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502;
+
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Karel
+ */
+public class StaticRecompilerTest {
+    
+    public StaticRecompilerTest() {
+    }
+
+    @Test
+    public void testRecover() {
+        System.out.println("Recover test...");
+        
+        StaticRecompiler rec = new StaticRecompiler(Programs.nestedLoopProgram().memory()).entry(0x600);
+        //Entry, outer loop, inner loop, inner loop exit and BRK
+        assertArrayEquals(new int[]{0x600, 0x602, 0x605, 0x60a, 0x60d}, rec.recover());
+    }
+
+    @Test
+    public void testCompiledProgram() throws Exception {
+        System.out.println("Compiled program test...");
+        
+        Map<String, byte[]> classes = new StaticRecompiler(Programs.nestedLoopProgram().memory())
+                .entry(0x600).compile("test.NestedLoop");
+        assertEquals(6, classes.size());
+        CompiledProgram compiled = (CompiledProgram) new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                final byte[] bytes = classes.get(name);
+                if (bytes==null){
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        }.loadClass("test.NestedLoop").getDeclaredConstructor().newInstance();
+        assertEquals(5, compiled.size());
+        
+        CPU interpreted = Programs.nestedLoopProgram();
+        RunResult expected = interpreted.run(Long.MAX_VALUE);
+        CPU mCpu = Programs.nestedLoopProgram().executionMode(CPU.ExecutionMode.BLOCKS);
+        compiled.install(mCpu);
+        RunResult result = mCpu.run(Long.MAX_VALUE);
+        
+        assertEquals(RunResult.HaltReason.BRK, result.haltReason());
+        assertEquals(expected.instructions(), result.instructions());
+        assertEquals(expected.cycles(), result.cycles());
+        assertNotNull(mCpu.memory().blocks().get(0x605).compiled);
+        
+        //Modified code is interpreted
+        mCpu.memory().put(0x606, (byte) 2);
+        assertNull(mCpu.memory().blocks().get(0x605).compiled);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502.plugs;
+
+import cu.kareldv.proc6502.Memory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Karel
+ */
+public class KeyPressedTest {
+    
+    public KeyPressedTest() {
+    }
+
+    @Test
+    public void testQueue() {
+        System.out.println("Keyboard queue");
+        Memory mem = new Memory();
+        KeyPressed keyboard = new KeyPressed(0xff, 3).install(mem);
+        
+        assertEquals(0, mem.get(0xff));
+        assertTrue(keyboard.offer('a'));
+        keyboard.setKeyPressed('b');
+        assertEquals(2, keyboard.pending());
+        assertEquals((byte) 'a', mem.get(0xff));
+        assertEquals((byte) 'b', mem.get(0xff));
+        assertEquals(0, mem.get(0xff));
+        
+        for (int i = 0; i < 4; i++) {
+            assertTrue(keyboard.offer('c'));
+        }
+        assertFalse(keyboard.offer('d'));
+    }
+
+    @Test
+    public void testProducerThread() throws InterruptedException {
+        System.out.println("Keyboard producer thread");
+        final int keys = 100_000;
+        Memory mem = new Memory();
+        KeyPressed keyboard = new KeyPressed().install(mem);
+        
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < keys; i++) {
+                char ch = (char) (1 + i%200);
+                while(!keyboard.offer(ch)){
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        
+        for (int i = 0; i < keys; i++) {
+            byte b;
+            while((b = mem.get(0xff))==0){
+                Thread.yield();
+            }
+            assertEquals((byte) (1 + i%200), b);
+        }
+        producer.join();
+        assertEquals(0, keyboard.pending());
+    }
+}
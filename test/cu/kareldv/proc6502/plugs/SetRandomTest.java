@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Karel Gonzalez.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.kareldv.proc6502.plugs;
+
+import cu.kareldv.proc6502.Memory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Karel
+ */
+public class SetRandomTest {
+    
+    public SetRandomTest() {
+    }
+
+    @Test
+    public void testSeeded() {
+        System.out.println("Seeded random");
+        Memory m1 = new Memory(), m2 = new Memory();
+        new SetRandom(0xfe, 42).install(m1);
+        new SetRandom(0xfe, 42).install(m2);
+        
+        boolean changed = false;
+        byte first = m1.get(0xfe);
+        assertEquals(first, m2.get(0xfe));
+        for (int i = 0; i < 100; i++) {
+            byte b = m1.get(0xfe);
+            assertEquals(b, m2.get(0xfe));
+            changed |= b!=first;
+        }
+        assertTrue(changed);
+    }
+
+    @Test
+    public void testSplitAndUninstall() {
+        System.out.println("Split and uninstall random");
+        Memory m1 = new Memory(), m2 = new Memory();
+        SetRandom parent = new SetRandom(0xfe, 7);
+        parent.split().install(m1);
+        new SetRandom(0xfe, 7).split().install(m2);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(m1.get(0xfe), m2.get(0xfe));
+        }
+        
+        SetRandom secure = SetRandom.secure(0x10).install(m1);
+        m1.get(0x10);
+        secure.uninstall(m1);
+        m1.put(0x10, (byte) 3);
+        assertEquals((byte) 3, m1.get(0x10));
+    }
+}